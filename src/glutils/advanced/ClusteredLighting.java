@@ -0,0 +1,423 @@
+package glutils.advanced;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+import glutils.core.Camera;
+import glutils.core.Shader;
+import glutils.core.TextureBuffer;
+import glutils.core.Window;
+import glutils.utils.JobSystem;
+
+/**
+ * Clustered forward lighting, lights any amount of point lights at a cost depending only on the lights near each fragment. The camera's view frustum is split into
+ * a grid of clusters (screen tiles times depth slices, the slices growing exponentially with the distance), every point light is assigned to the clusters its
+ * influence radius (see PointLight.getInfluenceRadius()) reaches, and fragment shaders only evaluate the lights of their own cluster.
+ *
+ * The assignment runs on the CPU, in parallel over lights and depth slices if a JobSystem is given. The light data, the offset and count of every cluster's
+ * light list and the light lists themselves are uploaded through three buffer textures, which shaders generated with ShaderBuilder.F_SIMPLE_CLUSTERED_LIGHT
+ * or ShaderBuilder.F_SPECULAR_CLUSTERED_LIGHT read. Unlike the forward WorldLight modes, the clustered modes multiply the light color by the intensity
+ */
+public class ClusteredLighting {
+	
+	/** Texels of light data per light: position and radius, color, intensity and falloff */
+	public static final int TEXELS_PER_LIGHT = 3;
+	
+	/** Writes the TEXELS_PER_LIGHT texels of a light at the given float offset without moving the buffer position, an infinite radius is written as Float.MAX_VALUE */
+	static void writeLightData(FloatBuffer data, int offset, PointLight l, float radius) {
+		data.put(offset, l.pos.x).put(offset + 1, l.pos.y).put(offset + 2, l.pos.z).put(offset + 3, Float.isInfinite(radius) ? Float.MAX_VALUE : radius);
+		data.put(offset + 4, l.color.x).put(offset + 5, l.color.y).put(offset + 6, l.color.z).put(offset + 7, l.color.w);
+		data.put(offset + 8, l.intensity).put(offset + 9, l.falloffLinear).put(offset + 10, l.falloffQuadratic).put(offset + 11, 0);
+	}
+	
+	private int dimX, dimY, dimZ; // Cluster grid size
+	private JobSystem jobs; // Runs the assignment in parallel, null to run it on the calling thread
+	private TextureBuffer lightBuffer, gridBuffer, indexBuffer;
+	private FloatBuffer lightData; // TEXELS_PER_LIGHT RGBA texels per light
+	private IntBuffer gridData; // Offset into the index list and light count of every cluster
+	private IntBuffer indexData; // Light indices of all clusters
+	private int maxIndices; // Most texels of a buffer texture
+	
+	// Projection the cluster bounds were computed for
+	private Matrix4f clusterProj;
+	private boolean boundsValid;
+	private float near, far; // View distance of the near and far plane
+	private boolean logDepth; // Whether the depth slices grow exponentially (perspective) or are equally thick (orthographic)
+	private float depthScale, depthBias; // Slice = log(distance) (or distance) * scale + bias
+	private float[] clusterBounds; // View space min xyz and max xyz of every cluster
+	
+	// Per light data, written in parallel
+	private PointLight[] lights;
+	private float[] spheres; // View space center and radius of every light
+	private int[] ranges; // First and last cluster on x, y and z of every light, an empty range if the light reaches no cluster
+	
+	// Per depth slice data, written in parallel
+	private int[][] slicePairs; // Cluster within the slice and light of every overlap found
+	private int[][] sliceOffsets; // Start of every cluster's lights in sliceIndices, plus the total at the end
+	private int[][] sliceIndices; // Light indices of the slice sorted by cluster
+	
+	private Matrix4f view, proj; // Camera matrices of the current update
+	private Vector3f dims; // Cluster grid size, as uniform value
+	private Vector2f depth, screenSize; // Uniform values
+	private int screenWidth, screenHeight;
+	private int lightCount, indexCount, dropped;
+	
+	private final JobSystem.RangeBody prepareBody = this::prepareLights;
+	private final JobSystem.RangeBody assignBody = this::assignSlices;
+	
+	/**
+	 * Creates clustered lighting
+	 * @param dimX amount of cluster columns on the screen
+	 * @param dimY amount of cluster rows on the screen
+	 * @param dimZ amount of depth slices
+	 * @param jobs job system used to assign lights in parallel, null to assign them on the calling thread
+	 */
+	public ClusteredLighting(int dimX, int dimY, int dimZ, JobSystem jobs) {
+		this.dimX = dimX;
+		this.dimY = dimY;
+		this.dimZ = dimZ;
+		this.jobs = jobs;
+		lightBuffer = new TextureBuffer(GL33.GL_RGBA32F);
+		gridBuffer = new TextureBuffer(GL33.GL_RG32UI);
+		indexBuffer = new TextureBuffer(GL33.GL_R32UI);
+		maxIndices = TextureBuffer.getMaxTexels();
+		lightData = MemoryUtil.memAllocFloat(TEXELS_PER_LIGHT * 4 * 64);
+		gridData = MemoryUtil.memAllocInt(dimX * dimY * dimZ * 2);
+		indexData = MemoryUtil.memAllocInt(1024);
+		clusterProj = new Matrix4f();
+		clusterBounds = new float[dimX * dimY * dimZ * 6];
+		lights = new PointLight[64];
+		spheres = new float[64 * 4];
+		ranges = new int[64 * 6];
+		slicePairs = new int[dimZ][];
+		sliceOffsets = new int[dimZ][];
+		sliceIndices = new int[dimZ][];
+		for(int k = 0; k < dimZ; k++) {
+			slicePairs[k] = new int[64];
+			sliceOffsets[k] = new int[dimX * dimY + 1];
+			sliceIndices[k] = new int[32];
+		}
+		view = new Matrix4f();
+		proj = new Matrix4f();
+		dims = new Vector3f(dimX, dimY, dimZ);
+		depth = new Vector2f();
+		screenSize = new Vector2f();
+	}
+	
+	/** Creates clustered lighting with a 16x9x24 cluster grid */
+	public ClusteredLighting(JobSystem jobs) {
+		this(16, 9, 24, jobs);
+	}
+	
+	/**
+	 * Assigns the point lights to the clusters of the camera's view and uploads the result, has to be called from the GL thread every frame the camera or lights change
+	 * @param pointLights the lights
+	 * @param camera the camera
+	 * @param screenWidth width of the viewport rendered to
+	 * @param screenHeight height of the viewport rendered to
+	 */
+	public void update(List<PointLight> pointLights, Camera camera, int screenWidth, int screenHeight) {
+		camera.updateView();
+		view.set(camera.view);
+		proj.set(camera.proj);
+		this.screenWidth = screenWidth;
+		this.screenHeight = screenHeight;
+		if(!boundsValid || !proj.equals(clusterProj)) computeClusterBounds();
+		
+		lightCount = pointLights.size();
+		if(lights.length < lightCount) {
+			int capacity = Math.max(lightCount, lights.length * 2);
+			lights = new PointLight[capacity];
+			spheres = new float[capacity * 4];
+			ranges = new int[capacity * 6];
+		}
+		for(int i = 0; i < lightCount; i++) lights[i] = pointLights.get(i);
+		int floats = Math.max(1, lightCount) * TEXELS_PER_LIGHT * 4;
+		if(lightData.capacity() < floats) lightData = MemoryUtil.memRealloc(lightData, Math.max(floats, lightData.capacity() * 2));
+		// The last upload shrank the limit, absolute puts are checked against it
+		lightData.clear();
+		
+		if(jobs != null) {
+			jobs.run(jobs.parallelFor(lightCount, 256, prepareBody));
+			jobs.run(jobs.parallelFor(dimZ, 1, assignBody));
+		} else {
+			prepareLights(0, lightCount);
+			assignSlices(0, dimZ);
+		}
+		Arrays.fill(lights, 0, lightCount, null);
+		merge();
+		
+		lightData.position(0).limit(floats);
+		if(lightCount == 0) MemoryUtil.memSet(lightData, 0);
+		lightBuffer.update(lightData);
+		gridData.position(0).limit(dimX * dimY * dimZ * 2);
+		gridBuffer.update(gridData);
+		indexData.position(0).limit(Math.max(1, indexCount));
+		indexBuffer.update(indexData);
+	}
+	/** Assigns the point lights of the world light to the clusters, see update(List, Camera, int, int) */
+	public void update(WorldLight worldLight, Camera camera, int screenWidth, int screenHeight) {
+		update(worldLight.pointLights, camera, screenWidth, screenHeight);
+	}
+	
+	/** Computes the view space bounds of every cluster and the depth slicing for the current projection */
+	private void computeClusterBounds() {
+		clusterProj.set(proj);
+		boundsValid = true;
+		Matrix4f inv = new Matrix4f(proj).invert();
+		Vector3f a = new Vector3f(), b = new Vector3f();
+		inv.transformProject(0, 0, -1, a);
+		inv.transformProject(0, 0, 1, b);
+		near = -a.z;
+		far = -b.z;
+		logDepth = (proj.m23() != 0 && near > 0);
+		if(logDepth) {
+			depthScale = (float)(dimZ / Math.log(far / near));
+			depthBias = (float)(-Math.log(near) * depthScale);
+		} else {
+			depthScale = dimZ / (far - near);
+			depthBias = -near * depthScale;
+		}
+		
+		// Rays through the tile corners, given by their points on the near and far plane
+		int cornersX = dimX + 1, cornersY = dimY + 1;
+		float[] rays = new float[cornersX * cornersY * 6];
+		for(int j = 0; j < cornersY; j++) {
+			for(int i = 0; i < cornersX; i++) {
+				float x = -1 + 2f * i / dimX, y = -1 + 2f * j / dimY;
+				int r = (i + j * cornersX) * 6;
+				inv.transformProject(x, y, -1, a);
+				inv.transformProject(x, y, 1, b);
+				rays[r] = a.x; rays[r + 1] = a.y; rays[r + 2] = a.z;
+				rays[r + 3] = b.x; rays[r + 4] = b.y; rays[r + 5] = b.z;
+			}
+		}
+		for(int k = 0; k < dimZ; k++) {
+			float d0 = sliceDepth(k), d1 = sliceDepth(k + 1);
+			for(int j = 0; j < dimY; j++) {
+				for(int i = 0; i < dimX; i++) {
+					int c = ((k * dimY + j) * dimX + i) * 6;
+					float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+					for(int corner = 0; corner < 8; corner++) {
+						int r = ((i + (corner & 1)) + (j + ((corner >> 1) & 1)) * cornersX) * 6;
+						float d = ((corner & 4) == 0 ? d0 : d1);
+						// Point of the ray at the view distance d
+						float t = (-d - rays[r + 2]) / (rays[r + 5] - rays[r + 2]);
+						float x = rays[r] + t * (rays[r + 3] - rays[r]), y = rays[r + 1] + t * (rays[r + 4] - rays[r + 1]);
+						minX = Math.min(minX, x);
+						maxX = Math.max(maxX, x);
+						minY = Math.min(minY, y);
+						maxY = Math.max(maxY, y);
+					}
+					clusterBounds[c] = minX;
+					clusterBounds[c + 1] = minY;
+					clusterBounds[c + 2] = -d1;
+					clusterBounds[c + 3] = maxX;
+					clusterBounds[c + 4] = maxY;
+					clusterBounds[c + 5] = -d0;
+				}
+			}
+		}
+	}
+	
+	/** Returns the view distance where the depth slice starts */
+	private float sliceDepth(int slice) {
+		if(slice == 0) return near;
+		if(slice == dimZ) return far;
+		return (float)(logDepth ? Math.exp((slice - depthBias) / depthScale) : (slice - depthBias) / depthScale);
+	}
+	/** Returns the depth slice containing the view distance */
+	private int slice(float distance) {
+		float s = (float)(logDepth ? Math.log(distance) : distance) * depthScale + depthBias;
+		return Math.max(0, Math.min(dimZ - 1, (int)s));
+	}
+	/** Returns the tile containing the normalized device coordinate */
+	private static int tile(float ndc, int dim) {
+		return Math.max(0, Math.min(dim - 1, (int)Math.floor((ndc + 1) * 0.5f * dim)));
+	}
+	
+	/** Computes the view space sphere and the cluster range of the lights from index from to index to and writes their light data */
+	private void prepareLights(int from, int to) {
+		for(int i = from; i < to; i++) {
+			PointLight l = lights[i];
+			Vector3f p = l.pos;
+			float r = l.getInfluenceRadius();
+			writeLightData(lightData, i * TEXELS_PER_LIGHT * 4, l, r);
+			
+			float vx = view.m00() * p.x + view.m10() * p.y + view.m20() * p.z + view.m30();
+			float vy = view.m01() * p.x + view.m11() * p.y + view.m21() * p.z + view.m31();
+			float vz = view.m02() * p.x + view.m12() * p.y + view.m22() * p.z + view.m32();
+			int s = i * 4, o = i * 6;
+			spheres[s] = vx;
+			spheres[s + 1] = vy;
+			spheres[s + 2] = vz;
+			spheres[s + 3] = r;
+			if(r <= 0 || -vz + r < near || -vz - r > far) {
+				ranges[o + 4] = 1;
+				ranges[o + 5] = 0;
+				continue;
+			}
+			if(Float.isInfinite(r)) {
+				ranges[o] = 0; ranges[o + 1] = dimX - 1;
+				ranges[o + 2] = 0; ranges[o + 3] = dimY - 1;
+				ranges[o + 4] = 0; ranges[o + 5] = dimZ - 1;
+				continue;
+			}
+			ranges[o + 4] = slice(Math.max(-vz - r, near));
+			ranges[o + 5] = slice(Math.min(-vz + r, far));
+			// Screen rectangle of the sphere's bounding box cut off at the near plane, its corners are the extremes of the projection
+			float zMin = vz - r, zMax = Math.min(vz + r, -near);
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+			for(int corner = 0; corner < 8; corner++) {
+				float x = ((corner & 1) == 0 ? vx - r : vx + r), y = ((corner & 2) == 0 ? vy - r : vy + r), z = ((corner & 4) == 0 ? zMin : zMax);
+				float w = proj.m03() * x + proj.m13() * y + proj.m23() * z + proj.m33();
+				float nx = (proj.m00() * x + proj.m10() * y + proj.m20() * z + proj.m30()) / w;
+				float ny = (proj.m01() * x + proj.m11() * y + proj.m21() * z + proj.m31()) / w;
+				minX = Math.min(minX, nx);
+				maxX = Math.max(maxX, nx);
+				minY = Math.min(minY, ny);
+				maxY = Math.max(maxY, ny);
+			}
+			ranges[o] = tile(minX, dimX);
+			ranges[o + 1] = tile(maxX, dimX);
+			ranges[o + 2] = tile(minY, dimY);
+			ranges[o + 3] = tile(maxY, dimY);
+		}
+	}
+	
+	/** Finds the lights of every cluster in the depth slices from index from to index to and sorts them by cluster */
+	private void assignSlices(int from, int to) {
+		int perSlice = dimX * dimY;
+		for(int k = from; k < to; k++) {
+			int[] pairs = slicePairs[k];
+			int[] offsets = sliceOffsets[k];
+			Arrays.fill(offsets, 0);
+			int n = 0;
+			for(int l = 0; l < lightCount; l++) {
+				int o = l * 6;
+				if(k < ranges[o + 4] || k > ranges[o + 5]) continue;
+				int s = l * 4;
+				float cx = spheres[s], cy = spheres[s + 1], cz = spheres[s + 2], r = spheres[s + 3];
+				boolean infinite = Float.isInfinite(r);
+				for(int y = ranges[o + 2]; y <= ranges[o + 3]; y++) {
+					for(int x = ranges[o]; x <= ranges[o + 1]; x++) {
+						int c = x + y * dimX;
+						if(!infinite) {
+							// Squared distance from the sphere center to the cluster box
+							int b = (k * perSlice + c) * 6;
+							float dx = Math.max(0, Math.max(clusterBounds[b] - cx, cx - clusterBounds[b + 3]));
+							float dy = Math.max(0, Math.max(clusterBounds[b + 1] - cy, cy - clusterBounds[b + 4]));
+							float dz = Math.max(0, Math.max(clusterBounds[b + 2] - cz, cz - clusterBounds[b + 5]));
+							if(dx * dx + dy * dy + dz * dz > r * r) continue;
+						}
+						if(n + 2 > pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+						pairs[n++] = c;
+						pairs[n++] = l;
+						offsets[c + 1]++;
+					}
+				}
+			}
+			slicePairs[k] = pairs;
+			// Counting sort of the lights by cluster
+			for(int c = 0; c < perSlice; c++) offsets[c + 1] += offsets[c];
+			int count = n / 2;
+			int[] indices = sliceIndices[k];
+			if(indices.length < count) indices = sliceIndices[k] = new int[Math.max(count, indices.length * 2)];
+			// offsets[c + 1] holds the end of cluster c's list, filling backwards leaves it at the start of the list
+			for(int p = 0; p < n; p += 2) indices[--offsets[pairs[p] + 1]] = pairs[p + 1];
+			System.arraycopy(offsets, 1, offsets, 0, perSlice);
+			offsets[perSlice] = count;
+		}
+	}
+	
+	/** Combines the sorted light lists of all slices into the index list and writes every cluster's offset and count */
+	private void merge() {
+		int perSlice = dimX * dimY;
+		int total = 0;
+		for(int k = 0; k < dimZ; k++) total += sliceOffsets[k][perSlice];
+		total = Math.min(total, maxIndices);
+		if(indexData.capacity() < total) indexData = MemoryUtil.memRealloc(indexData, Math.max(total, indexData.capacity() * 2));
+		indexData.clear();
+		int base = 0;
+		dropped = 0;
+		for(int k = 0; k < dimZ; k++) {
+			int[] offsets = sliceOffsets[k];
+			int count = offsets[perSlice];
+			int keep = Math.min(count, total - base); // Lists past the buffer texture size limit are cut off
+			dropped += count - keep;
+			for(int c = 0; c < perSlice; c++) {
+				int start = offsets[c];
+				int lights = Math.max(0, Math.min(offsets[c + 1], keep) - start);
+				int g = (k * perSlice + c) * 2;
+				gridData.put(g, base + start);
+				gridData.put(g + 1, lights);
+			}
+			indexData.put(base, sliceIndices[k], 0, keep);
+			base += keep;
+		}
+		indexCount = base;
+		if(dropped > 0) Window.print("ClusteredLighting: " + dropped + " cluster light entries exceed the buffer texture size and were dropped", true, true, true, 0);
+	}
+	
+	/**
+	 * Binds the cluster data and sets the uniforms read by the clustered ShaderBuilder modes
+	 * @param shader the shader, has to be in use
+	 * @param firstTextureSlot first of the three texture slots the buffer textures are bound to
+	 */
+	public void use(Shader shader, int firstTextureSlot) {
+		lightBuffer.use("lightData", firstTextureSlot, shader);
+		gridBuffer.use("clusterGrid", firstTextureSlot + 1, shader);
+		indexBuffer.use("clusterIndices", firstTextureSlot + 2, shader);
+		shader.setUniformVec3("clusterDims", dims);
+		shader.setUniformVec2("clusterDepth", depth.set(depthScale, depthBias));
+		shader.setUniformInt("clusterLogDepth", logDepth ? 1 : 0);
+		shader.setUniformVec2("clusterScreenSize", screenSize.set(screenWidth, screenHeight));
+		shader.setUniformMat4("view", false, view);
+	}
+	/** Applies the directional and ambient light of the world light and binds the cluster data to texture slots 2 to 4 (after the material's textures) */
+	public void use(Shader shader, WorldLight worldLight) {
+		worldLight.directionalLight.use(shader);
+		shader.setUniformVec4("ambientLight", worldLight.ambientLight);
+		use(shader, 2);
+	}
+	
+	/** Returns the amount of lights in the last update */
+	public int getLightCount() {
+		return lightCount;
+	}
+	/** Returns the amount of light list entries of all clusters in the last update, divided by the cluster count this is the average lights per cluster */
+	public int getIndexCount() {
+		return indexCount;
+	}
+	/** Returns the amount of clusters */
+	public int getClusterCount() {
+		return dimX * dimY * dimZ;
+	}
+	/** Returns the offset into the index list of a cluster, for debugging */
+	public int getClusterOffset(int x, int y, int z) {
+		return gridData.get((x + dimX * (y + dimY * z)) * 2);
+	}
+	/** Returns the amount of lights assigned to a cluster, for debugging */
+	public int getClusterLightCount(int x, int y, int z) {
+		return gridData.get((x + dimX * (y + dimY * z)) * 2 + 1);
+	}
+	
+	/** Disposes of the buffer textures and the data buffers */
+	public void dispose() {
+		lightBuffer.dispose();
+		gridBuffer.dispose();
+		indexBuffer.dispose();
+		MemoryUtil.memFree(lightData);
+		MemoryUtil.memFree(gridData);
+		MemoryUtil.memFree(indexData);
+	}
+
+}
@@ -0,0 +1,371 @@
+package glutils.advanced;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+import glutils.core.Camera;
+import glutils.core.Framebuffer;
+import glutils.core.Frustum;
+import glutils.core.GLState;
+import glutils.core.RenderStats;
+import glutils.core.Shader;
+import glutils.core.ShaderBuilder;
+import glutils.core.TextureBuffer;
+import glutils.core.VertexArray;
+
+/**
+ * Deferred shading, an alternative to the forward light modes for scenes with many point lights or much overdraw. Opaque models are rendered once into a G-buffer
+ * (albedo and specular strength, normal and shininess, depth) with shaders generated by ShaderBuilder.F_SIMPLE_DEFERRED or F_SPECULAR_DEFERRED. The lighting then
+ * runs once per visible pixel: a full-screen pass adds the ambient and directional light, and every point light in view draws a sphere of its influence radius
+ * (all of them in one instanced draw call), which only shades the pixels in front of its back faces. Lighting cost scales with the pixels each light covers, not with
+ * the scene's overdraw. Transparent models can't be stored in the G-buffer, they are rendered afterwards with forward shaders into the lit image, depth tested against
+ * the opaque scene. Like the clustered modes, point lights are multiplied by their intensity.
+ *
+ * A frame is rendered by beginGeometry(), drawing the opaque models, light(), beginForward(), drawing the transparent models, end() and present() (or sampling getOutput())
+ */
+public class DeferredRenderer {
+	
+	/** G-buffer attachment holding the albedo in rgb and the specular strength in a */
+	public static final int GBUFFER_ALBEDO = 0;
+	/** G-buffer attachment holding the world space normal in rgb and the shininess in a */
+	public static final int GBUFFER_NORMAL = 1;
+	
+	// Light pass modes of the light shader
+	private static final int MODE_DIRECTIONAL = 0; // Full-screen ambient and directional light
+	private static final int MODE_VOLUME = 1; // Point lights drawn as spheres
+	private static final int MODE_SCREEN = 2; // Point lights without falloff, drawn full-screen
+	
+	private Framebuffer gBuffer; // Albedo, normals and the sampled depth
+	private Framebuffer output; // Lit image, its depth is copied from the G-buffer
+	private Shader lightShader; // Shades all light passes
+	private VertexArray volume; // Polyhedron enclosing the unit sphere, its VAO also draws the full-screen triangle
+	private TextureBuffer lightBuffer;
+	private FloatBuffer lightData; // ClusteredLighting.TEXELS_PER_LIGHT RGBA texels per light, volume lights first, full-screen lights after
+	
+	private Frustum frustum;
+	private Matrix4f viewProj, invViewProj;
+	private Vector3f eye;
+	private Vector2f screenSize;
+	private int volumeLights, screenLights; // Lights drawn as volumes and full-screen in the last light pass
+	
+	/** Creates a deferred renderer with buffers of the given size */
+	public DeferredRenderer(int width, int height) {
+		gBuffer = new Framebuffer(width, height, new int[] {GL33.GL_RGBA8, GL33.GL_RGBA16F}, true);
+		output = new Framebuffer(width, height, new int[] {GL33.GL_RGBA16F}, false);
+		lightShader = new Shader(genLightVertexShader(), genLightFragmentShader());
+		volume = createVolume();
+		lightBuffer = new TextureBuffer(GL33.GL_RGBA32F);
+		lightData = MemoryUtil.memAllocFloat(ClusteredLighting.TEXELS_PER_LIGHT * 4 * 64);
+		frustum = new Frustum();
+		viewProj = new Matrix4f();
+		invViewProj = new Matrix4f();
+		eye = new Vector3f();
+		screenSize = new Vector2f(width, height);
+	}
+	
+	/** Binds and clears the G-buffer and sets up depth testing for rendering the opaque models with the deferred shaders */
+	public void beginGeometry() {
+		gBuffer.clear(0, 0, 0, 0);
+		GL33.glEnable(GL33.GL_DEPTH_TEST);
+		GL33.glDepthFunc(GL33.GL_LESS);
+		GL33.glDepthMask(true);
+		GL33.glDisable(GL33.GL_BLEND);
+	}
+	
+	/**
+	 * Lights the G-buffer into the output image
+	 * @param worldLight ambient, directional and point lights
+	 * @param camera the camera the G-buffer was rendered with
+	 */
+	public void light(WorldLight worldLight, Camera camera) {
+		viewProj.set(camera.getViewProj());
+		invViewProj.set(camera.getInvViewProj());
+		camera.getViewPos(eye);
+		uploadLights(worldLight.pointLights);
+		
+		// The depth is copied so that the light volumes and transparent models are tested against it without sampling an attached texture
+		GLState.bindFramebuffer(GL33.GL_READ_FRAMEBUFFER, gBuffer.framebufferID);
+		GLState.bindFramebuffer(GL33.GL_DRAW_FRAMEBUFFER, output.framebufferID);
+		int w = output.getWidth(), h = output.getHeight();
+		GL33.glBlitFramebuffer(0, 0, w, h, 0, 0, w, h, GL33.GL_DEPTH_BUFFER_BIT | GL33.GL_STENCIL_BUFFER_BIT, GL33.GL_NEAREST);
+		output.bind();
+		GL33.glClearColor(0, 0, 0, 0);
+		GL33.glClear(GL33.GL_COLOR_BUFFER_BIT);
+		
+		lightShader.use();
+		gBuffer.getColorTexture(GBUFFER_ALBEDO).use("gAlbedo", 0, lightShader);
+		gBuffer.getColorTexture(GBUFFER_NORMAL).use("gNormal", 1, lightShader);
+		gBuffer.getDepthTexture().use("gDepth", 2, lightShader);
+		lightBuffer.use("lightData", 3, lightShader);
+		worldLight.directionalLight.use(lightShader);
+		lightShader.setUniformVec4("ambientLight", worldLight.ambientLight);
+		lightShader.setUniformMat4("viewProj", false, viewProj);
+		lightShader.setUniformMat4("invViewProj", false, invViewProj);
+		lightShader.setUniformVec3("camPos", eye);
+		lightShader.setUniformVec2("screenSize", screenSize.set(w, h));
+		
+		GL33.glDisable(GL33.GL_DEPTH_TEST);
+		GL33.glDepthMask(false);
+		GL33.glDisable(GL33.GL_BLEND);
+		lightShader.setUniformInt("mode", MODE_DIRECTIONAL);
+		lightShader.setUniformInt("lightOffset", 0);
+		drawScreen(1);
+		
+		GL33.glEnable(GL33.GL_BLEND);
+		GL33.glBlendFunc(GL33.GL_ONE, GL33.GL_ONE);
+		if(screenLights > 0) {
+			lightShader.setUniformInt("mode", MODE_SCREEN);
+			lightShader.setUniformInt("lightOffset", volumeLights);
+			drawScreen(screenLights);
+		}
+		if(volumeLights > 0) {
+			// Back faces behind the scene's surface shade it, which also works with the camera inside a volume, depth clamping keeps volumes past the far plane
+			GL33.glEnable(GL33.GL_DEPTH_TEST);
+			GL33.glDepthFunc(GL33.GL_GEQUAL);
+			GL33.glEnable(GL33.GL_CULL_FACE);
+			GL33.glCullFace(GL33.GL_FRONT);
+			GL33.glEnable(GL33.GL_DEPTH_CLAMP);
+			lightShader.setUniformInt("mode", MODE_VOLUME);
+			lightShader.setUniformInt("lightOffset", 0);
+			volume.renderInstanced(volumeLights);
+			GL33.glDisable(GL33.GL_DEPTH_CLAMP);
+			GL33.glCullFace(GL33.GL_BACK);
+			GL33.glDisable(GL33.GL_CULL_FACE);
+			GL33.glDepthFunc(GL33.GL_LESS);
+		}
+		GL33.glDisable(GL33.GL_BLEND);
+	}
+	
+	/** Writes the data of the point lights in view into the light buffer texture, lights with an infinite influence radius after the others */
+	private void uploadLights(List<PointLight> pointLights) {
+		frustum.set(viewProj);
+		int count = pointLights.size();
+		int texel = ClusteredLighting.TEXELS_PER_LIGHT * 4; // Floats per light
+		int floats = Math.max(1, count) * texel;
+		if(lightData.capacity() < floats) lightData = MemoryUtil.memRealloc(lightData, Math.max(floats, lightData.capacity() * 2));
+		lightData.clear();
+		volumeLights = screenLights = 0;
+		int screenStart = count; // Full-screen lights are written backwards from the end and moved behind the volume lights
+		for(int i = 0; i < count; i++) {
+			PointLight l = pointLights.get(i);
+			float r = l.getInfluenceRadius();
+			if(r <= 0 || !frustum.testSphere(l.pos.x, l.pos.y, l.pos.z, r)) continue;
+			boolean screen = Float.isInfinite(r);
+			int t = (screen ? --screenStart : volumeLights++) * texel;
+			ClusteredLighting.writeLightData(lightData, t, l, r);
+		}
+		screenLights = count - screenStart;
+		if(screenStart != volumeLights) {
+			for(int i = 0; i < screenLights * texel; i++) lightData.put(volumeLights * texel + i, lightData.get(screenStart * texel + i));
+		}
+		lightData.position(0).limit(Math.max(1, volumeLights + screenLights) * texel);
+		lightBuffer.update(lightData);
+	}
+	
+	/** Draws the full-screen triangle the given amount of times */
+	private void drawScreen(int instances) {
+		GLState.bindVertexArray(volume.batchID);
+		GL33.glDrawArraysInstanced(GL33.GL_TRIANGLES, 0, 3, instances);
+		RenderStats.countDraw(3L * instances, instances);
+	}
+	
+	/** Binds the output image for rendering transparent models with forward shaders, blended and depth tested against the opaque scene without writing depth */
+	public void beginForward() {
+		output.bind();
+		GL33.glEnable(GL33.GL_DEPTH_TEST);
+		GL33.glDepthFunc(GL33.GL_LESS);
+		GL33.glDepthMask(false);
+		GL33.glEnable(GL33.GL_BLEND);
+		GL33.glBlendFunc(GL33.GL_SRC_ALPHA, GL33.GL_ONE_MINUS_SRC_ALPHA);
+	}
+	
+	/** Restores depth writes and disables blending after the forward pass */
+	public void end() {
+		GL33.glDepthMask(true);
+		GL33.glDisable(GL33.GL_BLEND);
+	}
+	
+	/** Copies the output image into the window's default framebuffer of the given size, scaling it if the sizes differ */
+	public void present(int width, int height) {
+		GLState.bindFramebuffer(GL33.GL_READ_FRAMEBUFFER, output.framebufferID);
+		GLState.bindFramebuffer(GL33.GL_DRAW_FRAMEBUFFER, 0);
+		int w = output.getWidth(), h = output.getHeight();
+		GL33.glBlitFramebuffer(0, 0, w, h, 0, 0, width, height, GL33.GL_COLOR_BUFFER_BIT, (w == width && h == height ? GL33.GL_NEAREST : GL33.GL_LINEAR));
+		Framebuffer.bindDefault(width, height);
+	}
+	
+	/** Recreates the buffers with a new size */
+	public void resize(int width, int height) {
+		gBuffer.resize(width, height);
+		output.resize(width, height);
+	}
+	
+	/** Returns the G-buffer, see GBUFFER_ALBEDO and GBUFFER_NORMAL for the color attachments, its depth texture holds the scene depth */
+	public Framebuffer getGBuffer() {
+		return gBuffer;
+	}
+	/** Returns the framebuffer holding the lit image */
+	public Framebuffer getOutput() {
+		return output;
+	}
+	/** Returns the amount of point lights drawn as light volumes in the last light pass */
+	public int getVolumeLightCount() {
+		return volumeLights;
+	}
+	/** Returns the amount of point lights without falloff drawn full-screen in the last light pass */
+	public int getScreenLightCount() {
+		return screenLights;
+	}
+	
+	/** Disposes of the buffers, the shader and the light volume */
+	public void dispose() {
+		gBuffer.dispose();
+		output.dispose();
+		lightShader.dispose();
+		volume.dispose();
+		lightBuffer.dispose();
+		MemoryUtil.memFree(lightData);
+	}
+	
+	/** Creates a subdivided icosahedron with outward facing triangles, scaled so that its faces enclose the unit sphere */
+	private static VertexArray createVolume() {
+		float t = (float)((1 + Math.sqrt(5)) / 2);
+		float[][] v = {{-1, t, 0}, {1, t, 0}, {-1, -t, 0}, {1, -t, 0}, {0, -1, t}, {0, 1, t}, {0, -1, -t}, {0, 1, -t}, {t, 0, -1}, {t, 0, 1}, {-t, 0, -1}, {-t, 0, 1}};
+		int[] f = {0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11, 1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8,
+				3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9, 4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1};
+		Vector3f a = new Vector3f(), b = new Vector3f(), c = new Vector3f(), ab = new Vector3f(), bc = new Vector3f(), ca = new Vector3f();
+		float[] verts = new float[f.length * 4 * 3];
+		int n = 0;
+		for(int i = 0; i < f.length; i += 3) {
+			a.set(v[f[i]][0], v[f[i]][1], v[f[i]][2]).normalize();
+			b.set(v[f[i + 1]][0], v[f[i + 1]][1], v[f[i + 1]][2]).normalize();
+			c.set(v[f[i + 2]][0], v[f[i + 2]][1], v[f[i + 2]][2]).normalize();
+			a.add(b, ab).normalize();
+			b.add(c, bc).normalize();
+			c.add(a, ca).normalize();
+			n = putTriangle(verts, n, a, ab, ca);
+			n = putTriangle(verts, n, ab, b, bc);
+			n = putTriangle(verts, n, ca, bc, c);
+			n = putTriangle(verts, n, ab, bc, ca);
+		}
+		// Scale by the smallest distance of a face from the center, so the faces lie outside the unit sphere
+		float inradius = Float.MAX_VALUE;
+		Vector3f e1 = new Vector3f(), e2 = new Vector3f();
+		for(int i = 0; i < verts.length; i += 9) {
+			e1.set(verts[i + 3] - verts[i], verts[i + 4] - verts[i + 1], verts[i + 5] - verts[i + 2]);
+			e2.set(verts[i + 6] - verts[i], verts[i + 7] - verts[i + 1], verts[i + 8] - verts[i + 2]);
+			e1.cross(e2).normalize();
+			inradius = Math.min(inradius, e1.x * verts[i] + e1.y * verts[i + 1] + e1.z * verts[i + 2]);
+		}
+		for(int i = 0; i < verts.length; i++) verts[i] /= inradius;
+		VertexArray vao = new VertexArray();
+		vao.addBuffer("verts", verts, 0, 3);
+		return vao;
+	}
+	/** Writes a triangle into the vertex array, flipped if needed so it faces away from the center, and returns the next index */
+	private static int putTriangle(float[] verts, int n, Vector3f a, Vector3f b, Vector3f c) {
+		float nx = (b.y - a.y) * (c.z - a.z) - (b.z - a.z) * (c.y - a.y);
+		float ny = (b.z - a.z) * (c.x - a.x) - (b.x - a.x) * (c.z - a.z);
+		float nz = (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+		boolean flip = nx * a.x + ny * a.y + nz * a.z < 0;
+		Vector3f second = (flip ? c : b), third = (flip ? b : c);
+		verts[n] = a.x; verts[n + 1] = a.y; verts[n + 2] = a.z;
+		verts[n + 3] = second.x; verts[n + 4] = second.y; verts[n + 5] = second.z;
+		verts[n + 6] = third.x; verts[n + 7] = third.y; verts[n + 8] = third.z;
+		return n + 9;
+	}
+	
+	/** Generates the vertex shader of the light passes, placing light volumes or the full-screen triangle */
+	private static String genLightVertexShader() {
+		ShaderBuilder glsl = new ShaderBuilder(330);
+		glsl.addLayoutVariable(0, "in", "vec3", "vPos");
+		glsl.addVariableMediumQualifier("flat out", "int", "light");
+		glsl.addLineBreak();
+		glsl.addVariableMediumQualifier("uniform", "samplerBuffer", "lightData");
+		glsl.addVariableMediumQualifier("uniform", "mat4", "viewProj");
+		glsl.addVariableMediumQualifier("uniform", "int", "mode");
+		glsl.addVariableMediumQualifier("uniform", "int", "lightOffset");
+		glsl.addLineBreak();
+		glsl.openMainFunction();
+		glsl.addCode("light = (gl_InstanceID + lightOffset) * " + ClusteredLighting.TEXELS_PER_LIGHT + ";", false, true);
+		glsl.openIf("mode == " + MODE_VOLUME);
+		glsl.addVariableMediumAssignment("vec4", "positionRadius", "texelFetch(lightData, light)");
+		glsl.addCode("gl_Position = viewProj * vec4(positionRadius.xyz + vPos * positionRadius.w, 1.0);", false, true);
+		glsl.closeIf(true);
+		glsl.addComment("Triangle covering the screen");
+		glsl.addCode("gl_Position = vec4(vec2((gl_VertexID << 1) & 2, gl_VertexID & 2) * 2.0 - 1.0, 0.0, 1.0);", false, true);
+		glsl.closeIf(false);
+		glsl.closeFunction();
+		return glsl.build();
+	}
+	
+	/** Generates the fragment shader of the light passes, shading the G-buffer pixel with the directional light or a point light */
+	private static String genLightFragmentShader() {
+		ShaderBuilder glsl = new ShaderBuilder(330);
+		glsl.openStruct("DirectionalLight");
+		glsl.addVariableShort("vec3", "direction");
+		glsl.addVariableShort("vec4", "color");
+		glsl.addVariableShort("float", "intensity");
+		glsl.closeStruct();
+		glsl.addLineBreak();
+		glsl.addVariableMediumQualifier("flat in", "int", "light");
+		glsl.addVariableMediumQualifier("out", "vec4", "FragColor");
+		glsl.addLineBreak();
+		glsl.addVariableMediumQualifier("uniform", "sampler2D", "gAlbedo");
+		glsl.addVariableMediumQualifier("uniform", "sampler2D", "gNormal");
+		glsl.addVariableMediumQualifier("uniform", "sampler2D", "gDepth");
+		glsl.addVariableMediumQualifier("uniform", "samplerBuffer", "lightData");
+		glsl.addVariableMediumQualifier("uniform", "DirectionalLight", "directionalLight");
+		glsl.addVariableMediumQualifier("uniform", "vec4", "ambientLight");
+		glsl.addVariableMediumQualifier("uniform", "mat4", "invViewProj");
+		glsl.addVariableMediumQualifier("uniform", "vec3", "camPos");
+		glsl.addVariableMediumQualifier("uniform", "vec2", "screenSize");
+		glsl.addVariableMediumQualifier("uniform", "int", "mode");
+		glsl.addLineBreak();
+		glsl.addCode("void main () {\n"
+				+ "	// Reading the G-buffer and reconstructing the world position from the depth\n"
+				+ "	vec2 uv = gl_FragCoord.xy / screenSize;\n"
+				+ "	float depth = texture(gDepth, uv).r;\n"
+				+ "	if(depth == 1.0) discard;\n"
+				+ "	vec4 albedo = texture(gAlbedo, uv);\n"
+				+ "	vec4 normalShininess = texture(gNormal, uv);\n"
+				+ "	vec3 normal = normalShininess.xyz;\n"
+				+ "	vec4 p = invViewProj * vec4(vec3(uv, depth) * 2.0 - 1.0, 1.0);\n"
+				+ "	vec3 pos = p.xyz / p.w;\n"
+				+ "	\n"
+				+ "	vec3 lightDir;\n"
+				+ "	vec4 color, base;\n"
+				+ "	if(mode == " + MODE_DIRECTIONAL + ") \n"
+				+ "	{\n"
+				+ "		lightDir = normalize(directionalLight.direction);\n"
+				+ "		color = directionalLight.color;\n"
+				+ "		base = vec4((ambientLight * albedo).rgb, 1.0);\n"
+				+ "	}\n"
+				+ "	else \n"
+				+ "	{\n"
+				+ "		// Calculating attenuation (falloff), the light ends at its influence radius\n"
+				+ "		vec4 positionRadius = texelFetch(lightData, light);\n"
+				+ "		vec4 params = texelFetch(lightData, light + 2);\n"
+				+ "		vec3 toLight = positionRadius.xyz - pos;\n"
+				+ "		float distance = length(toLight);\n"
+				+ "		if(distance > positionRadius.w) discard;\n"
+				+ "		lightDir = -toLight / max(distance, 0.0001);\n"
+				+ "		color = texelFetch(lightData, light + 1) * (params.x / (1.0 + params.y * distance + params.z * (distance * distance)));\n"
+				+ "		base = vec4((color * albedo).rgb, 0.0);\n"
+				+ "	}\n"
+				+ "	\n"
+				+ "	// Calculating diffuse and specular multipliers\n"
+				+ "	float diffuseValue = max(dot(-lightDir, normal), 0.0);\n"
+				+ "	float specularValue = pow(max(dot(normalize(camPos - pos), reflect(lightDir, normal)), 0.0), normalShininess.a);\n"
+				+ "	FragColor = base + vec4(color.rgb * (albedo.rgb * diffuseValue + albedo.a * specularValue), 0.0);\n"
+				+ "}", true, true);
+		return glsl.build();
+	}
+
+}
@@ -0,0 +1,668 @@
+package glutils.advanced;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Vector3f;
+
+import glutils.core.Frustum;
+
+/**
+ * Dynamic bounding volume hierarchy over models, answering frustum, sphere, box and ray queries in logarithmic time.
+ * Models are added as leaves holding their world space bounding box enlarged by a margin, so that small movements don't change the tree. Moved models are either
+ * reinserted one by one with update(), which keeps the tree balanced through rotations, or all leaves are refitted at once with refit(). build() creates a new tree
+ * from a list of models using the surface area heuristic, which gives the best query performance for static scenes.
+ * Nodes are stored in arrays per component and queries use a reusable stack, so neither updates nor queries allocate. Queries are not thread safe
+ */
+public class DynamicBVH {
+	
+	/** Index of a node that doesn't exist */
+	private static final int NULL = -1;
+	/** Amount of bins per axis used by the surface area heuristic in build() */
+	private static final int BINS = 16;
+	
+	// Node bounds
+	private float[] minX, minY, minZ, maxX, maxY, maxZ;
+	// Node links, the left child of free nodes links to the next free node
+	private int[] parent, left, right;
+	private int[] height; // Height of the subtree, 0 for leaves
+	private Model[] models; // Model of every leaf, null for internal nodes
+	private int capacity; // Amount of allocated nodes
+	private int root; // Root node
+	private int freeList; // First free node
+	private int leafCount; // Amount of leaves
+	
+	private float margin; // Amount the leaf bounds get enlarged by on every side
+	
+	// Reused between calls to avoid allocations
+	private int[] stack;
+	private Vector3f boundsMin, boundsMax;
+	private int[] buildLeaves;
+	private float[] binMinX, binMinY, binMinZ, binMaxX, binMaxY, binMaxZ;
+	private int[] binCounts;
+	private float[] rightAreas;
+	private float lastHitDistance;
+	
+	/**
+	 * Creates an empty bounding volume hierarchy
+	 * @param capacity amount of nodes to allocate, grows automatically, a tree of n models uses 2n - 1 nodes
+	 * @param margin amount the bounds of every model get enlarged by on every side, models moving less than that are not reinserted by update()
+	 */
+	public DynamicBVH(int capacity, float margin) {
+		this.margin = margin;
+		this.capacity = 0;
+		freeList = NULL;
+		allocate(Math.max(16, capacity));
+		root = NULL;
+		leafCount = 0;
+		stack = new int[64];
+		boundsMin = new Vector3f();
+		boundsMax = new Vector3f();
+		binMinX = new float[BINS]; binMinY = new float[BINS]; binMinZ = new float[BINS];
+		binMaxX = new float[BINS]; binMaxY = new float[BINS]; binMaxZ = new float[BINS];
+		binCounts = new int[BINS];
+		rightAreas = new float[BINS];
+		lastHitDistance = Float.POSITIVE_INFINITY;
+	}
+	/** Creates an empty bounding volume hierarchy with space for 1024 nodes and a margin of 0.1 */
+	public DynamicBVH() {
+		this(1024, 0.1f);
+	}
+	
+	/** Adds a model to the tree and returns its proxy id, used to update and remove it */
+	public int add(Model model) {
+		int leaf = allocateNode();
+		models[leaf] = model;
+		height[leaf] = 0;
+		setLeafBounds(leaf);
+		insertLeaf(leaf);
+		leafCount++;
+		return leaf;
+	}
+	
+	/** Removes the model with the given proxy id from the tree */
+	public void remove(int proxy) {
+		removeLeaf(proxy);
+		freeNode(proxy);
+		leafCount--;
+	}
+	
+	/** Updates the bounds of a moved model, reinserting it only if it left its enlarged bounds, returns whether it was reinserted */
+	public boolean update(int proxy) {
+		models[proxy].getWorldBounds(boundsMin, boundsMax);
+		if(minX[proxy] <= boundsMin.x && minY[proxy] <= boundsMin.y && minZ[proxy] <= boundsMin.z
+				&& maxX[proxy] >= boundsMax.x && maxY[proxy] >= boundsMax.y && maxZ[proxy] >= boundsMax.z) {
+			return false;
+		}
+		removeLeaf(proxy);
+		setLeafBounds(proxy);
+		insertLeaf(proxy);
+		return true;
+	}
+	
+	/** Recomputes the bounds of all leaves from their models and refits all internal nodes without changing the tree, cheaper than update() when most models moved */
+	public void refit() {
+		if(root == NULL) return;
+		// Nodes are pushed before their children, so walking the visit order backwards handles children before their parents
+		int[] order = ensureBuildLeaves(2 * leafCount);
+		int count = 0;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int n = stack[--top];
+			order[count++] = n;
+			if(height[n] > 0) {
+				top = push(top, left[n]);
+				top = push(top, right[n]);
+			}
+		}
+		for(int i = count - 1; i >= 0; i--) {
+			int n = order[i];
+			if(height[n] == 0) setLeafBounds(n); else setUnion(n, left[n], right[n]);
+		}
+	}
+	
+	/** Removes all models and builds a new tree holding the given models using the surface area heuristic, proxy ids of the models are stored in proxies if it isn't null */
+	public void build(List<Model> models, int[] proxies) {
+		clear();
+		int n = models.size();
+		if(n == 0) return;
+		if(capacity < 2 * n) allocate(2 * n);
+		int[] leaves = ensureBuildLeaves(n);
+		for(int i = 0; i < n; i++) {
+			int leaf = allocateNode();
+			this.models[leaf] = models.get(i);
+			height[leaf] = 0;
+			setLeafBounds(leaf);
+			leaves[i] = leaf;
+			if(proxies != null) proxies[i] = leaf;
+		}
+		leafCount = n;
+		root = buildRange(leaves, 0, n);
+		parent[root] = NULL;
+	}
+	
+	/** Removes all models from the tree */
+	public void clear() {
+		Arrays.fill(models, 0, capacity, null);
+		// Linking all nodes into the free list
+		for(int i = 0; i < capacity - 1; i++) {
+			left[i] = i + 1;
+			height[i] = -1;
+		}
+		left[capacity - 1] = NULL;
+		height[capacity - 1] = -1;
+		freeList = 0;
+		root = NULL;
+		leafCount = 0;
+	}
+	
+	/** Adds all models whose bounds are at least partially inside the frustum to the list, returns the amount of models added */
+	public int queryFrustum(Frustum frustum, List<Model> result) {
+		if(root == NULL) return 0;
+		float[] planes = frustum.planes;
+		int found = 0;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int n = stack[--top];
+			boolean inside = (n < 0);
+			if(inside) {
+				n = ~n;
+			} else {
+				// Classifying the node against all planes, nodes fully inside don't need their children tested
+				inside = true;
+				boolean outside = false;
+				for(int p = 0; p < 24; p += 4) {
+					float a = planes[p], b = planes[p+1], c = planes[p+2], d = planes[p+3];
+					if(a * (a < 0 ? minX[n] : maxX[n]) + b * (b < 0 ? minY[n] : maxY[n]) + c * (c < 0 ? minZ[n] : maxZ[n]) + d < 0) {
+						outside = true;
+						break;
+					}
+					if(a * (a < 0 ? maxX[n] : minX[n]) + b * (b < 0 ? maxY[n] : minY[n]) + c * (c < 0 ? maxZ[n] : minZ[n]) + d < 0) inside = false;
+				}
+				if(outside) continue;
+			}
+			if(height[n] == 0) {
+				result.add(models[n]);
+				found++;
+			} else {
+				top = push(top, inside ? ~left[n] : left[n]);
+				top = push(top, inside ? ~right[n] : right[n]);
+			}
+		}
+		return found;
+	}
+	
+	/** Adds all models whose bounds touch the sphere to the list, returns the amount of models added */
+	public int querySphere(float x, float y, float z, float radius, List<Model> result) {
+		if(root == NULL) return 0;
+		float r2 = radius * radius;
+		int found = 0;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int n = stack[--top];
+			// Squared distance from the sphere center to the box
+			float dx = Math.max(0, Math.max(minX[n] - x, x - maxX[n]));
+			float dy = Math.max(0, Math.max(minY[n] - y, y - maxY[n]));
+			float dz = Math.max(0, Math.max(minZ[n] - z, z - maxZ[n]));
+			if(dx * dx + dy * dy + dz * dz > r2) continue;
+			if(height[n] == 0) {
+				result.add(models[n]);
+				found++;
+			} else {
+				top = push(top, left[n]);
+				top = push(top, right[n]);
+			}
+		}
+		return found;
+	}
+	
+	/** Adds all models whose bounds overlap the box to the list, returns the amount of models added */
+	public int queryAabb(float boxMinX, float boxMinY, float boxMinZ, float boxMaxX, float boxMaxY, float boxMaxZ, List<Model> result) {
+		if(root == NULL) return 0;
+		int found = 0;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int n = stack[--top];
+			if(minX[n] > boxMaxX || maxX[n] < boxMinX || minY[n] > boxMaxY || maxY[n] < boxMinY || minZ[n] > boxMaxZ || maxZ[n] < boxMinZ) continue;
+			if(height[n] == 0) {
+				result.add(models[n]);
+				found++;
+			} else {
+				top = push(top, left[n]);
+				top = push(top, right[n]);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Finds the closest model hit by a ray, returns null if no model was hit. The distance of the hit is returned by getLastHitDistance()
+	 * @param origin start of the ray
+	 * @param direction direction of the ray, distances are in multiples of its length
+	 * @param maxDistance maximum distance of a hit
+	 * @param test exact intersection test run on models whose bounds are hit, returns the hit distance or a negative value if the model isn't hit, null to use the bounds
+	 */
+	public Model raycast(Vector3f origin, Vector3f direction, float maxDistance, RayTest test) {
+		lastHitDistance = Float.POSITIVE_INFINITY;
+		if(root == NULL) return null;
+		float ox = origin.x, oy = origin.y, oz = origin.z;
+		float ix = 1 / direction.x, iy = 1 / direction.y, iz = 1 / direction.z;
+		float closest = maxDistance;
+		Model hit = null;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int n = stack[--top];
+			float t = slab(n, ox, oy, oz, ix, iy, iz, closest);
+			if(t < 0) continue;
+			if(height[n] == 0) {
+				float d = (test == null ? t : test.intersect(models[n], closest));
+				if(d >= 0 && d <= closest) {
+					closest = d;
+					hit = models[n];
+				}
+			} else {
+				// Pushing the farther child first so that the nearer one is visited first and shrinks the search distance
+				int l = left[n], r = right[n];
+				float tl = slab(l, ox, oy, oz, ix, iy, iz, closest), tr = slab(r, ox, oy, oz, ix, iy, iz, closest);
+				if(tl >= 0 && tr >= 0) {
+					top = push(top, tl < tr ? r : l);
+					top = push(top, tl < tr ? l : r);
+				} else if(tl >= 0) {
+					top = push(top, l);
+				} else if(tr >= 0) {
+					top = push(top, r);
+				}
+			}
+		}
+		if(hit != null) lastHitDistance = closest;
+		return hit;
+	}
+	/** Finds the closest model whose bounds are hit by a ray, returns null if no model was hit */
+	public Model raycast(Vector3f origin, Vector3f direction, float maxDistance) {
+		return raycast(origin, direction, maxDistance, null);
+	}
+	
+	/** Returns the distance of the hit found by the last raycast, infinity if nothing was hit */
+	public float getLastHitDistance() {
+		return lastHitDistance;
+	}
+	
+	/** Returns the model with the given proxy id */
+	public Model getModel(int proxy) {
+		return models[proxy];
+	}
+	/** Returns the amount of models in the tree */
+	public int size() {
+		return leafCount;
+	}
+	/** Returns the height of the tree, 0 for a tree holding a single model */
+	public int getHeight() {
+		return (root == NULL ? 0 : height[root]);
+	}
+	/** Returns the margin the bounds of every model get enlarged by */
+	public float getMargin() {
+		return margin;
+	}
+	
+	/** Exact intersection test between a ray and a model */
+	public interface RayTest {
+		/** Returns the distance at which the ray hits the model, or a negative value if the model isn't hit within maxDistance */
+		float intersect(Model model, float maxDistance);
+	}
+	
+	/** Returns the distance at which a ray enters the node bounds, 0 if it starts inside, -1 if it misses them within maxDistance */
+	private float slab(int n, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance) {
+		float near = 0, far = maxDistance;
+		// A zero direction component has an infinite inverse, which times an origin lying on a bound gives NaN, so such axes only check that the origin is within the slab
+		if(Float.isInfinite(ix)) {
+			if(ox < minX[n] || ox > maxX[n]) return -1;
+		} else {
+			float t1 = (minX[n] - ox) * ix, t2 = (maxX[n] - ox) * ix;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		if(Float.isInfinite(iy)) {
+			if(oy < minY[n] || oy > maxY[n]) return -1;
+		} else {
+			float t1 = (minY[n] - oy) * iy, t2 = (maxY[n] - oy) * iy;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		if(Float.isInfinite(iz)) {
+			if(oz < minZ[n] || oz > maxZ[n]) return -1;
+		} else {
+			float t1 = (minZ[n] - oz) * iz, t2 = (maxZ[n] - oz) * iz;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		return (near <= far ? near : -1);
+	}
+	
+	/** Inserts a leaf next to the sibling which increases the surface area of the tree the least, then rebalances the path up to the root */
+	private void insertLeaf(int leaf) {
+		if(root == NULL) {
+			root = leaf;
+			parent[leaf] = NULL;
+			return;
+		}
+		// Walking down while the cost of pushing the leaf further down is lower than making it a sibling of the current node
+		int index = root;
+		while(height[index] > 0) {
+			int l = left[index], r = right[index];
+			float area = area(index);
+			float combinedArea = unionArea(index, leaf);
+			float cost = 2 * combinedArea;
+			float inheritance = 2 * (combinedArea - area);
+			float costLeft = unionArea(l, leaf) + inheritance - (height[l] == 0 ? 0 : area(l));
+			float costRight = unionArea(r, leaf) + inheritance - (height[r] == 0 ? 0 : area(r));
+			if(cost < costLeft && cost < costRight) break;
+			index = (costLeft < costRight ? l : r);
+		}
+		int sibling = index;
+		
+		// New parent of the leaf and its sibling
+		int oldParent = parent[sibling];
+		int newParent = allocateNode();
+		models[newParent] = null;
+		parent[newParent] = oldParent;
+		left[newParent] = sibling;
+		right[newParent] = leaf;
+		height[newParent] = height[sibling] + 1;
+		setUnion(newParent, sibling, leaf);
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+		if(oldParent == NULL) root = newParent;
+		else if(left[oldParent] == sibling) left[oldParent] = newParent;
+		else right[oldParent] = newParent;
+		
+		fixUpwards(parent[leaf]);
+	}
+	
+	/** Removes a leaf from the tree, its parent gets replaced by its sibling */
+	private void removeLeaf(int leaf) {
+		if(leaf == root) {
+			root = NULL;
+			return;
+		}
+		int p = parent[leaf];
+		int grandParent = parent[p];
+		int sibling = (left[p] == leaf ? right[p] : left[p]);
+		if(grandParent == NULL) {
+			root = sibling;
+			parent[sibling] = NULL;
+			freeNode(p);
+			return;
+		}
+		if(left[grandParent] == p) left[grandParent] = sibling; else right[grandParent] = sibling;
+		parent[sibling] = grandParent;
+		freeNode(p);
+		fixUpwards(grandParent);
+	}
+	
+	/** Rebalances and refits all nodes from the given one up to the root */
+	private void fixUpwards(int index) {
+		while(index != NULL) {
+			index = balance(index);
+			int l = left[index], r = right[index];
+			height[index] = 1 + Math.max(height[l], height[r]);
+			setUnion(index, l, r);
+			index = parent[index];
+		}
+	}
+	
+	/** Rotates the child of node a with the larger subtree up if the heights of a's children differ by more than 1, returns the node now at a's position */
+	private int balance(int a) {
+		if(height[a] < 2) return a;
+		int b = left[a], c = right[a];
+		int difference = height[c] - height[b];
+		if(difference > 1) {
+			// Rotating c up
+			int f = left[c], g = right[c];
+			left[c] = a;
+			parent[c] = parent[a];
+			parent[a] = c;
+			replaceChild(parent[c], a, c);
+			if(height[f] > height[g]) {
+				right[c] = f;
+				right[a] = g;
+				parent[g] = a;
+				setUnion(a, b, g);
+				setUnion(c, a, f);
+				height[a] = 1 + Math.max(height[b], height[g]);
+				height[c] = 1 + Math.max(height[a], height[f]);
+			} else {
+				right[c] = g;
+				right[a] = f;
+				parent[f] = a;
+				setUnion(a, b, f);
+				setUnion(c, a, g);
+				height[a] = 1 + Math.max(height[b], height[f]);
+				height[c] = 1 + Math.max(height[a], height[g]);
+			}
+			return c;
+		}
+		if(difference < -1) {
+			// Rotating b up
+			int d = left[b], e = right[b];
+			left[b] = a;
+			parent[b] = parent[a];
+			parent[a] = b;
+			replaceChild(parent[b], a, b);
+			if(height[d] > height[e]) {
+				right[b] = d;
+				left[a] = e;
+				parent[e] = a;
+				setUnion(a, c, e);
+				setUnion(b, a, d);
+				height[a] = 1 + Math.max(height[c], height[e]);
+				height[b] = 1 + Math.max(height[a], height[d]);
+			} else {
+				right[b] = e;
+				left[a] = d;
+				parent[d] = a;
+				setUnion(a, c, d);
+				setUnion(b, a, e);
+				height[a] = 1 + Math.max(height[c], height[d]);
+				height[b] = 1 + Math.max(height[a], height[e]);
+			}
+			return b;
+		}
+		return a;
+	}
+	
+	/** Makes newChild take the place of oldChild under the parent, or the root if parent is NULL */
+	private void replaceChild(int p, int oldChild, int newChild) {
+		if(p == NULL) root = newChild;
+		else if(left[p] == oldChild) left[p] = newChild;
+		else right[p] = newChild;
+	}
+	
+	/** Builds a subtree over the leaves in the range using a binned surface area heuristic, returns its root */
+	private int buildRange(int[] leaves, int from, int to) {
+		if(to - from == 1) return leaves[from];
+		
+		// Bounds of the leaf centers, the bins are spread over them
+		float cMinX = Float.MAX_VALUE, cMinY = Float.MAX_VALUE, cMinZ = Float.MAX_VALUE;
+		float cMaxX = -Float.MAX_VALUE, cMaxY = -Float.MAX_VALUE, cMaxZ = -Float.MAX_VALUE;
+		for(int i = from; i < to; i++) {
+			int l = leaves[i];
+			float x = minX[l] + maxX[l], y = minY[l] + maxY[l], z = minZ[l] + maxZ[l];
+			cMinX = Math.min(cMinX, x); cMaxX = Math.max(cMaxX, x);
+			cMinY = Math.min(cMinY, y); cMaxY = Math.max(cMaxY, y);
+			cMinZ = Math.min(cMinZ, z); cMaxZ = Math.max(cMaxZ, z);
+		}
+		
+		// Finding the cheapest split over all axes
+		int bestAxis = -1, bestBin = 0;
+		float bestCost = Float.MAX_VALUE;
+		for(int axis = 0; axis < 3; axis++) {
+			float cMin = (axis == 0 ? cMinX : axis == 1 ? cMinY : cMinZ), cMax = (axis == 0 ? cMaxX : axis == 1 ? cMaxY : cMaxZ);
+			if(cMax - cMin <= 0) continue;
+			float scale = BINS / (cMax - cMin);
+			resetBins();
+			for(int i = from; i < to; i++) {
+				int l = leaves[i];
+				int bin = Math.min(BINS - 1, (int)((center(l, axis) - cMin) * scale));
+				binCounts[bin]++;
+				binMinX[bin] = Math.min(binMinX[bin], minX[l]); binMaxX[bin] = Math.max(binMaxX[bin], maxX[l]);
+				binMinY[bin] = Math.min(binMinY[bin], minY[l]); binMaxY[bin] = Math.max(binMaxY[bin], maxY[l]);
+				binMinZ[bin] = Math.min(binMinZ[bin], minZ[l]); binMaxZ[bin] = Math.max(binMaxZ[bin], maxZ[l]);
+			}
+			// Sweeping from the right to get the area times count of every right side, then from the left evaluating every split
+			float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE, z0 = Float.MAX_VALUE, x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE, z1 = -Float.MAX_VALUE;
+			int count = 0;
+			for(int b = BINS - 1; b > 0; b--) {
+				count += binCounts[b];
+				x0 = Math.min(x0, binMinX[b]); y0 = Math.min(y0, binMinY[b]); z0 = Math.min(z0, binMinZ[b]);
+				x1 = Math.max(x1, binMaxX[b]); y1 = Math.max(y1, binMaxY[b]); z1 = Math.max(z1, binMaxZ[b]);
+				rightAreas[b] = (count == 0 ? 0 : count * area(x0, y0, z0, x1, y1, z1));
+			}
+			x0 = Float.MAX_VALUE; y0 = Float.MAX_VALUE; z0 = Float.MAX_VALUE; x1 = -Float.MAX_VALUE; y1 = -Float.MAX_VALUE; z1 = -Float.MAX_VALUE;
+			count = 0;
+			for(int b = 0; b < BINS - 1; b++) {
+				count += binCounts[b];
+				x0 = Math.min(x0, binMinX[b]); y0 = Math.min(y0, binMinY[b]); z0 = Math.min(z0, binMinZ[b]);
+				x1 = Math.max(x1, binMaxX[b]); y1 = Math.max(y1, binMaxY[b]); z1 = Math.max(z1, binMaxZ[b]);
+				if(count == 0 || count == to - from) continue;
+				float cost = count * area(x0, y0, z0, x1, y1, z1) + rightAreas[b + 1];
+				if(cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+		
+		// Partitioning the leaves, falling back to an even split if all centers are in the same place
+		int mid;
+		if(bestAxis == -1) {
+			mid = (from + to) / 2;
+		} else {
+			float cMin = (bestAxis == 0 ? cMinX : bestAxis == 1 ? cMinY : cMinZ), cMax = (bestAxis == 0 ? cMaxX : bestAxis == 1 ? cMaxY : cMaxZ);
+			float scale = BINS / (cMax - cMin);
+			mid = from;
+			for(int i = from; i < to; i++) {
+				int l = leaves[i];
+				if(Math.min(BINS - 1, (int)((center(l, bestAxis) - cMin) * scale)) <= bestBin) {
+					leaves[i] = leaves[mid];
+					leaves[mid++] = l;
+				}
+			}
+		}
+		
+		int node = allocateNode();
+		models[node] = null;
+		int l = buildRange(leaves, from, mid), r = buildRange(leaves, mid, to);
+		left[node] = l;
+		right[node] = r;
+		parent[l] = node;
+		parent[r] = node;
+		height[node] = 1 + Math.max(height[l], height[r]);
+		setUnion(node, l, r);
+		return node;
+	}
+	
+	/** Resets the bins of the surface area heuristic */
+	private void resetBins() {
+		Arrays.fill(binCounts, 0);
+		Arrays.fill(binMinX, Float.MAX_VALUE); Arrays.fill(binMinY, Float.MAX_VALUE); Arrays.fill(binMinZ, Float.MAX_VALUE);
+		Arrays.fill(binMaxX, -Float.MAX_VALUE); Arrays.fill(binMaxY, -Float.MAX_VALUE); Arrays.fill(binMaxZ, -Float.MAX_VALUE);
+	}
+	
+	/** Returns twice the center of a node along the axis */
+	private float center(int n, int axis) {
+		return (axis == 0 ? minX[n] + maxX[n] : axis == 1 ? minY[n] + maxY[n] : minZ[n] + maxZ[n]);
+	}
+	
+	/** Sets the bounds of a leaf to the world bounds of its model enlarged by the margin */
+	private void setLeafBounds(int leaf) {
+		models[leaf].getWorldBounds(boundsMin, boundsMax);
+		minX[leaf] = boundsMin.x - margin; minY[leaf] = boundsMin.y - margin; minZ[leaf] = boundsMin.z - margin;
+		maxX[leaf] = boundsMax.x + margin; maxY[leaf] = boundsMax.y + margin; maxZ[leaf] = boundsMax.z + margin;
+	}
+	
+	/** Sets the bounds of node n to the union of the bounds of nodes a and b */
+	private void setUnion(int n, int a, int b) {
+		minX[n] = Math.min(minX[a], minX[b]); minY[n] = Math.min(minY[a], minY[b]); minZ[n] = Math.min(minZ[a], minZ[b]);
+		maxX[n] = Math.max(maxX[a], maxX[b]); maxY[n] = Math.max(maxY[a], maxY[b]); maxZ[n] = Math.max(maxZ[a], maxZ[b]);
+	}
+	
+	/** Returns the surface area of a node's bounds */
+	private float area(int n) {
+		return area(minX[n], minY[n], minZ[n], maxX[n], maxY[n], maxZ[n]);
+	}
+	/** Returns the surface area of the union of two nodes' bounds */
+	private float unionArea(int a, int b) {
+		return area(Math.min(minX[a], minX[b]), Math.min(minY[a], minY[b]), Math.min(minZ[a], minZ[b]), Math.max(maxX[a], maxX[b]), Math.max(maxY[a], maxY[b]), Math.max(maxZ[a], maxZ[b]));
+	}
+	/** Returns the surface area of a box */
+	private static float area(float x0, float y0, float z0, float x1, float y1, float z1) {
+		float dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+	
+	/** Pushes a node onto the traversal stack, growing it if necessary, returns the new stack size */
+	private int push(int top, int node) {
+		if(top == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[top] = node;
+		return top + 1;
+	}
+	
+	/** Returns the scratch array used by build() and refit(), grown to at least the given size */
+	private int[] ensureBuildLeaves(int size) {
+		if(buildLeaves == null || buildLeaves.length < size) buildLeaves = new int[Math.max(size, 16)];
+		return buildLeaves;
+	}
+	
+	/** Takes a node from the free list, growing the node arrays if it is empty */
+	private int allocateNode() {
+		if(freeList == NULL) allocate(capacity * 2);
+		int n = freeList;
+		freeList = left[n];
+		parent[n] = NULL;
+		left[n] = NULL;
+		right[n] = NULL;
+		height[n] = 0;
+		return n;
+	}
+	
+	/** Puts a node back onto the free list */
+	private void freeNode(int n) {
+		models[n] = null;
+		height[n] = -1;
+		left[n] = freeList;
+		freeList = n;
+	}
+	
+	/** Grows the node arrays to the given capacity, adding the new nodes to the free list */
+	private void allocate(int newCapacity) {
+		int old = capacity;
+		minX = grow(minX, newCapacity); minY = grow(minY, newCapacity); minZ = grow(minZ, newCapacity);
+		maxX = grow(maxX, newCapacity); maxY = grow(maxY, newCapacity); maxZ = grow(maxZ, newCapacity);
+		parent = grow(parent, newCapacity);
+		left = grow(left, newCapacity);
+		right = grow(right, newCapacity);
+		height = grow(height, newCapacity);
+		models = (models == null ? new Model[newCapacity] : Arrays.copyOf(models, newCapacity));
+		for(int i = old; i < newCapacity - 1; i++) {
+			left[i] = i + 1;
+			height[i] = -1;
+		}
+		left[newCapacity - 1] = freeList;
+		height[newCapacity - 1] = -1;
+		freeList = old;
+		capacity = newCapacity;
+	}
+	private static float[] grow(float[] array, int capacity) {
+		return (array == null ? new float[capacity] : Arrays.copyOf(array, capacity));
+	}
+	private static int[] grow(int[] array, int capacity) {
+		return (array == null ? new int[capacity] : Arrays.copyOf(array, capacity));
+	}
+
+}
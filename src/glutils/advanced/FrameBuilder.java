@@ -0,0 +1,92 @@
+package glutils.advanced;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import glutils.core.Shader;
+import glutils.utils.JobSystem;
+import glutils.utils.JobSystem.Job;
+
+/**
+ * Builds the draw list of a frame on worker threads. The models are split into batches, every batch runs the packet builder (visibility, light selection, sort keys) into
+ * its own render queue, the queues are then merged and sorted by another job, so that the GL thread only has to replay the finished draw list
+ */
+public class FrameBuilder {
+	
+	private JobSystem jobs;
+	private int batchSize; // Amount of models handled by one batch
+	private RenderQueue[] batchQueues; // Queue of every batch, reused between frames
+	private RenderQueue queue; // Merged and sorted draw list of the frame
+	
+	/**
+	 * Creates a frame builder
+	 * @param jobs job system to run the batches on
+	 * @param batchSize amount of models handled by one batch, small enough to keep all workers busy, big enough to keep the scheduling overhead low
+	 */
+	public FrameBuilder(JobSystem jobs, int batchSize) {
+		this.jobs = jobs;
+		this.batchSize = Math.max(1, batchSize);
+		batchQueues = new RenderQueue[0];
+		queue = new RenderQueue();
+	}
+	/** Creates a frame builder handling 64 models per batch */
+	public FrameBuilder(JobSystem jobs) {
+		this(jobs, 64);
+	}
+	
+	/**
+	 * Starts building the draw list of the frame on the worker threads and returns the job finishing it, the models must not change until render() returns
+	 * @param models models of the frame
+	 * @param builder called for every model on a worker thread, submits the model's draws to the given queue or nothing if it isn't visible
+	 * @param dependencies jobs producing data the builder reads (camera, transform or light updates), building starts once they have finished
+	 */
+	public Job build(List<Model> models, PacketBuilder builder, Job ... dependencies) {
+		int count = models.size();
+		int batches = (count + batchSize - 1) / batchSize;
+		if(batchQueues.length < batches) {
+			RenderQueue[] grown = new RenderQueue[batches];
+			System.arraycopy(batchQueues, 0, grown, 0, batchQueues.length);
+			for(int i = batchQueues.length; i < batches; i++) grown[i] = new RenderQueue(batchSize);
+			batchQueues = grown;
+		}
+		
+		// Batches only touch their own queue, ranges always start on a batch boundary
+		Job packets = jobs.parallelFor(count, batchSize, (from, to) -> {
+			RenderQueue out = batchQueues[from / batchSize];
+			for(int i = from; i < to; i++) builder.build(models.get(i), out);
+		}).dependsOn(dependencies);
+		Job merge = jobs.create(() -> {
+			queue.clear();
+			for(int i = 0; i < batches; i++) {
+				queue.addAll(batchQueues[i]);
+				batchQueues[i].clear();
+			}
+			queue.sort();
+		}).dependsOn(packets);
+		jobs.start(packets, merge);
+		return merge;
+	}
+	
+	/**
+	 * Waits for the draw list built by the given job and renders it, has to be called from the GL thread
+	 * @param build the job returned by build()
+	 * @param shaderSetup called after every shader switch to set per-shader uniforms, can be null
+	 */
+	public void render(Job build, Consumer<Shader> shaderSetup) {
+		build.await();
+		queue.execute(shaderSetup);
+		queue.clear();
+	}
+	
+	/** Returns the amount of draws in the draw list of the last built frame, valid until render() returns */
+	public int getDrawCount() {
+		return queue.size();
+	}
+	
+	/** Builds the draw packets of one model, called from worker threads so it must not call OpenGL */
+	public interface PacketBuilder {
+		/** Submits the draws of the model to the queue, submits nothing if the model isn't visible */
+		void build(Model model, RenderQueue out);
+	}
+
+}
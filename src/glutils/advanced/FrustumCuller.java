@@ -0,0 +1,114 @@
+package glutils.advanced;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Vector3f;
+
+import glutils.core.Frustum;
+
+/**
+ * Culls models outside of the camera frustum. The world space bounding spheres and boxes of all models are kept in separate arrays per component (structure of arrays),
+ * so that the plane tests run as simple loops over primitive arrays, one plane at a time.
+ * A model is visible if both its bounding sphere and its bounding box are at least partially inside the frustum
+ */
+public class FrustumCuller {
+	
+	private List<Model> models; // Models of the last update
+	private int count; // Amount of models of the last update
+	
+	// World space bounding spheres
+	private float[] centerX, centerY, centerZ, radius;
+	// World space bounding boxes
+	private float[] minX, minY, minZ, maxX, maxY, maxZ;
+	// Smallest signed distance to any plane of the last cull, negative if outside
+	private float[] sphereDistance, boxDistance;
+	
+	// Reused between updates to avoid allocations
+	private Vector3f localMin, localMax, localCenter;
+	
+	/** Creates a frustum culler with space for the given amount of models, grows automatically */
+	public FrustumCuller(int capacity) {
+		allocate(Math.max(1, capacity));
+		localMin = new Vector3f();
+		localMax = new Vector3f();
+		localCenter = new Vector3f();
+	}
+	/** Creates a frustum culler with space for 1024 models, grows automatically */
+	public FrustumCuller() {
+		this(1024);
+	}
+	
+	/** Computes the world space bounds of all models from their mesh bounds and transform, has to be called after models were moved and before cull() */
+	public void update(List<Model> models) {
+		this.models = models;
+		count = models.size();
+		if(centerX.length < count) allocate(Math.max(count, centerX.length * 2));
+		for(int i = 0; i < count; i++) {
+			Model m = models.get(i);
+			radius[i] = m.getWorldSphere(localCenter);
+			centerX[i] = localCenter.x;
+			centerY[i] = localCenter.y;
+			centerZ[i] = localCenter.z;
+			m.getWorldBounds(localMin, localMax);
+			minX[i] = localMin.x; maxX[i] = localMax.x;
+			minY[i] = localMin.y; maxY[i] = localMax.y;
+			minZ[i] = localMin.z; maxZ[i] = localMax.z;
+		}
+	}
+	
+	/**
+	 * Tests the bounds of the last update against the frustum and adds the visible models to the visible list, in the order of the updated list
+	 * @param frustum the camera frustum
+	 * @param visible list the visible models get added to, it is not cleared
+	 * @return the amount of visible models
+	 */
+	public int cull(Frustum frustum, List<Model> visible) {
+		int n = count;
+		Arrays.fill(sphereDistance, 0, n, Float.MAX_VALUE);
+		Arrays.fill(boxDistance, 0, n, Float.MAX_VALUE);
+		float[] planes = frustum.planes;
+		for(int p = 0; p < 24; p += 4) {
+			float a = planes[p], b = planes[p+1], c = planes[p+2], d = planes[p+3];
+			// The box corner farthest along the plane normal is the same for all boxes
+			float[] bx = (a < 0 ? minX : maxX), by = (b < 0 ? minY : maxY), bz = (c < 0 ? minZ : maxZ);
+			for(int i = 0; i < n; i++) {
+				sphereDistance[i] = Math.min(sphereDistance[i], a * centerX[i] + b * centerY[i] + c * centerZ[i] + d + radius[i]);
+			}
+			for(int i = 0; i < n; i++) {
+				boxDistance[i] = Math.min(boxDistance[i], a * bx[i] + b * by[i] + c * bz[i] + d);
+			}
+		}
+		int visibleCount = 0;
+		for(int i = 0; i < n; i++) {
+			if(sphereDistance[i] >= 0 && boxDistance[i] >= 0) {
+				visible.add(models.get(i));
+				visibleCount++;
+			}
+		}
+		return visibleCount;
+	}
+	
+	/** Returns whether the model at the given index of the updated list was visible in the last cull */
+	public boolean isVisible(int index) {
+		return sphereDistance[index] >= 0 && boxDistance[index] >= 0;
+	}
+	
+	/** Returns the amount of models of the last update */
+	public int getModelCount() {
+		return count;
+	}
+	
+	/** Allocates the bounds arrays, keeping the old content */
+	private void allocate(int capacity) {
+		centerX = grow(centerX, capacity); centerY = grow(centerY, capacity); centerZ = grow(centerZ, capacity); radius = grow(radius, capacity);
+		minX = grow(minX, capacity); minY = grow(minY, capacity); minZ = grow(minZ, capacity);
+		maxX = grow(maxX, capacity); maxY = grow(maxY, capacity); maxZ = grow(maxZ, capacity);
+		sphereDistance = grow(sphereDistance, capacity);
+		boxDistance = grow(boxDistance, capacity);
+	}
+	private static float[] grow(float[] array, int capacity) {
+		return (array == null ? new float[capacity] : Arrays.copyOf(array, capacity));
+	}
+
+}
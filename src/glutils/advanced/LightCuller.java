@@ -0,0 +1,287 @@
+package glutils.advanced;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Vector3f;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+import glutils.core.Shader;
+import glutils.core.ShaderBuilder;
+import glutils.core.TextureBuffer;
+
+/**
+ * Assigns every model only the point lights which reach it. Each light's influence radius (see PointLight.getInfluenceRadius()) makes a sphere, the spheres
+ * are put into a bounding volume hierarchy once per update, and a model's world bounds query the hierarchy for the spheres they touch. If more lights reach
+ * a model than it can use, the strongest ones at the model's bounds are kept. Lights without falloff reach every model.
+ *
+ * The lights of a model can be applied to the forward world light shaders through WorldLight.use(Shader, Model, LightCuller), or as a compact index list into
+ * a light buffer texture shared by all draws with the ShaderBuilder.F_SIMPLE_OBJECT_LIGHT and F_SPECULAR_OBJECT_LIGHT modes (bind() once per shader, use() per draw).
+ * update() has to finish before any model is assigned, assign() can then be called from any amount of threads (e.g. FrameBuilder's packet builders)
+ */
+public class LightCuller {
+	
+	/** Most lights in a leaf of the hierarchy */
+	private static final int LEAF_SIZE = 4;
+	
+	// Lights of the last update, infinite radius lights are only in the global list
+	private PointLight[] lights;
+	private float[] x, y, z, radius, strength; // Center, influence radius and brightest channel times intensity of every light
+	private int lightCount;
+	private int[] globals; // Lights reaching everything
+	private int globalCount;
+	
+	// Hierarchy nodes, the children of an internal node follow each other starting at first, a leaf holds count lights starting at first in order
+	private float[] minX, minY, minZ, maxX, maxY, maxZ;
+	private int[] first, count;
+	private int nodeCount;
+	private int[] order; // Light indices sorted into the leaves
+	private int boundedCount; // Lights in the hierarchy
+	
+	// Light buffer texture of the object light modes, created when first bound
+	private TextureBuffer lightBuffer;
+	private FloatBuffer lightData;
+	private boolean uploaded; // Whether the light buffer holds the last update
+	
+	private int[] drawIndices; // Light indices of the current draw, uploaded by use()
+	private Vector3f drawMin, drawMax;
+	
+	// Query scratch memory of every thread
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+	
+	/** Creates an empty light culler */
+	public LightCuller() {
+		lights = new PointLight[16];
+		x = new float[16]; y = new float[16]; z = new float[16];
+		radius = new float[16];
+		strength = new float[16];
+		globals = new int[16];
+		allocateNodes(16);
+		order = new int[16];
+		drawIndices = new int[ShaderBuilder.MAX_OBJECT_LIGHTS];
+		drawMin = new Vector3f();
+		drawMax = new Vector3f();
+	}
+	
+	/** Computes the influence spheres of the lights and builds the hierarchy over them, the light indices used everywhere else are indices into this list */
+	public void update(List<PointLight> pointLights) {
+		int n = pointLights.size();
+		if(lights.length < n) {
+			int capacity = Math.max(n, lights.length * 2);
+			lights = new PointLight[capacity];
+			x = new float[capacity]; y = new float[capacity]; z = new float[capacity];
+			radius = new float[capacity];
+			strength = new float[capacity];
+			globals = new int[capacity];
+			order = new int[capacity];
+		}
+		lightCount = n;
+		globalCount = 0;
+		int bounded = 0;
+		for(int i = 0; i < n; i++) {
+			PointLight l = pointLights.get(i);
+			lights[i] = l;
+			x[i] = l.pos.x; y[i] = l.pos.y; z[i] = l.pos.z;
+			radius[i] = l.getInfluenceRadius();
+			strength[i] = Math.max(l.color.x, Math.max(l.color.y, l.color.z)) * l.intensity;
+			if(Float.isInfinite(radius[i])) globals[globalCount++] = i;
+			else if(radius[i] > 0) order[bounded++] = i;
+		}
+		Arrays.fill(lights, n, lights.length, null);
+		
+		// A tree with leaves of at least one light has less than twice as many nodes as lights
+		if(minX.length < 2 * bounded + 1) allocateNodes(2 * bounded + 1);
+		boundedCount = bounded;
+		nodeCount = 1;
+		if(bounded > 0) build(0, 0, bounded);
+		uploaded = false;
+	}
+	/** Updates the culler with the point lights of the world light, see update(List) */
+	public void update(WorldLight worldLight) {
+		update(worldLight.pointLights);
+	}
+	
+	/** Allocates the node arrays */
+	private void allocateNodes(int size) {
+		minX = new float[size]; minY = new float[size]; minZ = new float[size];
+		maxX = new float[size]; maxY = new float[size]; maxZ = new float[size];
+		first = new int[size];
+		count = new int[size];
+	}
+	
+	/** Makes node the parent of the lights in order from index from to index to, splitting them at the median of the longest axis of their centers */
+	private void build(int node, int from, int to) {
+		float bMinX = Float.POSITIVE_INFINITY, bMinY = Float.POSITIVE_INFINITY, bMinZ = Float.POSITIVE_INFINITY;
+		float bMaxX = Float.NEGATIVE_INFINITY, bMaxY = Float.NEGATIVE_INFINITY, bMaxZ = Float.NEGATIVE_INFINITY;
+		float cMinX = Float.POSITIVE_INFINITY, cMinY = Float.POSITIVE_INFINITY, cMinZ = Float.POSITIVE_INFINITY;
+		float cMaxX = Float.NEGATIVE_INFINITY, cMaxY = Float.NEGATIVE_INFINITY, cMaxZ = Float.NEGATIVE_INFINITY;
+		for(int i = from; i < to; i++) {
+			int l = order[i];
+			float r = radius[l];
+			bMinX = Math.min(bMinX, x[l] - r); bMaxX = Math.max(bMaxX, x[l] + r);
+			bMinY = Math.min(bMinY, y[l] - r); bMaxY = Math.max(bMaxY, y[l] + r);
+			bMinZ = Math.min(bMinZ, z[l] - r); bMaxZ = Math.max(bMaxZ, z[l] + r);
+			cMinX = Math.min(cMinX, x[l]); cMaxX = Math.max(cMaxX, x[l]);
+			cMinY = Math.min(cMinY, y[l]); cMaxY = Math.max(cMaxY, y[l]);
+			cMinZ = Math.min(cMinZ, z[l]); cMaxZ = Math.max(cMaxZ, z[l]);
+		}
+		minX[node] = bMinX; minY[node] = bMinY; minZ[node] = bMinZ;
+		maxX[node] = bMaxX; maxY[node] = bMaxY; maxZ[node] = bMaxZ;
+		if(to - from <= LEAF_SIZE) {
+			first[node] = from;
+			count[node] = to - from;
+			return;
+		}
+		float ex = cMaxX - cMinX, ey = cMaxY - cMinY, ez = cMaxZ - cMinZ;
+		float[] axis = (ex >= ey && ex >= ez ? x : (ey >= ez ? y : z));
+		int mid = (from + to) >>> 1;
+		select(axis, from, to - 1, mid);
+		int left = nodeCount;
+		nodeCount += 2;
+		first[node] = left;
+		count[node] = 0;
+		build(left, from, mid);
+		build(left + 1, mid, to);
+	}
+	
+	/** Partially sorts order between lo and hi (inclusive) by the coordinate of the lights, so that the light at index kth is in its sorted place */
+	private void select(float[] coord, int lo, int hi, int kth) {
+		while(hi > lo) {
+			float pivot = coord[order[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(coord[order[i]] < pivot) i++;
+				while(coord[order[j]] > pivot) j--;
+				if(i <= j) {
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+				}
+			}
+			if(kth <= j) hi = j;
+			else if(kth >= i) lo = i;
+			else return;
+		}
+	}
+	
+	/**
+	 * Finds the lights reaching a box, thread safe
+	 * @param dest receives the indices of the lights, strongest first. If more lights reach the box than dest can hold, only the strongest at the box are kept
+	 * @return the amount of lights written into dest
+	 */
+	public int assign(float boxMinX, float boxMinY, float boxMinZ, float boxMaxX, float boxMaxY, float boxMaxZ, int[] dest) {
+		Scratch s = scratch.get();
+		int hits = 0;
+		if(boundedCount > 0) {
+			int[] stack = s.stack;
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0) {
+				int n = stack[--top];
+				if(minX[n] > boxMaxX || maxX[n] < boxMinX || minY[n] > boxMaxY || maxY[n] < boxMinY || minZ[n] > boxMaxZ || maxZ[n] < boxMinZ) continue;
+				if(count[n] == 0) {
+					if(top + 2 > stack.length) stack = s.stack = Arrays.copyOf(stack, stack.length * 2);
+					stack[top++] = first[n];
+					stack[top++] = first[n] + 1;
+					continue;
+				}
+				for(int i = first[n], end = first[n] + count[n]; i < end; i++) {
+					hits = s.add(hits, order[i], this, boxMinX, boxMinY, boxMinZ, boxMaxX, boxMaxY, boxMaxZ, false);
+				}
+			}
+		}
+		for(int i = 0; i < globalCount; i++) hits = s.add(hits, globals[i], this, boxMinX, boxMinY, boxMinZ, boxMaxX, boxMaxY, boxMaxZ, true);
+		
+		long[] keys = s.keys;
+		int k = Math.min(hits, dest.length);
+		if(k <= 0) return 0;
+		if(k < hits) WorldLight.quickselect(keys, 0, hits - 1, k - 1);
+		Arrays.sort(keys, 0, k);
+		for(int i = 0; i < k; i++) dest[i] = (int)keys[i];
+		return k;
+	}
+	/** Finds the lights reaching the model's world bounds, see assign(float, float, float, float, float, float, int[]) */
+	public int assign(Model model, int[] dest) {
+		Scratch s = scratch.get();
+		model.getWorldBounds(s.min, s.max);
+		return assign(s.min.x, s.min.y, s.min.z, s.max.x, s.max.y, s.max.z, dest);
+	}
+	
+	/** Returns the light with the given index, as passed to the last update */
+	public PointLight getLight(int index) {
+		return lights[index];
+	}
+	/** Returns the amount of lights in the last update */
+	public int getLightCount() {
+		return lightCount;
+	}
+	
+	/**
+	 * Uploads the light data if it changed and binds it to a shader using an object light mode, needed once per frame and shader before use()
+	 * @param shader the shader, has to be in use
+	 * @param textureSlot texture slot the light buffer texture is bound to, after the material's slots
+	 */
+	public void bind(Shader shader, int textureSlot) {
+		if(lightBuffer == null) {
+			lightBuffer = new TextureBuffer(GL33.GL_RGBA32F);
+			lightData = MemoryUtil.memAllocFloat(ClusteredLighting.TEXELS_PER_LIGHT * 4 * 64);
+		}
+		if(!uploaded) {
+			int floats = Math.max(1, lightCount) * ClusteredLighting.TEXELS_PER_LIGHT * 4;
+			if(lightData.capacity() < floats) lightData = MemoryUtil.memRealloc(lightData, Math.max(floats, lightData.capacity() * 2));
+			lightData.clear();
+			for(int i = 0; i < lightCount; i++) ClusteredLighting.writeLightData(lightData, i * ClusteredLighting.TEXELS_PER_LIGHT * 4, lights[i], radius[i]);
+			lightData.position(0).limit(floats);
+			lightBuffer.update(lightData);
+			uploaded = true;
+		}
+		lightBuffer.use("lightData", textureSlot, shader);
+	}
+	/** Binds the light data to texture slot 2, after the material's textures, see bind(Shader, int) */
+	public void bind(Shader shader) {
+		bind(shader, 2);
+	}
+	
+	/** Assigns the lights of the model and uploads their indices into the lightIndices and lightCount uniforms of a shader using an object light mode, returns the amount of lights */
+	public int use(Shader shader, Model model) {
+		model.getWorldBounds(drawMin, drawMax);
+		int n = assign(drawMin.x, drawMin.y, drawMin.z, drawMax.x, drawMax.y, drawMax.z, drawIndices);
+		shader.setUniformIntArray("lightIndices", drawIndices);
+		shader.setUniformInt("lightCount", n);
+		return n;
+	}
+	
+	/** Disposes of the light buffer texture */
+	public void dispose() {
+		if(lightBuffer == null) return;
+		lightBuffer.dispose();
+		MemoryUtil.memFree(lightData);
+		lightBuffer = null;
+	}
+	
+	/** Query memory of one thread */
+	private static class Scratch {
+		int[] stack = new int[64];
+		long[] keys = new long[64];
+		Vector3f min = new Vector3f(), max = new Vector3f();
+		
+		/** Adds the light as a hit if its sphere touches the box, keyed by its attenuation at the box so the strongest lights sort first, returns the new hit count */
+		int add(int hits, int l, LightCuller c, float boxMinX, float boxMinY, float boxMinZ, float boxMaxX, float boxMaxY, float boxMaxZ, boolean global) {
+			float dx = Math.max(0, Math.max(boxMinX - c.x[l], c.x[l] - boxMaxX));
+			float dy = Math.max(0, Math.max(boxMinY - c.y[l], c.y[l] - boxMaxY));
+			float dz = Math.max(0, Math.max(boxMinZ - c.z[l], c.z[l] - boxMaxZ));
+			float d2 = dx * dx + dy * dy + dz * dz;
+			if(!global && d2 > c.radius[l] * c.radius[l]) return hits;
+			PointLight light = c.lights[l];
+			float d = (float)Math.sqrt(d2);
+			// Inverse of the brightness at the box, non-negative floats keep their order when compared as integer bits
+			float inverse = (1 + light.falloffLinear * d + light.falloffQuadratic * d2) / Math.max(c.strength[l], Float.MIN_NORMAL);
+			if(hits == keys.length) keys = Arrays.copyOf(keys, keys.length * 2);
+			keys[hits] = ((long)Float.floatToIntBits(inverse) << 32) | l;
+			return hits + 1;
+		}
+	}
+
+}
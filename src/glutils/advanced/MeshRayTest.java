@@ -0,0 +1,99 @@
+package glutils.advanced;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import glutils.core.Camera;
+import glutils.utils.JobSystem;
+import glutils.utils.Mesh;
+import glutils.utils.MeshBVH;
+
+/**
+ * Exact ray test against the triangles of models for DynamicBVH.raycast(), e.g. to pick the model under the mouse. The ray is moved into the model space of every model
+ * whose bounds it hits and cast against the triangle BVH cached in the model's mesh, so meshes are never transformed and every mesh shared by several models has one tree.
+ * Models whose mesh has no tree yet get one built on first test. Not thread safe
+ */
+public class MeshRayTest implements DynamicBVH.RayTest {
+	
+	private JobSystem jobs; // Job system missing trees are built on, null to build them on the calling thread
+	
+	private Vector3f origin, direction; // World space ray
+	private Model hitModel; // Closest model hit so far
+	private MeshBVH.Hit hit; // Closest triangle hit so far
+	private Matrix4f hitInverse; // Inverse transform of the hit model
+	
+	// Reused between tests to avoid allocations
+	private Vector3f localOrigin, localDirection;
+	private Matrix4f inverse;
+	
+	/** Creates a ray test building missing mesh trees in parallel on the job system, null to build them on the calling thread */
+	public MeshRayTest(JobSystem jobs) {
+		this.jobs = jobs;
+		origin = new Vector3f();
+		direction = new Vector3f(0, 0, -1);
+		hit = new MeshBVH.Hit();
+		hitInverse = new Matrix4f();
+		localOrigin = new Vector3f();
+		localDirection = new Vector3f();
+		inverse = new Matrix4f();
+	}
+	/** Creates a ray test building missing mesh trees on the calling thread */
+	public MeshRayTest() {
+		this(null);
+	}
+	
+	/** Sets the world space ray, hit distances are in multiples of the direction's length, returns this */
+	public MeshRayTest set(Vector3f origin, Vector3f direction) {
+		this.origin.set(origin);
+		this.direction.set(direction);
+		return this;
+	}
+	/** Sets the ray through a point of the screen, e.g. the mouse position, see Camera.getPickRay(), hit distances are in world units, returns this */
+	public MeshRayTest set(Camera camera, float x, float y, float width, float height) {
+		camera.getPickRay(x, y, width, height, origin, direction);
+		return this;
+	}
+	
+	/** Finds the closest model whose triangles are hit by the ray within maxDistance, returns null if no model was hit */
+	public Model pick(DynamicBVH models, float maxDistance) {
+		hitModel = null;
+		hit.triangle = -1;
+		models.raycast(origin, direction, maxDistance, this);
+		return hitModel;
+	}
+	
+	/** Casts the ray against the model's triangles, called by DynamicBVH.raycast() for models whose bounds are hit, with maxDistance shrinking to the closest hit so far */
+	@Override
+	public float intersect(Model model, float maxDistance) {
+		Mesh mesh = model.getMeshData();
+		if(mesh == null) return -1;
+		// Affine transforms keep distances along the ray, so a hit in model space is at the same distance in world space
+		model.transform.invertAffine(inverse);
+		inverse.transformPosition(origin, localOrigin);
+		inverse.transformDirection(direction, localDirection);
+		if(!mesh.getBVH(jobs).raycast(localOrigin, localDirection, maxDistance, hit)) return -1;
+		hitModel = model;
+		hitInverse.set(inverse);
+		return hit.distance;
+	}
+	
+	/** Returns the model hit by the last pick, null if none was hit */
+	public Model getHitModel() {
+		return hitModel;
+	}
+	/** Returns the triangle hit by the last pick, holding the triangle index within the hit model's mesh, the barycentric coordinates and the distance */
+	public MeshBVH.Hit getHit() {
+		return hit;
+	}
+	/** Stores the world space point hit by the last pick in dest and returns it */
+	public Vector3f getHitPoint(Vector3f dest) {
+		return direction.mulAdd(hit.distance, origin, dest);
+	}
+	/** Stores the world space face normal of the triangle hit by the last pick in dest and returns it */
+	public Vector3f getHitNormal(Vector3f dest) {
+		hitModel.getMeshData().getBVH(jobs).getNormal(hit.triangle, dest);
+		// Normals transform by the inverse transpose of the model transform
+		return dest.mulTransposeDirection(hitInverse).normalize();
+	}
+
+}
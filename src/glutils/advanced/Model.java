@@ -19,6 +19,10 @@ public class Model {
 	public boolean useMaterial;
 	// Transform
 	public Matrix4f transform;
+	/** Hierarchy the model's transform is driven by, null if the transform is set directly, see TransformHierarchy.attach() */
+	public TransformHierarchy transformHierarchy;
+	/** Node of the transform hierarchy the model is attached to */
+	public int transformSlot = TransformHierarchy.NO_PARENT;
 	
 	// Does things same for material and texture constructors
 	private Model(Mesh mesh) {
@@ -60,9 +64,7 @@ public class Model {
 	}
 	/** Translates the model by the given vector, using the global coordinate system */
 	public void translateByGlobal(Vector3f translation) {
-		Vector3f c = new Vector3f();
-		transform.getTranslation(c);
-		transform.setTranslation(new Vector3f(c).add(translation));
+		transform.setTranslation(transform.m30() + translation.x, transform.m31() + translation.y, transform.m32() + translation.z);
 	}
 	/** Translates the model to the given position on the global coordinate system */
 	public void translateTo(Vector3f translation) {
@@ -75,6 +77,33 @@ public class Model {
 		return pos;
 	}
 	
+	/** Stores the world space bounding box of the model, made from the mesh bounds and the transform, in min and max */
+	public void getWorldBounds(Vector3f min, Vector3f max) {
+		mesh.getBoundsMin(min);
+		mesh.getBoundsMax(max);
+		float cx = (min.x + max.x) / 2, cy = (min.y + max.y) / 2, cz = (min.z + max.z) / 2;
+		float ex = (max.x - min.x) / 2, ey = (max.y - min.y) / 2, ez = (max.z - min.z) / 2;
+		Matrix4f t = transform;
+		// Transformed box center plus the box half extents projected onto every world axis
+		float wx = t.m00() * cx + t.m10() * cy + t.m20() * cz + t.m30();
+		float wy = t.m01() * cx + t.m11() * cy + t.m21() * cz + t.m31();
+		float wz = t.m02() * cx + t.m12() * cy + t.m22() * cz + t.m32();
+		float ax = Math.abs(t.m00()) * ex + Math.abs(t.m10()) * ey + Math.abs(t.m20()) * ez;
+		float ay = Math.abs(t.m01()) * ex + Math.abs(t.m11()) * ey + Math.abs(t.m21()) * ez;
+		float az = Math.abs(t.m02()) * ex + Math.abs(t.m12()) * ey + Math.abs(t.m22()) * ez;
+		min.set(wx - ax, wy - ay, wz - az);
+		max.set(wx + ax, wy + ay, wz + az);
+	}
+	/** Stores the world space center of the model's bounding sphere in center and returns the sphere radius, scaled by the largest axis scale of the transform */
+	public float getWorldSphere(Vector3f center) {
+		Matrix4f t = transform;
+		transform.transformPosition(mesh.getBoundsCenter(center));
+		float sx = t.m00() * t.m00() + t.m01() * t.m01() + t.m02() * t.m02();
+		float sy = t.m10() * t.m10() + t.m11() * t.m11() + t.m12() * t.m12();
+		float sz = t.m20() * t.m20() + t.m21() * t.m21() + t.m22() * t.m22();
+		return mesh.getBoundsRadius() * (float)Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+	}
+	
 	public Mesh getMeshData() {
 		return mesh;
 	}
@@ -0,0 +1,296 @@
+package glutils.advanced;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import glutils.core.Camera;
+import glutils.utils.JobSystem;
+
+/**
+ * Culls models hidden behind occluders on the CPU. Occluders (simplified triangle meshes of large objects like buildings or terrain) are rasterized into a low resolution
+ * depth buffer split into tiles, tiles are rasterized in parallel on a job system. A hierarchical depth pyramid holding the farthest depth of every 2x2 block is built from it,
+ * the screen rectangle of a model's bounds is then tested against the pyramid level where it covers only a few texels.
+ * Everything runs on the CPU and doesn't need an OpenGL context. Usage per frame: begin(), addOccluder() for every occluder, end(), then isVisible() or cull()
+ */
+public class OcclusionCuller {
+	
+	/** Size of a rasterization tile in pixels */
+	private static final int TILE_SIZE = 32;
+	/** Smallest w of a projected vertex, triangles and bounds crossing it are treated as not occluding and visible */
+	private static final float MIN_W = 1e-5f;
+	
+	private int width, height; // Size of the depth buffer
+	private int tilesX, tilesY; // Amount of tiles
+	private float[][] levels; // Depth pyramid, level 0 is the depth buffer, depths are from 0 (near) to 1 (far)
+	private int[] levelWidths, levelHeights;
+	
+	private float[] triangles; // Screen space x, y, depth of the 3 vertices of every triangle
+	private int triangleCount;
+	private int[][] tileTriangles; // Indices of the triangles overlapping every tile
+	private int[] tileCounts;
+	
+	private JobSystem jobs; // Rasterizes tiles in parallel, null to rasterize on the calling thread
+	private Matrix4f viewProj, mvp; // Current view projection and occluder transform
+	private Vector3f boundsMin, boundsMax; // Reused by isVisible(Model)
+	private float[] projected; // Projected occluder vertices, reused between occluders
+	
+	/**
+	 * Creates an occlusion culler
+	 * @param width width of the depth buffer, about 1/4 to 1/8 of the screen width is enough
+	 * @param height height of the depth buffer, should match the screen aspect ratio
+	 * @param jobs job system to rasterize tiles in parallel with, null to rasterize on the calling thread
+	 */
+	public OcclusionCuller(int width, int height, JobSystem jobs) {
+		this.width = width;
+		this.height = height;
+		this.jobs = jobs;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		tileTriangles = new int[tilesX * tilesY][64];
+		tileCounts = new int[tilesX * tilesY];
+		triangles = new float[9 * 1024];
+		projected = new float[3 * 1024];
+		
+		// Pyramid down to 1x1
+		int count = 1;
+		while((Math.max(width, height) >> (count - 1)) > 1) count++;
+		levels = new float[count][];
+		levelWidths = new int[count];
+		levelHeights = new int[count];
+		for(int i = 0, w = width, h = height; i < count; i++, w = Math.max(1, (w + 1) / 2), h = Math.max(1, (h + 1) / 2)) {
+			levels[i] = new float[w * h];
+			levelWidths[i] = w;
+			levelHeights[i] = h;
+		}
+		
+		viewProj = new Matrix4f();
+		mvp = new Matrix4f();
+		boundsMin = new Vector3f();
+		boundsMax = new Vector3f();
+	}
+	/** Creates an occlusion culler with a 256x128 depth buffer rasterizing on the calling thread */
+	public OcclusionCuller() {
+		this(256, 128, null);
+	}
+	
+	/** Starts a new frame rendered with the given view projection matrix (projection * view), clears all occluders */
+	public void begin(Matrix4f viewProj) {
+		this.viewProj.set(viewProj);
+		triangleCount = 0;
+		Arrays.fill(tileCounts, 0);
+	}
+	/** Starts a new frame rendered with the camera's projection and view matrix */
+	public void begin(Camera camera) {
+		begin(camera.getViewProj());
+	}
+	
+	/**
+	 * Adds the triangles of an occluder, they have to be solid (anything behind them is hidden)
+	 * @param verts vertex positions of a triangle list, 3 floats per vertex like Mesh verts
+	 * @param transform model transform of the occluder
+	 */
+	public void addOccluder(float[] verts, Matrix4f transform) {
+		viewProj.mul(transform, mvp);
+		int vertexCount = verts.length / 3;
+		if(projected.length < vertexCount * 3) projected = new float[vertexCount * 3];
+		// Projecting every vertex to screen space, vertices in front of the near plane (depth below 0) get NaN so that their triangles are skipped
+		for(int v = 0; v < vertexCount; v++) {
+			float x = verts[v*3], y = verts[v*3+1], z = verts[v*3+2];
+			float cw = mvp.m03() * x + mvp.m13() * y + mvp.m23() * z + mvp.m33();
+			float cz = mvp.m02() * x + mvp.m12() * y + mvp.m22() * z + mvp.m32();
+			if(cw < MIN_W || cz < -cw) {
+				projected[v*3] = Float.NaN;
+				continue;
+			}
+			float invW = 1 / cw;
+			projected[v*3] = ((mvp.m00() * x + mvp.m10() * y + mvp.m20() * z + mvp.m30()) * invW * 0.5f + 0.5f) * width;
+			projected[v*3+1] = ((mvp.m01() * x + mvp.m11() * y + mvp.m21() * z + mvp.m31()) * invW * 0.5f + 0.5f) * height;
+			projected[v*3+2] = cz * invW * 0.5f + 0.5f;
+		}
+		for(int t = 0; t + 2 < vertexCount; t += 3) {
+			int a = t * 3, b = a + 3, c = a + 6;
+			// Triangles crossing the near plane are dropped, which only makes culling less effective
+			if(Float.isNaN(projected[a]) || Float.isNaN(projected[b]) || Float.isNaN(projected[c])) continue;
+			addTriangle(a, b, c);
+		}
+	}
+	/** Adds the mesh of a model as an occluder, for detailed meshes prefer passing a simplified mesh to addOccluder(verts, transform) */
+	public void addOccluder(Model model) {
+		addOccluder(model.mesh.getVerts(), model.transform);
+	}
+	
+	/** Stores a projected triangle and adds it to the tiles its screen bounds overlap */
+	private void addTriangle(int a, int b, int c) {
+		float minX = Math.min(projected[a], Math.min(projected[b], projected[c])), maxX = Math.max(projected[a], Math.max(projected[b], projected[c]));
+		float minY = Math.min(projected[a+1], Math.min(projected[b+1], projected[c+1])), maxY = Math.max(projected[a+1], Math.max(projected[b+1], projected[c+1]));
+		if(maxX < 0 || maxY < 0 || minX >= width || minY >= height) return;
+		if(Math.min(projected[a+2], Math.min(projected[b+2], projected[c+2])) > 1) return;
+		
+		if(triangles.length < (triangleCount + 1) * 9) triangles = Arrays.copyOf(triangles, triangles.length * 2);
+		int o = triangleCount * 9;
+		System.arraycopy(projected, a, triangles, o, 3);
+		System.arraycopy(projected, b, triangles, o + 3, 3);
+		System.arraycopy(projected, c, triangles, o + 6, 3);
+		
+		int tx0 = Math.max(0, (int)minX / TILE_SIZE), tx1 = Math.min(tilesX - 1, (int)maxX / TILE_SIZE);
+		int ty0 = Math.max(0, (int)minY / TILE_SIZE), ty1 = Math.min(tilesY - 1, (int)maxY / TILE_SIZE);
+		for(int ty = ty0; ty <= ty1; ty++) {
+			for(int tx = tx0; tx <= tx1; tx++) {
+				int tile = ty * tilesX + tx;
+				if(tileCounts[tile] == tileTriangles[tile].length) tileTriangles[tile] = Arrays.copyOf(tileTriangles[tile], tileCounts[tile] * 2);
+				tileTriangles[tile][tileCounts[tile]++] = triangleCount;
+			}
+		}
+		triangleCount++;
+	}
+	
+	/** Rasterizes all occluders and builds the depth pyramid, tiles are rasterized in parallel if a job system was given */
+	public void end() {
+		int tileCount = tilesX * tilesY;
+		if(jobs == null) {
+			for(int t = 0; t < tileCount; t++) rasterizeTile(t);
+		} else {
+			jobs.run(jobs.parallelFor(tileCount, 1, (from, to) -> {
+				for(int t = from; t < to; t++) rasterizeTile(t);
+			}));
+		}
+		buildPyramid();
+	}
+	
+	/** Clears a tile and rasterizes all triangles overlapping it, keeping the nearest depth of every pixel, only writes pixels of the tile */
+	private void rasterizeTile(int tile) {
+		float[] depth = levels[0];
+		int x0 = (tile % tilesX) * TILE_SIZE, y0 = (tile / tilesX) * TILE_SIZE;
+		int x1 = Math.min(width, x0 + TILE_SIZE), y1 = Math.min(height, y0 + TILE_SIZE);
+		for(int y = y0; y < y1; y++) Arrays.fill(depth, y * width + x0, y * width + x1, 1);
+		
+		int[] list = tileTriangles[tile];
+		for(int i = 0, count = tileCounts[tile]; i < count; i++) {
+			int o = list[i] * 9;
+			float ax = triangles[o], ay = triangles[o+1], az = triangles[o+2];
+			float bx = triangles[o+3], by = triangles[o+4], bz = triangles[o+5];
+			float cx = triangles[o+6], cy = triangles[o+7], cz = triangles[o+8];
+			float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+			if(Math.abs(area) < 1e-8f) continue;
+			float invArea = 1 / area;
+			
+			// Pixel range of the triangle inside the tile, sampled at pixel centers
+			int px0 = Math.max(x0, (int)Math.floor(Math.min(ax, Math.min(bx, cx)))), px1 = Math.min(x1 - 1, (int)Math.ceil(Math.max(ax, Math.max(bx, cx))));
+			int py0 = Math.max(y0, (int)Math.floor(Math.min(ay, Math.min(by, cy)))), py1 = Math.min(y1 - 1, (int)Math.ceil(Math.max(ay, Math.max(by, cy))));
+			if(px0 > px1 || py0 > py1) continue;
+			
+			// Normalized edge functions (barycentric weights) and depth as affine functions of the pixel position, dividing by the signed area accepts both windings
+			float w0dx = (by - cy) * invArea, w0dy = (cx - bx) * invArea;
+			float w1dx = (cy - ay) * invArea, w1dy = (ax - cx) * invArea;
+			float w2dx = (ay - by) * invArea, w2dy = (bx - ax) * invArea;
+			float zdx = w0dx * az + w1dx * bz + w2dx * cz, zdy = w0dy * az + w1dy * bz + w2dy * cz;
+			float sx = px0 + 0.5f, sy = py0 + 0.5f;
+			float w0row = ((bx - sx) * (cy - sy) - (by - sy) * (cx - sx)) * invArea;
+			float w1row = ((cx - sx) * (ay - sy) - (cy - sy) * (ax - sx)) * invArea;
+			float w2row = ((ax - sx) * (by - sy) - (ay - sy) * (bx - sx)) * invArea;
+			float zrow = w0row * az + w1row * bz + w2row * cz;
+			for(int y = py0; y <= py1; y++) {
+				int row = y * width;
+				for(int x = px0; x <= px1; x++) {
+					int d = x - px0;
+					float w0 = w0row + w0dx * d, w1 = w1row + w1dx * d, w2 = w2row + w2dx * d;
+					float z = zrow + zdx * d;
+					if(w0 >= 0 && w1 >= 0 && w2 >= 0 && z < depth[row + x]) depth[row + x] = Math.max(z, 0);
+				}
+				w0row += w0dy; w1row += w1dy; w2row += w2dy;
+				zrow += zdy;
+			}
+		}
+	}
+	
+	/** Builds every pyramid level from the previous one, each texel holds the farthest depth of the 2x2 texels below it */
+	private void buildPyramid() {
+		for(int l = 1; l < levels.length; l++) {
+			float[] src = levels[l - 1], dst = levels[l];
+			int sw = levelWidths[l - 1], sh = levelHeights[l - 1], dw = levelWidths[l], dh = levelHeights[l];
+			for(int y = 0; y < dh; y++) {
+				// Odd sizes clamp to the last row/column, so texels at the border only cover what exists
+				int y0 = Math.min(y * 2, sh - 1) * sw, y1 = Math.min(y * 2 + 1, sh - 1) * sw;
+				for(int x = 0; x < dw; x++) {
+					int x0 = Math.min(x * 2, sw - 1), x1 = Math.min(x * 2 + 1, sw - 1);
+					dst[y * dw + x] = Math.max(Math.max(src[y0 + x0], src[y0 + x1]), Math.max(src[y1 + x0], src[y1 + x1]));
+				}
+			}
+		}
+	}
+	
+	/** Returns whether a world space box might be visible, false only if it is certainly hidden behind the occluders */
+	public boolean isVisible(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		Matrix4f m = viewProj;
+		float sx0 = Float.MAX_VALUE, sy0 = Float.MAX_VALUE, sx1 = -Float.MAX_VALUE, sy1 = -Float.MAX_VALUE, nearest = Float.MAX_VALUE;
+		for(int i = 0; i < 8; i++) {
+			float x = ((i & 1) == 0 ? minX : maxX), y = ((i & 2) == 0 ? minY : maxY), z = ((i & 4) == 0 ? minZ : maxZ);
+			float cw = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+			// Boxes reaching behind the camera can't be tested
+			if(cw < MIN_W) return true;
+			float invW = 1 / cw;
+			float px = ((m.m00() * x + m.m10() * y + m.m20() * z + m.m30()) * invW * 0.5f + 0.5f) * width;
+			float py = ((m.m01() * x + m.m11() * y + m.m21() * z + m.m31()) * invW * 0.5f + 0.5f) * height;
+			float pz = (m.m02() * x + m.m12() * y + m.m22() * z + m.m32()) * invW * 0.5f + 0.5f;
+			sx0 = Math.min(sx0, px); sx1 = Math.max(sx1, px);
+			sy0 = Math.min(sy0, py); sy1 = Math.max(sy1, py);
+			nearest = Math.min(nearest, pz);
+		}
+		if(nearest <= 0) return true;
+		// Boxes fully off screen are left to frustum culling
+		if(sx1 < 0 || sy1 < 0 || sx0 >= width || sy0 >= height) return true;
+		int x0 = Math.max(0, (int)sx0), y0 = Math.max(0, (int)sy0);
+		int x1 = Math.min(width - 1, (int)sx1), y1 = Math.min(height - 1, (int)sy1);
+		
+		// Level at which the rectangle covers at most 2 texels per axis
+		int size = Math.max(x1 - x0, y1 - y0);
+		int level = Math.min(levels.length - 1, (size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1)));
+		float[] depth = levels[level];
+		int lw = levelWidths[level];
+		for(int y = y0 >> level, ly1 = y1 >> level; y <= ly1; y++) {
+			for(int x = x0 >> level, lx1 = x1 >> level; x <= lx1; x++) {
+				if(nearest <= depth[y * lw + x]) return true;
+			}
+		}
+		return false;
+	}
+	/** Returns whether the world bounds of the model might be visible, false only if they are certainly hidden behind the occluders */
+	public boolean isVisible(Model model) {
+		model.getWorldBounds(boundsMin, boundsMax);
+		return isVisible(boundsMin.x, boundsMin.y, boundsMin.z, boundsMax.x, boundsMax.y, boundsMax.z);
+	}
+	
+	/** Adds every model which might be visible to the visible list, which is not cleared, returns the amount of models added */
+	public int cull(List<Model> models, List<Model> visible) {
+		int count = 0;
+		for(int i = 0, n = models.size(); i < n; i++) {
+			Model m = models.get(i);
+			if(isVisible(m)) {
+				visible.add(m);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/** Returns the depth buffer, row by row from the bottom, depths from 0 (near) to 1 (far), valid after end() */
+	public float[] getDepthBuffer() {
+		return levels[0];
+	}
+	/** Returns the width of the depth buffer */
+	public int getWidth() {
+		return width;
+	}
+	/** Returns the height of the depth buffer */
+	public int getHeight() {
+		return height;
+	}
+	/** Returns the amount of occluder triangles added since begin() */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+}
@@ -19,6 +19,9 @@ public class PointLight {
 	
 	public String name;
 	
+	/** Brightness below which a light's contribution is treated as zero when computing its influence radius, less than one step of an 8 bit color channel */
+	public static final float INFLUENCE_THRESHOLD = 1f / 256f;
+	
 	public PointLight(Vector3f pos, Vector4f color, float intensity, float falloffLinear, float falloffQuadratic, String name) {
 		this.pos = pos;
 		this.color = color;
@@ -30,6 +33,20 @@ public class PointLight {
 		this.name = name;
 	}
 	
+	/** 
+	 * Returns the distance from the light beyond which its contribution (brightest color channel times intensity, attenuated by the falloff, counting the ambient and
+	 * diffuse term) stays below INFLUENCE_THRESHOLD, infinity if the light has no falloff
+	 */
+	public float getInfluenceRadius() {
+		float brightness = 2 * Math.max(color.x, Math.max(color.y, color.z)) * intensity;
+		// Solving brightness / (1 + linear * r + quadratic * r^2) = threshold for r
+		float c = 1 - brightness / INFLUENCE_THRESHOLD;
+		if(c >= 0) return 0;
+		if(falloffQuadratic > 0) return (float)((-falloffLinear + Math.sqrt(falloffLinear * falloffLinear - 4 * falloffQuadratic * c)) / (2 * falloffQuadratic));
+		if(falloffLinear > 0) return -c / falloffLinear;
+		return Float.POSITIVE_INFINITY;
+	}
+	
 	/** Applies the point light to the given shader as a struct with the given component names, into a uniform with the given name */	
 	public void use(Shader shader, String pointLightUniformName, String positionComponentName, String colorComponentName, String intensityComponentName, String falloffLinearComponentName, String falloffQuadraticComponentName) {
 		shader.setUniformVec3(pointLightUniformName + "." + positionComponentName, pos);
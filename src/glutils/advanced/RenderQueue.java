@@ -0,0 +1,203 @@
+package glutils.advanced;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.joml.Vector3f;
+
+import glutils.core.Shader;
+
+/**
+ * Collects model draws for a frame and renders them sorted by a packed 64 bit key, so that draws sharing a shader program, textures and VAO follow each other
+ * and the GL state changes between them are skipped.
+ *
+ * Key layout, from the most significant bit: 4 bits layer, 1 bit translucency, then for opaque draws 11 bits shader, 14 bits material/texture, 12 bits VAO and 22 bits depth
+ * (front to back), for translucent draws 22 bits inverted depth (back to front), 11 bits shader, 14 bits material/texture and 12 bits VAO. Layers are drawn in ascending
+ * order, opaque draws of a layer before translucent ones. Ids which don't fit into their bits only make the grouping less effective, the order stays correct
+ */
+public class RenderQueue {
+	
+	// Key layout
+	private static final int LAYER_SHIFT = 60;
+	private static final int TRANSLUCENT_SHIFT = 59;
+	private static final long SHADER_MASK = (1L << 11) - 1;
+	private static final long MATERIAL_MASK = (1L << 14) - 1;
+	private static final long VAO_MASK = (1L << 12) - 1;
+	private static final long DEPTH_MASK = (1L << 22) - 1;
+	
+	private long[] keys; // Sort key of every draw
+	private int[] order; // Indices of draws in sorted order
+	private Model[] models; // Model of every draw
+	private Shader[] shaders; // Shader of every draw
+	private int size; // Amount of draws in the queue
+	
+	// Radix sort scratch arrays, reused between frames
+	private long[] keysScratch;
+	private int[] orderScratch;
+	private int[] counts;
+	
+	/** Creates a render queue with space for the given amount of draws, grows automatically when more draws are submitted */
+	public RenderQueue(int capacity) {
+		capacity = Math.max(1, capacity);
+		keys = new long[capacity];
+		order = new int[capacity];
+		models = new Model[capacity];
+		shaders = new Shader[capacity];
+		keysScratch = new long[capacity];
+		orderScratch = new int[capacity];
+		counts = new int[256];
+		size = 0;
+	}
+	/** Creates a render queue with space for 1024 draws, grows automatically when more draws are submitted */
+	public RenderQueue() {
+		this(1024);
+	}
+	
+	/**
+	 * Adds a model draw to the queue
+	 * @param model the model to render
+	 * @param shader the shader to render the model with
+	 * @param layer layer of the draw (0-15), lower layers are drawn first
+	 * @param translucent whether the model is translucent, translucent models are drawn after opaque ones of the same layer, sorted back to front
+	 * @param camPos position of the camera, used to sort by distance
+	 */
+	public void submit(Model model, Shader shader, int layer, boolean translucent, Vector3f camPos) {
+		// Distance to the camera, squared distances of positive floats keep their order when compared as int bits
+		float dx = model.transform.m30() - camPos.x, dy = model.transform.m31() - camPos.y, dz = model.transform.m32() - camPos.z;
+		long depth = (Float.floatToIntBits(dx * dx + dy * dy + dz * dz) >>> 9) & DEPTH_MASK;
+		submit(model, shader, makeKey(layer, translucent, shader.id, getMaterialId(model), model.vertexArray.batchID, depth));
+	}
+	/** Adds an opaque model draw in layer 0 to the queue */
+	public void submit(Model model, Shader shader, Vector3f camPos) {
+		submit(model, shader, 0, false, camPos);
+	}
+	/** Adds a model draw with an already made sort key to the queue, see makeKey() */
+	public void submit(Model model, Shader shader, long key) {
+		if(size == keys.length) grow();
+		keys[size] = key;
+		order[size] = size;
+		models[size] = model;
+		shaders[size] = shader;
+		size++;
+	}
+	
+	/** Appends all draws of another queue to this one, used to merge queues filled on different threads */
+	public void addAll(RenderQueue other) {
+		// keys[i] belongs to the draw order[i], which holds whether the other queue was sorted or not
+		for(int i = 0; i < other.size; i++) {
+			int d = other.order[i];
+			submit(other.models[d], other.shaders[d], other.keys[i]);
+		}
+	}
+	
+	/** Packs a sort key, depth is a 22 bit value where lower values are closer to the camera */
+	public static long makeKey(int layer, boolean translucent, int shaderId, int materialId, int vaoId, long depth) {
+		long key = ((long)(layer & 0xF) << LAYER_SHIFT);
+		if(translucent) {
+			key |= 1L << TRANSLUCENT_SHIFT;
+			key |= (DEPTH_MASK - (depth & DEPTH_MASK)) << 37;
+			key |= (shaderId & SHADER_MASK) << 26;
+			key |= (materialId & MATERIAL_MASK) << 12;
+			key |= (vaoId & VAO_MASK);
+		} else {
+			key |= (shaderId & SHADER_MASK) << 48;
+			key |= (materialId & MATERIAL_MASK) << 34;
+			key |= (vaoId & VAO_MASK) << 22;
+			key |= (depth & DEPTH_MASK);
+		}
+		return key;
+	}
+	
+	/** Returns an id standing for the textures the model binds, models with equal ids bind the same textures */
+	private static int getMaterialId(Model model) {
+		if(model.useMaterial) {
+			return model.material.diffuse.textureID * 31 + model.material.specular.textureID;
+		}
+		return model.texture.textureID;
+	}
+	
+	/** Sorts the submitted draws by their keys using an LSD radix sort, byte passes in which all keys are equal are skipped */
+	public void sort() {
+		if(keysScratch.length < size) {
+			keysScratch = new long[keys.length];
+			orderScratch = new int[keys.length];
+		}
+		long[] srcKeys = keys, dstKeys = keysScratch;
+		int[] srcOrder = order, dstOrder = orderScratch;
+		for(int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for(int i = 0; i < size; i++) counts[(int)(srcKeys[i] >>> shift) & 0xFF]++;
+			if(counts[(int)(srcKeys[0] >>> shift) & 0xFF] == size) continue;
+			// Turning the counts into start offsets
+			int sum = 0;
+			for(int b = 0; b < 256; b++) {
+				int c = counts[b];
+				counts[b] = sum;
+				sum += c;
+			}
+			for(int i = 0; i < size; i++) {
+				int dst = counts[(int)(srcKeys[i] >>> shift) & 0xFF]++;
+				dstKeys[dst] = srcKeys[i];
+				dstOrder[dst] = srcOrder[i];
+			}
+			long[] tk = srcKeys; srcKeys = dstKeys; dstKeys = tk;
+			int[] to = srcOrder; srcOrder = dstOrder; dstOrder = to;
+		}
+		// The sorted result has to end up in the main arrays
+		if(srcKeys != keys) {
+			keysScratch = keys;
+			orderScratch = order;
+			keys = srcKeys;
+			order = srcOrder;
+		}
+	}
+	
+	/**
+	 * Renders all draws in the order of their keys, call sort() first. The shader is only switched when it changes, after every switch shaderSetup gets called
+	 * with the new shader so that per-shader uniforms (camera, lights) can be set, it can be null
+	 */
+	public void execute(Consumer<Shader> shaderSetup) {
+		Shader current = null;
+		for(int i = 0; i < size; i++) {
+			int d = order[i];
+			Shader s = shaders[d];
+			if(s != current) {
+				s.use();
+				if(shaderSetup != null) shaderSetup.accept(s);
+				current = s;
+			}
+			models[d].render(s);
+		}
+	}
+	
+	/** Sorts and renders all draws, then clears the queue */
+	public void flush(Consumer<Shader> shaderSetup) {
+		sort();
+		execute(shaderSetup);
+		clear();
+	}
+	
+	/** Removes all draws from the queue, keeping the allocated space */
+	public void clear() {
+		Arrays.fill(models, 0, size, null);
+		Arrays.fill(shaders, 0, size, null);
+		size = 0;
+	}
+	
+	/** Returns the amount of draws in the queue */
+	public int size() {
+		return size;
+	}
+	
+	/** Doubles the space of the queue */
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		order = Arrays.copyOf(order, capacity);
+		models = Arrays.copyOf(models, capacity);
+		shaders = Arrays.copyOf(shaders, capacity);
+		keysScratch = new long[capacity];
+		orderScratch = new int[capacity];
+	}
+
+}
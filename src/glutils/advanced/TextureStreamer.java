@@ -0,0 +1,225 @@
+package glutils.advanced;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import glutils.core.Camera;
+import glutils.core.Texture;
+import glutils.core.Window;
+import glutils.utils.TextureCache;
+
+/**
+ * Streams mip levels of textures loaded from texture cache files in and out depending on how big the models using them appear on screen.
+ * Only the coarse levels are uploaded on load so that something is shown right away, finer levels are uploaded over the following updates when models get close
+ * to the camera and dropped again when they move away or when the memory budget is exceeded
+ */
+public class TextureStreamer {
+	
+	private ArrayList<StreamedTexture> textures; // All streamed textures
+	private IdentityHashMap<Texture, StreamedTexture> lookup; // Streamed textures by texture object
+	
+	private long budget; // Maximum memory of all resident levels in bytes
+	private long uploadBudget; // Maximum amount of bytes uploaded in one update, at least one level is always uploaded
+	private int coarseSize; // Levels up to this size are uploaded on load and never dropped
+	private long memoryUsage; // Memory of all resident levels in bytes
+	
+	// Reused between updates to avoid allocations
+	private Vector3f camPos;
+	private Vector3f center;
+	
+	/**
+	 * Creates a texture streamer
+	 * @param budget maximum memory of all resident mip levels in bytes
+	 * @param uploadBudget maximum amount of bytes uploaded in one update
+	 * @param coarseSize levels whose width and height are at most this size are uploaded on load and always stay resident
+	 */
+	public TextureStreamer(long budget, long uploadBudget, int coarseSize) {
+		textures = new ArrayList<>();
+		lookup = new IdentityHashMap<>();
+		this.budget = budget;
+		this.uploadBudget = uploadBudget;
+		this.coarseSize = coarseSize;
+		memoryUsage = 0;
+		camPos = new Vector3f();
+		center = new Vector3f();
+	}
+	/** Creates a texture streamer with the given memory budget in bytes, uploading at most 8 MB per update and keeping levels up to 64x64 always resident */
+	public TextureStreamer(long budget) {
+		this(budget, 8 * 1024 * 1024, 64);
+	}
+	
+	/** Loads a texture from a texture cache file in streaming mode, only the coarse levels are uploaded right away, returns null if the file couldn't be read or is damaged */
+	public Texture load(String cachePath, int wrapS, int wrapT, int minFilter, int magFilter) {
+		ByteBuffer file = TextureCache.map(cachePath);
+		if(file == null) return null;
+		ByteBuffer[] levels = TextureCache.getLevels(file);
+		if(levels == null) return null;
+		int width = file.getInt(8), height = file.getInt(12);
+		// The coarse levels are the ones small enough to always stay resident
+		int coarse = levels.length - 1;
+		while(coarse > 0 && Math.max(width >> (coarse - 1), height >> (coarse - 1)) <= coarseSize) coarse--;
+		
+		StreamedTexture s = new StreamedTexture(Texture.fromMipLevels(levels, coarse, width, height, wrapS, wrapT, minFilter, magFilter), levels, width, height, coarse);
+		textures.add(s);
+		lookup.put(s.texture, s);
+		for(int i = coarse; i < levels.length; i++) memoryUsage += levels[i].remaining();
+		Window.print("TextureStreamer: " + cachePath + " loaded with " + (levels.length - coarse) + " of " + levels.length + " levels resident", true, 2);
+		return s.texture;
+	}
+	/** Loads a texture from a texture cache file in streaming mode with repeat wrap, linear mipmap linear min filter and linear mag filter */
+	public Texture load(String cachePath) {
+		return load(cachePath, Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR);
+	}
+	
+	/**
+	 * Works out the mip levels every streamed texture needs from the on-screen size of the models using it, then streams levels in and out, has to be called from the GL thread
+	 * @param camera the camera the models are rendered with
+	 * @param viewportHeight height of the viewport in pixels
+	 * @param models models to take into account, models which are not in this list don't keep their textures' fine levels resident
+	 */
+	public void update(Camera camera, float viewportHeight, Iterable<Model> models) {
+		// Finding the finest level every texture needs
+		for(StreamedTexture s : textures) {
+			s.wanted = s.coarse;
+			s.screenSize = 0;
+		}
+		camPos.set(camera.getCamPos());
+		Matrix4f proj = camera.proj;
+		boolean perspective = proj.m23() != 0;
+		for(Model m : models) {
+			float radius = m.getWorldSphere(center);
+			// Projected diameter of the bounding sphere in pixels
+			float distance = Math.max(center.distance(camPos) - radius, 1e-4f);
+			float pixels = radius * proj.m11() * viewportHeight / (perspective ? distance : 1);
+			if(m.useMaterial) {
+				request(m.material.diffuse, pixels);
+				request(m.material.specular, pixels);
+			} else {
+				request(m.texture, pixels);
+			}
+		}
+		
+		// Dropping detail from the textures appearing smallest on screen until the wanted levels fit into the budget
+		long wantedMemory = 0;
+		for(StreamedTexture s : textures) wantedMemory += s.memoryFrom(s.wanted);
+		if(wantedMemory > budget) {
+			ArrayList<StreamedTexture> byScreenSize = new ArrayList<>(textures);
+			byScreenSize.sort((a, b) -> Float.compare(a.screenSize, b.screenSize));
+			boolean dropped = true;
+			while(wantedMemory > budget && dropped) {
+				dropped = false;
+				for(StreamedTexture s : byScreenSize) {
+					if(s.wanted >= s.coarse) continue;
+					wantedMemory -= s.levels[s.wanted].remaining();
+					s.wanted++;
+					dropped = true;
+					if(wantedMemory <= budget) break;
+				}
+			}
+		}
+		
+		// Streaming out every level that isn't wanted anymore, which is free
+		for(StreamedTexture s : textures) {
+			if(s.wanted > s.resident) {
+				s.texture.setLevelRange(s.wanted, s.levels.length - 1);
+				for(int i = s.resident; i < s.wanted; i++) {
+					s.texture.freeMipLevel(i);
+					memoryUsage -= s.levels[i].remaining();
+				}
+				s.resident = s.wanted;
+			}
+		}
+		// Streaming in one level at a time per texture, largest on-screen textures first, within the upload budget
+		ArrayList<StreamedTexture> byPriority = new ArrayList<>(textures);
+		byPriority.sort((a, b) -> Float.compare(b.screenSize, a.screenSize));
+		long uploaded = 0;
+		boolean uploading = true;
+		while(uploading && uploaded < uploadBudget) {
+			uploading = false;
+			for(StreamedTexture s : byPriority) {
+				if(s.wanted >= s.resident) continue;
+				int level = s.resident - 1;
+				long size = s.levels[level].remaining();
+				if(uploaded > 0 && uploaded + size > uploadBudget) continue;
+				s.texture.uploadMipLevel(level, s.levels[level]);
+				s.texture.setLevelRange(level, s.levels.length - 1);
+				s.resident = level;
+				memoryUsage += size;
+				uploaded += size;
+				uploading = true;
+			}
+		}
+	}
+	
+	/** Lowers the wanted level of a streamed texture so that its texels match the on-screen size in pixels, ignores textures that aren't streamed */
+	private void request(Texture texture, float pixels) {
+		StreamedTexture s = lookup.get(texture);
+		if(s == null) return;
+		int size = Math.max(s.width, s.height);
+		int level = (pixels < 1 ? s.coarse : (int)Math.floor(Math.log(size / pixels) / Math.log(2)));
+		level = Math.max(0, Math.min(level, s.coarse));
+		s.wanted = Math.min(s.wanted, level);
+		s.screenSize = Math.max(s.screenSize, pixels);
+	}
+	
+	/** Stops streaming the texture and disposes of it */
+	public void dispose(Texture texture) {
+		StreamedTexture s = lookup.remove(texture);
+		if(s == null) return;
+		textures.remove(s);
+		memoryUsage -= s.memoryFrom(s.resident);
+		texture.dispose();
+	}
+	
+	/** Returns the memory of all resident mip levels in bytes */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+	/** Returns the memory budget in bytes */
+	public long getBudget() {
+		return budget;
+	}
+	/** Sets the memory budget in bytes, takes effect on the next update */
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+	/** Returns the finest resident mip level of a streamed texture, -1 if the texture isn't streamed */
+	public int getResidentLevel(Texture texture) {
+		StreamedTexture s = lookup.get(texture);
+		return (s == null ? -1 : s.resident);
+	}
+	
+	/** Texture streamed from a mapped cache file */
+	private static class StreamedTexture {
+		
+		final Texture texture;
+		final ByteBuffer[] levels; // Data of every level, mapped from the cache file
+		final int width, height;
+		final int coarse; // Finest of the always resident levels
+		int resident; // Finest resident level
+		int wanted; // Finest level needed in the current update
+		float screenSize; // Largest on-screen size of a model using the texture in the current update
+		
+		StreamedTexture(Texture texture, ByteBuffer[] levels, int width, int height, int coarse) {
+			this.texture = texture;
+			this.levels = levels;
+			this.width = width;
+			this.height = height;
+			this.coarse = coarse;
+			resident = coarse;
+			wanted = coarse;
+		}
+		
+		/** Returns the memory of all levels from the given one to the smallest one in bytes */
+		long memoryFrom(int level) {
+			long m = 0;
+			for(int i = level; i < levels.length; i++) m += levels[i].remaining();
+			return m;
+		}
+	}
+
+}
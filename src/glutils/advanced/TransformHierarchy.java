@@ -0,0 +1,377 @@
+package glutils.advanced;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import glutils.utils.JobSystem;
+
+/**
+ * Parent/child hierarchy of transforms stored as structure of arrays in off-heap memory: local translation, rotation (quaternion) and scale, world matrices,
+ * parent indices and dirty flags each have their own buffer. Changing a local transform marks its node dirty, update() then recomputes the world matrices of the dirty
+ * nodes and everything below them, level by level from the roots down, so every parent is done before its children. Only the dirty subtrees are visited, following
+ * per-parent child lists, so the cost of an update grows with the amount of changed nodes and their descendants. Levels with many nodes are split into parallel batches.
+ * Models attached to a node get the node's world matrix copied into their transform on every update. Nodes are identified by their index, which stays valid until destroyed
+ */
+public class TransformHierarchy {
+	
+	/** Parent index of root nodes */
+	public static final int NO_PARENT = -1;
+	/** Smallest level size split into parallel batches */
+	private static final int PARALLEL_LEVEL_SIZE = 2048;
+	
+	private int capacity; // Amount of allocated nodes
+	private int count; // Amount of used node slots, including destroyed ones on the free list
+	
+	// Off-heap node data
+	private FloatBuffer translations; // 3 floats per node
+	private FloatBuffer rotations; // 4 floats per node, quaternion x, y, z, w
+	private FloatBuffer scales; // 3 floats per node
+	private FloatBuffer worlds; // 16 floats per node, column major world matrix
+	private IntBuffer parents; // Parent index per node
+	private ByteBuffer dirty; // 1 if the node was marked dirty, 2 if the node is destroyed, 3 while the node is queued for recomputation during an update
+	
+	private Model[] models; // Model attached to every node, can be null
+	private int[] freeNodes; // Destroyed node indices available for reuse
+	private int freeCount;
+	private int[] dirtyNodes; // Nodes marked dirty since the last update, can hold destroyed nodes and duplicates of reused ones, which update() skips
+	private int dirtyCount; // Amount of entries in dirtyNodes
+	
+	// Child lists and depths, rebuilt when the hierarchy changes
+	private int[] children; // Live non-root nodes grouped by parent
+	private int[] childStarts; // Start of every node's children in children, plus the end of the last node's
+	private int[] depths;
+	private int levelCount;
+	private boolean orderChanged;
+	
+	// Update scratch space
+	private int[] marked; // Marked nodes sorted by depth
+	private int[] levelStarts; // Start of every depth level in marked, plus the end of the last level
+	private int[] work; // Nodes recomputed in the current update, level by level
+	
+	/** Creates an empty hierarchy with space for the given amount of nodes, grows automatically */
+	public TransformHierarchy(int capacity) {
+		this.capacity = Math.max(16, capacity);
+		translations = MemoryUtil.memCallocFloat(this.capacity * 3);
+		rotations = MemoryUtil.memCallocFloat(this.capacity * 4);
+		scales = MemoryUtil.memCallocFloat(this.capacity * 3);
+		worlds = MemoryUtil.memCallocFloat(this.capacity * 16);
+		parents = MemoryUtil.memAllocInt(this.capacity);
+		dirty = MemoryUtil.memCalloc(this.capacity);
+		models = new Model[this.capacity];
+		freeNodes = new int[16];
+		dirtyNodes = new int[16];
+		children = new int[this.capacity];
+		childStarts = new int[this.capacity + 1];
+		depths = new int[this.capacity];
+		marked = new int[this.capacity];
+		levelStarts = new int[16];
+		work = new int[this.capacity];
+		count = 0;
+		freeCount = 0;
+		dirtyCount = 0;
+		orderChanged = false;
+	}
+	/** Creates an empty hierarchy with space for 1024 nodes */
+	public TransformHierarchy() {
+		this(1024);
+	}
+	
+	/** Creates a node with an identity local transform under the given parent (NO_PARENT for a root node) and returns its index */
+	public int create(int parent) {
+		int node;
+		if(freeCount > 0) {
+			node = freeNodes[--freeCount];
+		} else {
+			if(count == capacity) grow(capacity * 2);
+			node = count++;
+		}
+		translations.put(node * 3, 0).put(node * 3 + 1, 0).put(node * 3 + 2, 0);
+		rotations.put(node * 4, 0).put(node * 4 + 1, 0).put(node * 4 + 2, 0).put(node * 4 + 3, 1);
+		scales.put(node * 3, 1).put(node * 3 + 1, 1).put(node * 3 + 2, 1);
+		parents.put(node, parent);
+		dirty.put(node, (byte)0);
+		markDirty(node);
+		orderChanged = true;
+		return node;
+	}
+	
+	/** Destroys a node, its children are moved to its parent keeping their local transforms, an attached model is detached */
+	public void destroy(int node) {
+		int parent = parents.get(node);
+		for(int i = 0; i < count; i++) {
+			if(dirty.get(i) != 2 && parents.get(i) == node) {
+				parents.put(i, parent);
+				markDirty(i);
+			}
+		}
+		detach(node);
+		dirty.put(node, (byte)2);
+		if(freeCount == freeNodes.length) freeNodes = Arrays.copyOf(freeNodes, freeCount * 2);
+		freeNodes[freeCount++] = node;
+		orderChanged = true;
+	}
+	
+	/** Moves a node under a new parent (NO_PARENT to make it a root node), its local transform is kept, moving a node under itself or one of its children is ignored */
+	public void setParent(int node, int parent) {
+		for(int p = parent; p != NO_PARENT; p = parents.get(p)) {
+			if(p == node) return;
+		}
+		parents.put(node, parent);
+		markDirty(node);
+		orderChanged = true;
+	}
+	/** Returns the parent of a node, NO_PARENT for root nodes */
+	public int getParent(int node) {
+		return parents.get(node);
+	}
+	
+	/** Attaches a model to a node, the node's world matrix gets copied into the model's transform on every update, which overrides the model's own translate methods */
+	public void attach(int node, Model model) {
+		detach(node);
+		if(model.transformHierarchy != null) model.transformHierarchy.detach(model.transformSlot);
+		models[node] = model;
+		model.transformHierarchy = this;
+		model.transformSlot = node;
+		model.transform.setFromAddress(MemoryUtil.memAddress(worlds, node * 16));
+	}
+	/** Detaches the model attached to a node, if any */
+	public void detach(int node) {
+		Model m = models[node];
+		if(m == null) return;
+		m.transformHierarchy = null;
+		m.transformSlot = NO_PARENT;
+		models[node] = null;
+	}
+	
+	/** Sets the local translation of a node */
+	public void setTranslation(int node, float x, float y, float z) {
+		translations.put(node * 3, x).put(node * 3 + 1, y).put(node * 3 + 2, z);
+		markDirty(node);
+	}
+	/** Adds to the local translation of a node */
+	public void translate(int node, float x, float y, float z) {
+		int i = node * 3;
+		translations.put(i, translations.get(i) + x).put(i + 1, translations.get(i + 1) + y).put(i + 2, translations.get(i + 2) + z);
+		markDirty(node);
+	}
+	/** Sets the local rotation of a node to a normalized quaternion */
+	public void setRotation(int node, float x, float y, float z, float w) {
+		rotations.put(node * 4, x).put(node * 4 + 1, y).put(node * 4 + 2, z).put(node * 4 + 3, w);
+		markDirty(node);
+	}
+	/** Sets the local rotation of a node */
+	public void setRotation(int node, Quaternionf rotation) {
+		setRotation(node, rotation.x, rotation.y, rotation.z, rotation.w);
+	}
+	/** Sets the local scale of a node */
+	public void setScale(int node, float x, float y, float z) {
+		scales.put(node * 3, x).put(node * 3 + 1, y).put(node * 3 + 2, z);
+		markDirty(node);
+	}
+	
+	/** Stores the local translation of a node in dest and returns it */
+	public Vector3f getTranslation(int node, Vector3f dest) {
+		return dest.set(translations.get(node * 3), translations.get(node * 3 + 1), translations.get(node * 3 + 2));
+	}
+	/** Stores the local rotation of a node in dest and returns it */
+	public Quaternionf getRotation(int node, Quaternionf dest) {
+		return dest.set(rotations.get(node * 4), rotations.get(node * 4 + 1), rotations.get(node * 4 + 2), rotations.get(node * 4 + 3));
+	}
+	/** Stores the local scale of a node in dest and returns it */
+	public Vector3f getScale(int node, Vector3f dest) {
+		return dest.set(scales.get(node * 3), scales.get(node * 3 + 1), scales.get(node * 3 + 2));
+	}
+	/** Stores the world matrix of a node, as of the last update, in dest and returns it */
+	public Matrix4f getWorld(int node, Matrix4f dest) {
+		return dest.setFromAddress(MemoryUtil.memAddress(worlds, node * 16));
+	}
+	/** Returns the buffer holding the world matrices of all nodes, 16 floats per node, which can be uploaded directly for instanced rendering */
+	public FloatBuffer getWorldBuffer() {
+		return worlds;
+	}
+	
+	/** Recomputes the world matrices of all dirty nodes and their children on the calling thread */
+	public void update() {
+		update(null);
+	}
+	/** Recomputes the world matrices of all dirty nodes and their children, levels with many nodes are split into batches run on the job system if it isn't null */
+	public void update(JobSystem jobs) {
+		if(dirtyCount == 0) return;
+		if(orderChanged) rebuildOrder();
+		// Queuing every marked node once, skipping destroyed nodes and duplicates
+		int markedCount = 0;
+		for(int i = 0; i < dirtyCount; i++) {
+			int node = dirtyNodes[i];
+			if(dirty.get(node) != 1) continue;
+			dirty.put(node, (byte)3);
+			dirtyNodes[markedCount++] = node;
+		}
+		// Sorting the marked nodes by depth with a counting sort
+		Arrays.fill(levelStarts, 0, levelCount + 1, 0);
+		for(int i = 0; i < markedCount; i++) levelStarts[depths[dirtyNodes[i]] + 1]++;
+		for(int l = 0; l < levelCount; l++) levelStarts[l + 1] += levelStarts[l];
+		for(int i = 0; i < markedCount; i++) marked[levelStarts[depths[dirtyNodes[i]]]++] = dirtyNodes[i];
+		// Recomputing level by level, every level is made of the children of the level above and the marked nodes of its depth
+		int start = 0, end = 0, m = 0;
+		for(int l = 0; l < levelCount; l++) {
+			while(m < markedCount && depths[marked[m]] == l) work[end++] = marked[m++];
+			if(start == end) {
+				if(m == markedCount) break;
+				continue;
+			}
+			int levelStart = start, levelEnd = end;
+			if(jobs != null && levelEnd - levelStart >= PARALLEL_LEVEL_SIZE) {
+				jobs.run(jobs.parallelFor(levelEnd - levelStart, PARALLEL_LEVEL_SIZE / 4, (from, to) -> updateRange(levelStart + from, levelStart + to)));
+			} else {
+				updateRange(levelStart, levelEnd);
+			}
+			// Queuing the children which aren't queued yet, marked children already are
+			for(int i = levelStart; i < levelEnd; i++) {
+				int node = work[i];
+				for(int c = childStarts[node]; c < childStarts[node + 1]; c++) {
+					int child = children[c];
+					if(dirty.get(child) != 0) continue;
+					dirty.put(child, (byte)3);
+					work[end++] = child;
+				}
+			}
+			start = levelEnd;
+		}
+		// Clearing the flags of this update, destroyed nodes were never queued and keep theirs
+		for(int i = 0; i < end; i++) dirty.put(work[i], (byte)0);
+		dirtyCount = 0;
+	}
+	
+	/** Updates the nodes in a range of the work list, nodes of a level only read their parents, which are on the level above */
+	private void updateRange(int from, int to) {
+		for(int i = from; i < to; i++) {
+			int node = work[i];
+			int parent = parents.get(node);
+			computeWorld(node, parent);
+			Model m = models[node];
+			if(m != null) m.transform.setFromAddress(MemoryUtil.memAddress(worlds, node * 16));
+		}
+	}
+	
+	/** Computes the world matrix of a node from its local translation, rotation and scale and its parent's world matrix */
+	private void computeWorld(int node, int parent) {
+		int t = node * 3, r = node * 4, w = node * 16;
+		float qx = rotations.get(r), qy = rotations.get(r + 1), qz = rotations.get(r + 2), qw = rotations.get(r + 3);
+		float sx = scales.get(t), sy = scales.get(t + 1), sz = scales.get(t + 2);
+		// Local matrix columns, translation * rotation * scale
+		float l00 = (1 - 2 * (qy * qy + qz * qz)) * sx, l01 = 2 * (qx * qy + qw * qz) * sx, l02 = 2 * (qx * qz - qw * qy) * sx;
+		float l10 = 2 * (qx * qy - qw * qz) * sy, l11 = (1 - 2 * (qx * qx + qz * qz)) * sy, l12 = 2 * (qy * qz + qw * qx) * sy;
+		float l20 = 2 * (qx * qz + qw * qy) * sz, l21 = 2 * (qy * qz - qw * qx) * sz, l22 = (1 - 2 * (qx * qx + qy * qy)) * sz;
+		float l30 = translations.get(t), l31 = translations.get(t + 1), l32 = translations.get(t + 2);
+		if(parent == NO_PARENT) {
+			putColumn(w, l00, l01, l02, 0);
+			putColumn(w + 4, l10, l11, l12, 0);
+			putColumn(w + 8, l20, l21, l22, 0);
+			putColumn(w + 12, l30, l31, l32, 1);
+			return;
+		}
+		// Parent world matrix times local matrix, both affine
+		int p = parent * 16;
+		float p00 = worlds.get(p), p01 = worlds.get(p + 1), p02 = worlds.get(p + 2);
+		float p10 = worlds.get(p + 4), p11 = worlds.get(p + 5), p12 = worlds.get(p + 6);
+		float p20 = worlds.get(p + 8), p21 = worlds.get(p + 9), p22 = worlds.get(p + 10);
+		float p30 = worlds.get(p + 12), p31 = worlds.get(p + 13), p32 = worlds.get(p + 14);
+		putColumn(w, p00 * l00 + p10 * l01 + p20 * l02, p01 * l00 + p11 * l01 + p21 * l02, p02 * l00 + p12 * l01 + p22 * l02, 0);
+		putColumn(w + 4, p00 * l10 + p10 * l11 + p20 * l12, p01 * l10 + p11 * l11 + p21 * l12, p02 * l10 + p12 * l11 + p22 * l12, 0);
+		putColumn(w + 8, p00 * l20 + p10 * l21 + p20 * l22, p01 * l20 + p11 * l21 + p21 * l22, p02 * l20 + p12 * l21 + p22 * l22, 0);
+		putColumn(w + 12, p00 * l30 + p10 * l31 + p20 * l32 + p30, p01 * l30 + p11 * l31 + p21 * l32 + p31, p02 * l30 + p12 * l31 + p22 * l32 + p32, 1);
+	}
+	private void putColumn(int i, float x, float y, float z, float w) {
+		worlds.put(i, x).put(i + 1, y).put(i + 2, z).put(i + 3, w);
+	}
+	
+	/** Computes the depth of every live node and groups the live nodes by parent into the child lists using a counting sort */
+	private void rebuildOrder() {
+		Arrays.fill(depths, 0, count, -1);
+		int maxDepth = 0;
+		for(int i = 0; i < count; i++) {
+			if(dirty.get(i) == 2) continue;
+			maxDepth = Math.max(maxDepth, depthOf(i));
+		}
+		levelCount = maxDepth + 1;
+		if(levelStarts.length < levelCount + 1) levelStarts = new int[levelCount + 1];
+		Arrays.fill(childStarts, 0, count + 1, 0);
+		for(int i = 0; i < count; i++) {
+			if(dirty.get(i) != 2 && parents.get(i) != NO_PARENT) childStarts[parents.get(i) + 1]++;
+		}
+		for(int n = 0; n < count; n++) childStarts[n + 1] += childStarts[n];
+		// Filling the lists, using the following node's start as a moving cursor and shifting the starts back afterwards
+		for(int i = 0; i < count; i++) {
+			if(dirty.get(i) != 2 && parents.get(i) != NO_PARENT) children[childStarts[parents.get(i)]++] = i;
+		}
+		for(int n = count; n > 0; n--) childStarts[n] = childStarts[n - 1];
+		childStarts[0] = 0;
+		orderChanged = false;
+	}
+	/** Returns the depth of a node, computing and storing the depths of its ancestors as needed */
+	private int depthOf(int node) {
+		// Walking up to the first node with a known depth, then back down
+		int n = node, steps = 0;
+		while(n != NO_PARENT && depths[n] == -1) {
+			n = parents.get(n);
+			steps++;
+		}
+		int depth = (n == NO_PARENT ? -1 : depths[n]);
+		n = node;
+		for(int s = steps; s > 0; s--) {
+			depths[n] = depth + s;
+			n = parents.get(n);
+		}
+		return depths[node];
+	}
+	
+	/** Marks a node dirty */
+	private void markDirty(int node) {
+		if(dirty.get(node) == 0) {
+			dirty.put(node, (byte)1);
+			if(dirtyCount == dirtyNodes.length) dirtyNodes = Arrays.copyOf(dirtyNodes, dirtyCount * 2);
+			dirtyNodes[dirtyCount++] = node;
+		}
+	}
+	
+	/** Grows all node buffers to the given capacity */
+	private void grow(int newCapacity) {
+		translations = MemoryUtil.memRealloc(translations, newCapacity * 3);
+		rotations = MemoryUtil.memRealloc(rotations, newCapacity * 4);
+		scales = MemoryUtil.memRealloc(scales, newCapacity * 3);
+		worlds = MemoryUtil.memRealloc(worlds, newCapacity * 16);
+		parents = MemoryUtil.memRealloc(parents, newCapacity);
+		dirty = MemoryUtil.memRealloc(dirty, newCapacity);
+		models = Arrays.copyOf(models, newCapacity);
+		children = new int[newCapacity];
+		childStarts = new int[newCapacity + 1];
+		depths = new int[newCapacity];
+		marked = new int[newCapacity];
+		work = new int[newCapacity];
+		capacity = newCapacity;
+	}
+	
+	/** Returns the amount of live nodes */
+	public int size() {
+		return count - freeCount;
+	}
+	
+	/** Frees the off-heap memory and detaches all models, the hierarchy can't be used afterwards */
+	public void dispose() {
+		for(int i = 0; i < count; i++) detach(i);
+		MemoryUtil.memFree(translations);
+		MemoryUtil.memFree(rotations);
+		MemoryUtil.memFree(scales);
+		MemoryUtil.memFree(worlds);
+		MemoryUtil.memFree(parents);
+		MemoryUtil.memFree(dirty);
+	}
+
+}
@@ -1,36 +1,117 @@
 package glutils.advanced;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 import glutils.core.Shader;
 
-/** Class containing a world light system with a directional light, ambient light and an array of point lights */
+/** 
+ * Class containing a world light system with a directional light, ambient light and an array of point lights. Point lights should be added and removed through
+ * addPointLight() and removePointLight() and have unique names, removing a light by name takes constant time (the last light takes the removed light's place)
+ */
 public class WorldLight {
 	
 	public DirectionalLight directionalLight;
 	public ArrayList<PointLight> pointLights;
 	public Vector4f ambientLight;
 	
+	private HashMap<String, Integer> indices; // Index of every point light in pointLights by name
+	private long[] keys; // Squared distance (float bits, high half) and index (low half) of every light, sorting the keys sorts the lights by distance
+	private int[] modelLights; // Lights of the model being drawn, selected by a LightCuller
+	
 	public WorldLight(DirectionalLight dirLight, Vector4f ambientLightColor) {
 		
 		directionalLight = dirLight;
 		pointLights = new ArrayList<>();
 		ambientLight = ambientLightColor;
+		indices = new HashMap<>();
+		keys = new long[16];
+		modelLights = new int[0];
 		
 	}
 	
 	public void addPointLight(PointLight pointLight) {
+		indices.put(pointLight.name, pointLights.size());
 		pointLights.add(pointLight);
 	}
+	/** Removes the point light with the given name, the last point light is moved into its place */
 	public void removePointLight(String name) {
-		for(PointLight p : pointLights) {
-			if(p.name.equals(name)) {
-				pointLights.remove(p);
+		if(indices.size() != pointLights.size()) rebuildIndices(); // pointLights was changed directly
+		Integer index = indices.remove(name);
+		if(index == null) return;
+		PointLight last = pointLights.remove(pointLights.size() - 1);
+		if(index < pointLights.size()) {
+			pointLights.set(index, last);
+			indices.put(last.name, index);
+		}
+	}
+	/** Returns the point light with the given name, null if there is none */
+	public PointLight getPointLight(String name) {
+		if(indices.size() != pointLights.size()) rebuildIndices();
+		Integer index = indices.get(name);
+		return (index == null ? null : pointLights.get(index));
+	}
+	
+	/** Rebuilds the name lookup after pointLights was changed without addPointLight() and removePointLight() */
+	private void rebuildIndices() {
+		indices.clear();
+		for(int i = 0; i < pointLights.size(); i++) indices.put(pointLights.get(i).name, i);
+	}
+	
+	/** 
+	 * Selects the k point lights nearest to pos, nearest first. Takes linear time: squared distances are cached with the light indices in a primitive array,
+	 * quickselect moves the k nearest to the front and only those are sorted
+	 * @param dest list the selected lights are written into, cleared first
+	 * @return the amount of lights selected
+	 */
+	public int selectNearest(Vector3f pos, int k, List<PointLight> dest) {
+		dest.clear();
+		int count = select(pos, k);
+		for(int i = 0; i < count; i++) dest.add(pointLights.get((int)keys[i]));
+		return count;
+	}
+	
+	/** Moves the keys of the k lights nearest to pos to the front of keys sorted by distance, returns the amount of lights selected */
+	private int select(Vector3f pos, int k) {
+		int n = pointLights.size();
+		if(keys.length < n) keys = new long[Math.max(n, keys.length * 2)];
+		for(int i = 0; i < n; i++) {
+			Vector3f p = pointLights.get(i).pos;
+			float dx = p.x - pos.x, dy = p.y - pos.y, dz = p.z - pos.z;
+			// Non-negative floats keep their order when compared as integer bits
+			keys[i] = ((long)Float.floatToIntBits(dx * dx + dy * dy + dz * dz) << 32) | i;
+		}
+		k = Math.min(k, n);
+		if(k <= 0) return 0;
+		if(k < n) quickselect(keys, 0, n - 1, k - 1);
+		Arrays.sort(keys, 0, k);
+		return k;
+	}
+	
+	/** Partially sorts keys between lo and hi (inclusive) so that the key at index kth is in its sorted place with only smaller or equal keys before it */
+	static void quickselect(long[] keys, int lo, int hi, int kth) {
+		while(hi > lo) {
+			int mid = (lo + hi) >>> 1;
+			long a = keys[lo], b = keys[mid], c = keys[hi];
+			long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c)); // Median of three
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(keys[i] < pivot) i++;
+				while(keys[j] > pivot) j--;
+				if(i <= j) {
+					long t = keys[i];
+					keys[i++] = keys[j];
+					keys[j--] = t;
+				}
 			}
+			if(kth <= j) hi = j;
+			else if(kth >= i) lo = i;
+			else return;
 		}
 	}
 	
@@ -44,17 +125,13 @@ public class WorldLight {
 		shader.setUniformVec4(ambientLightName, ambientLight);
 		
 		
-		pointLights.sort(new Comparator<PointLight>() {
-			// + if if first bigger
-			public int compare(PointLight p0, PointLight p1) {
-				return (p0.pos.distance(playerPos) > p1.pos.distance(playerPos) ? 1 : -1);
-			}
-		});
-		for(int i = 0; i < Math.min(pointLightsToUse, pointLights.size()); i++) {
-			PointLight p = pointLights.get(i);
+		// Only the nearest lights are needed, the rest of the list stays unsorted
+		int count = select(playerPos, pointLightsToUse);
+		for(int i = 0; i < count; i++) {
+			PointLight p = pointLights.get((int)keys[i]);
 			p.use(shader, pointLightUniformName + "[" + i + "]", pointLightPositionComponentName, pointLightColorComponentName, pointLightIntensityComponentName, pointLightFalloffLinearComponentName, pointLightFalloffQuadraticComponentName);
 		}
-		shader.setUniformInt(pointLightsUsedName, Math.min(pointLightsToUse, pointLights.size()));
+		shader.setUniformInt(pointLightsUsedName, count);
 		
 	}
 	/** Applies the world light to the given shader with the default parameters of all the light types (specified in the use() methods of the light types). If the amount of point lights is bigger than pointLightsToUse, only the specified amount will be applied to the shader, this amount should also be the pointLight[] size */
@@ -65,5 +142,23 @@ public class WorldLight {
 	public void use(Shader shader, Vector3f playerPos) {
 		use(shader, 12, playerPos);
 	}
+	/** 
+	 * Applies the world light to the given shader with the default parameters of all the light types, with only the point lights reaching the model instead of the ones nearest to the player.
+	 * The culler has to be updated with this world light's point lights, at most pointLightsToUse lights are applied, the strongest at the model's bounds
+	 */
+	public void use(Shader shader, int pointLightsToUse, Model model, LightCuller culler) {
+		directionalLight.use(shader);
+		shader.setUniformVec4("ambientLight", ambientLight);
+		if(modelLights.length != pointLightsToUse) modelLights = new int[pointLightsToUse];
+		int count = culler.assign(model, modelLights);
+		for(int i = 0; i < count; i++) {
+			culler.getLight(modelLights[i]).use(shader, "pointLight[" + i + "]", "position", "color", "intensity", "falloffLinear", "falloffQuadratic");
+		}
+		shader.setUniformInt("pointLightsUsed", count);
+	}
+	/** Applies the world light to the given shader with only the point lights reaching the model, at most 12, see use(Shader, int, Model, LightCuller) */
+	public void use(Shader shader, Model model, LightCuller culler) {
+		use(shader, 12, model, culler);
+	}
 
 }
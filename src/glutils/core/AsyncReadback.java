@@ -0,0 +1,146 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Reads framebuffer pixels back without stalling the pipeline. Every read copies the pixels into one of a ring of pixel pack buffers and places a fence behind the copy,
+ * later calls to poll() hand the pixels of every read whose fence has signaled to the callback, in the order they were read. With a ring of 3 buffers the pixels of
+ * frame N usually arrive while frame N+2 is rendered. Only if all buffers are still in flight does a read wait for the oldest one, which is counted as a stall
+ */
+public class AsyncReadback {
+	
+	/** Receives the pixels of a finished read */
+	public interface Callback {
+		/**
+		 * Called with the RGBA pixels of a read, rows starting at the bottom
+		 * @param frame the number returned by the read() call the pixels belong to
+		 * @param pixels the pixels, only valid during the call, copy them to keep them
+		 */
+		void accept(long frame, ByteBuffer pixels, int width, int height);
+	}
+	
+	private Callback callback;
+	private int[] buffers; // Pixel pack buffers of the ring
+	private long[] fences; // Fence behind the read into each buffer, 0 if the buffer isn't in flight
+	private long[] frames; // Frame number of the read in each buffer
+	private int[] widths, heights; // Size of the read in each buffer
+	private int[] capacities; // Allocated size of each buffer in bytes
+	private int next; // Buffer used by the next read
+	private int oldest; // Oldest buffer in flight
+	private int pending; // Buffers in flight
+	private long frameCount; // Reads issued so far, the next read's frame number
+	private long stalls; // Reads which had to wait for a buffer
+	
+	/**
+	 * Creates a readback ring
+	 * @param ringSize amount of buffers, the number of reads which can be in flight at once, 3 is usually enough not to stall
+	 * @param callback receives the pixels of every read
+	 */
+	public AsyncReadback(int ringSize, Callback callback) {
+		this.callback = callback;
+		ringSize = Math.max(1, ringSize);
+		buffers = new int[ringSize];
+		fences = new long[ringSize];
+		frames = new long[ringSize];
+		widths = new int[ringSize];
+		heights = new int[ringSize];
+		capacities = new int[ringSize];
+		GL33.glGenBuffers(buffers);
+	}
+	
+	/** Starts reading the color of the framebuffer (resolving it first if multisampled), returns the frame number passed to the callback once the pixels arrive */
+	public long read(Framebuffer framebuffer) {
+		framebuffer.bindForReading();
+		return read(framebuffer.getWidth(), framebuffer.getHeight());
+	}
+	
+	/** Starts reading the color of the framebuffer bound for reading, e.g. the window's default framebuffer, returns the frame number passed to the callback */
+	public long read(int width, int height) {
+		poll();
+		if(pending == buffers.length) {
+			// Every buffer is in flight, the oldest read has to finish first
+			stalls++;
+			deliver(true);
+		}
+		int size = width * height * 4;
+		GLState.bindBuffer(GL33.GL_PIXEL_PACK_BUFFER, buffers[next]);
+		if(capacities[next] < size) {
+			GL33.glBufferData(GL33.GL_PIXEL_PACK_BUFFER, size, GL33.GL_STREAM_READ);
+			capacities[next] = size;
+		}
+		GL33.glPixelStorei(GL33.GL_PACK_ALIGNMENT, 1);
+		GL33.glReadPixels(0, 0, width, height, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, 0);
+		GLState.bindBuffer(GL33.GL_PIXEL_PACK_BUFFER, 0);
+		fences[next] = GL33.glFenceSync(GL33.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		frames[next] = frameCount;
+		widths[next] = width;
+		heights[next] = height;
+		next = (next + 1) % buffers.length;
+		pending++;
+		return frameCount++;
+	}
+	
+	/** Hands the pixels of every finished read to the callback without waiting, stops at the first read still in flight so frames arrive in order */
+	public void poll() {
+		while(pending > 0 && deliver(false));
+	}
+	
+	/** Waits for every read in flight and hands its pixels to the callback, e.g. before disposing or at the end of a recording */
+	public void flush() {
+		while(pending > 0) deliver(true);
+	}
+	
+	/** Hands the oldest read to the callback if its fence has signaled or wait is true, returns whether it was delivered */
+	private boolean deliver(boolean wait) {
+		int i = oldest;
+		// The flush bit makes sure the fence reaches the GPU, otherwise a poll could wait on it forever
+		int result = GL33.glClientWaitSync(fences[i], GL33.GL_SYNC_FLUSH_COMMANDS_BIT, wait ? Long.MAX_VALUE : 0);
+		if(result == GL33.GL_TIMEOUT_EXPIRED) return false;
+		if(result == GL33.GL_WAIT_FAILED) Window.print("AsyncReadback: waiting for a fence failed", true, true, true, 0);
+		GL33.glDeleteSync(fences[i]);
+		fences[i] = 0;
+		oldest = (oldest + 1) % buffers.length;
+		pending--;
+		
+		int size = widths[i] * heights[i] * 4;
+		GLState.bindBuffer(GL33.GL_PIXEL_PACK_BUFFER, buffers[i]);
+		ByteBuffer pixels = GL33.glMapBufferRange(GL33.GL_PIXEL_PACK_BUFFER, 0, size, GL33.GL_MAP_READ_BIT);
+		if(pixels != null) {
+			try {
+				callback.accept(frames[i], pixels, widths[i], heights[i]);
+			} finally {
+				GL33.glUnmapBuffer(GL33.GL_PIXEL_PACK_BUFFER);
+			}
+		} else {
+			Window.print("AsyncReadback: mapping a pixel buffer failed", true, true, true, 0);
+		}
+		GLState.bindBuffer(GL33.GL_PIXEL_PACK_BUFFER, 0);
+		return true;
+	}
+	
+	/** Returns the amount of reads issued, which is also the frame number of the next read */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	/** Returns the amount of reads in flight */
+	public int getPendingCount() {
+		return pending;
+	}
+	/** Returns how many reads had to wait because every buffer was in flight, a growing count means the ring is too small */
+	public long getStallCount() {
+		return stalls;
+	}
+	
+	/** Disposes of the buffers, reads still in flight are dropped */
+	public void dispose() {
+		for(int i = 0; i < buffers.length; i++) {
+			if(fences[i] != 0) GL33.glDeleteSync(fences[i]);
+			GL33.glDeleteBuffers(buffers[i]);
+			GLState.bufferDeleted(buffers[i]);
+		}
+		pending = 0;
+	}
+
+}
@@ -0,0 +1,117 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.stb.STBImageWrite;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Renders many scenes back to back into one offscreen framebuffer and hands every rendered image to a consumer, used to generate thumbnails or previews in bulk.
+ * Works with any window, though the intended use is a headless one (Window.createHeadless()), where nothing is ever presented and only the framebuffer is rendered to.
+ * The framebuffer and the readback buffers are reused for every scene, so rendering a batch allocates nothing per image. Pixels are read back asynchronously,
+ * so the next scenes render while earlier images are still being copied
+ */
+public class BatchRenderer {
+	
+	/** A scene rendered by the batch */
+	public interface Scene {
+		/** Renders the scene with the given index into the target, which is bound and cleared already */
+		void render(int index, Framebuffer target);
+	}
+	/** Receives the rendered images */
+	public interface ImageConsumer {
+		/** Called with the RGBA pixels of the scene with the given index, rows starting at the bottom. The buffer is only valid during the call, copy it to keep it */
+		void accept(int index, ByteBuffer pixels, int width, int height);
+	}
+	
+	private Framebuffer target;
+	private AsyncReadback readback;
+	private ImageConsumer consumer; // Consumer of the batch being rendered
+	private long batchStart; // Readback frame number of the first image of the batch
+	
+	/** Background color every scene is cleared to */
+	public float clearR, clearG, clearB, clearA;
+	
+	private double frameRate; // Images per second of the last batch
+	
+	/** Creates a batch renderer rendering images of the given size */
+	public BatchRenderer(int width, int height) {
+		this(width, height, 1);
+	}
+	
+	/** Creates a batch renderer rendering images of the given size with the given samples per pixel for anti-aliasing */
+	public BatchRenderer(int width, int height, int samples) {
+		target = new Framebuffer(width, height, samples, false);
+		readback = new AsyncReadback(3, (frame, pixels, w, h) -> consumer.accept((int)(frame - batchStart), pixels, w, h));
+		clearA = 1;
+	}
+	
+	/**
+	 * Renders the scenes with indices 0 to count-1 one after another and passes each image to the consumer
+	 * @param count amount of scenes to render
+	 * @param scene renders the scene with a given index
+	 * @param consumer receives the images, can be null to only render (e.g. to measure the frame rate)
+	 */
+	public void render(int count, Scene scene, ImageConsumer consumer) {
+		long start = System.nanoTime();
+		this.consumer = consumer;
+		batchStart = readback.getFrameCount();
+		for(int i = 0; i < count; i++) {
+			target.clear(clearR, clearG, clearB, clearA);
+			scene.render(i, target);
+			if(consumer != null) readback.read(target);
+		}
+		readback.flush();
+		this.consumer = null;
+		GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, 0);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		frameRate = (seconds > 0 ? count / seconds : 0);
+		Window.print("BatchRenderer: rendered " + count + " images at " + (int)frameRate + " images per second", true, 2);
+	}
+	
+	/** Changes the size of the rendered images */
+	public void resize(int width, int height) {
+		target.resize(width, height);
+	}
+	
+	/**
+	 * Returns a consumer writing every image to a PNG file
+	 * @param pathFormat path of the files, formatted with the image index using String.format(), e.g. "out/thumb_%04d.png"
+	 */
+	public static ImageConsumer pngWriter(String pathFormat) {
+		return (index, pixels, width, height) -> {
+			String path = String.format(pathFormat, index);
+			try(MemoryStack stack = MemoryStack.stackPush()) {
+				// OpenGL rows start at the bottom, image files at the top, so the rows are written from the last one with a negative stride.
+				// Unlike stbi_flip_vertically_on_write() this leaves STB's process wide flip setting alone
+				long lastRow = MemoryUtil.memAddress(pixels) + (long)(height - 1) * width * 4;
+				if(STBImageWrite.nstbi_write_png(MemoryUtil.memAddress(stack.UTF8(path)), width, height, 4, lastRow, -width * 4) == 0) {
+					Window.print("BatchRenderer: failed to write image " + path, true, true, true, 0);
+				}
+			}
+		};
+	}
+	
+	/** Returns the framebuffer the scenes are rendered into */
+	public Framebuffer getFramebuffer() {
+		return target;
+	}
+	/** Returns the images rendered per second in the last batch, including readback and the consumer */
+	public double getFrameRate() {
+		return frameRate;
+	}
+	
+	/** Returns the readback ring, whose stall count shows whether the images are consumed fast enough */
+	public AsyncReadback getReadback() {
+		return readback;
+	}
+	
+	/** Disposes of the framebuffer and the readback buffers */
+	public void dispose() {
+		readback.dispose();
+		target.dispose();
+	}
+
+}
@@ -17,8 +17,9 @@ public class Buffer {
 		this.bufferData = bufferData;
 		this.vertexAttribPointer = vertexAttribPointer;
 		bufferID = GL33.glGenBuffers();
-		GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, bufferID);
+		GLState.bindBuffer(GL33.GL_ARRAY_BUFFER, bufferID);
 		GL33.glBufferData(GL33.GL_ARRAY_BUFFER, this.bufferData, GL33.GL_STREAM_DRAW);
+		RenderStats.countBufferBytes((long)bufferData.length * Float.BYTES);
 		GL33.glVertexAttribPointer(this.vertexAttribPointer, size, GL33.GL_FLOAT, false, size * Float.BYTES, 0);
 		GL33.glEnableVertexAttribArray(this.vertexAttribPointer);
 	}
@@ -26,12 +27,14 @@ public class Buffer {
 	/** Internal method, updates the data of an already generated buffer */
 	public void updateBuffer(float[] bufferData) {
 		this.bufferData = bufferData;
-		GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, bufferID);
+		GLState.bindBuffer(GL33.GL_ARRAY_BUFFER, bufferID);
 		GL33.glBufferData(GL33.GL_ARRAY_BUFFER, this.bufferData, GL33.GL_STREAM_DRAW);
+		RenderStats.countBufferBytes((long)bufferData.length * Float.BYTES);
 	}
 	
 	/** Internal method, disposes of the generated buffer object */
 	public void dispose() {
 		GL33.glDeleteBuffers(bufferID);
+		GLState.bufferDeleted(bufferID);
 	}
 }
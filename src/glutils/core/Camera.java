@@ -4,7 +4,13 @@ import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 
-/** Class holding a view and projection matrix, which can be translated and rotated using methods */
+/**
+ * Class holding a view and projection matrix, which can be translated and rotated using methods.
+ * The view matrix is only recomputed after the camera was moved or rotated, and the matrices derived from view and projection (view projection, inverses, frustum planes)
+ * only after either changed. Every change increases the epoch, which lets users of the camera skip work when the camera hasn't changed since they last looked.
+ * After changing view or proj directly, markDirty() has to be called. The view matrix is derived from position, rotation and center offset, a direct change to it is kept
+ * only until the camera is next moved or rotated
+ */
 public class Camera {
 	
 	/** The camera view matrix */
@@ -12,6 +18,13 @@ public class Camera {
 	/** The camera projection matrix */
 	public Matrix4f proj;
 	
+	private boolean viewDirty; // Whether position, rotation or offset changed since the view matrix was computed
+	private boolean derivedDirty; // Whether view or projection changed since the derived matrices were computed
+	private long epoch; // Amount of view and projection changes
+	private Matrix4f viewProj, invView, invProj, invViewProj;
+	private Frustum frustum;
+	private Vector3f offsetDir; // Reused for the center offset
+	
 	private Vector3f camPos; // The position vector of the camera
 	private float centerOffset; // The offset of the camera from the center the camera rotates around, 0 for first person, higher number for orbit camera
 	
@@ -32,21 +45,29 @@ public class Camera {
 	/** Private constructor to be used by the static initialization methods */
 	private Camera(Vector3f startingPos, float centerOffset, float startingRotX, float startingRotY) {
 		// Declaration, init
-		camPos = startingPos;
+		// Copied, the camera only moves through the translate methods, which mark the view as changed
+		camPos = new Vector3f(startingPos);
 		camRotX = 0.0f + startingRotX;
 		camRotY= 0.0f + startingRotY;
 		this.centerOffset = centerOffset;
 		
 		view = new Matrix4f();
+		viewProj = new Matrix4f();
+		invView = new Matrix4f();
+		invProj = new Matrix4f();
+		invViewProj = new Matrix4f();
+		frustum = new Frustum();
+		offsetDir = new Vector3f();
 		
 		// Matrix setting
+		viewDirty = true;
 		updateView();
 		proj = new Matrix4f();
 	}
 	
 	/** 
 	 * Creates a camera with a perspective projection matrix
-	 * @param startingPos starting position of the camera
+	 * @param startingPos starting position of the camera, copied, see translateToGlobal() to move the camera later
 	 * @param centerOffset the distance of the camera from the center of rotation, 0 for first person, higher number for third person
 	 * @param startingRotX starting rotation of the camera along the x axis
 	 * @param startingRotY starting rotation of the camera along the y axis
@@ -63,7 +84,7 @@ public class Camera {
 	
 	/** 
 	 * Creates a camera with an orthographic projection matrix
-	 * @param startingPos starting position of the camera
+	 * @param startingPos starting position of the camera, copied, see translateToGlobal() to move the camera later
 	 * @param centerOffset the distance of the camera from the center of rotation, 0 for first person, higher number for third person
 	 * @param startingRotX starting rotation of the camera along the x axis
 	 * @param startingRotY starting rotation of the camera along the y axis
@@ -108,6 +129,7 @@ public class Camera {
 	public void updatePerspective(float fov, Vector2f aspect, float near, float far) {
 		proj.identity();
 		proj.perspective((float)Math.toRadians(fov), (aspect.x / aspect.y), near, far);
+		changed();
 	}
 	
 	/** 
@@ -138,6 +160,7 @@ public class Camera {
 		}
 		proj.identity();
 		proj.ortho(left, right, bottom, top, near, far);
+		changed();
 	}
 	
 	/** 
@@ -163,8 +186,9 @@ public class Camera {
 		use("view", "proj", "camPos", shaderProgram);
 	}
 	
-	/** Updates the view matrix of the camera, not necessary to call manually (gets called by use method) */
+	/** Updates the view matrix of the camera if it was moved or rotated since the last update, not necessary to call manually (gets called by use method) */
 	public void updateView() {
+		if(!viewDirty) return;
 		// Resetting the matrix
 		view.identity();
 		// Steps: 1) rotate, 2) translate, 3) offset, order of rotate/translate important, what axis to rotate first also
@@ -172,47 +196,130 @@ public class Camera {
 		view.rotateX((float)Math.toRadians(-camRotX));
 		view.rotateY((float)Math.toRadians(-camRotY));
 		// Translate
-		view.translate(new Vector3f(camPos).negate());
+		view.translate(-camPos.x, -camPos.y, -camPos.z);
 		// Offset
 		if(centerOffset != 0) {
-			Vector3f dir = new Vector3f(0, 0, -1);
-			dir.rotateX((float)Math.toRadians(camRotX));
-			dir.rotateY((float)Math.toRadians(camRotY));
-			dir.mul(-centerOffset);
-			view.translate(dir.negate());
+			offsetDir.set(0, 0, -1);
+			offsetDir.rotateX((float)Math.toRadians(camRotX));
+			offsetDir.rotateY((float)Math.toRadians(camRotY));
+			view.translate(offsetDir.mul(centerOffset));
 		}
+		viewDirty = false;
+		changed();
+	}
+	
+	/** Updates the view matrix and the matrices and frustum derived from view and projection, if anything changed since the last update */
+	public void update() {
+		updateView();
+		if(!derivedDirty) return;
+		proj.mul(view, viewProj);
+		view.invertAffine(invView);
+		proj.invert(invProj);
+		viewProj.invert(invViewProj);
+		frustum.set(viewProj);
+		derivedDirty = false;
+	}
+	
+	/** Marks the view or projection as changed, needed after changing the view or proj matrix directly. The matrices are kept as written, only the derived ones are recomputed */
+	public void markDirty() {
+		changed();
+	}
+	
+	/** Records a change of the view or projection matrix */
+	private void changed() {
+		derivedDirty = true;
+		epoch++;
+	}
+	
+	/** Returns the amount of changes of the view and projection matrix so far, equal epochs mean the matrices didn't change in between. Updates the view matrix if needed */
+	public long getEpoch() {
+		updateView();
+		return epoch;
+	}
+	/** Returns the view projection matrix (proj * view), updated if needed. The matrix is reused by the camera and must not be modified */
+	public Matrix4f getViewProj() {
+		update();
+		return viewProj;
+	}
+	/** Returns the inverse view matrix, transforming from view to world space, updated if needed. The matrix is reused by the camera and must not be modified */
+	public Matrix4f getInvView() {
+		update();
+		return invView;
+	}
+	/** Returns the inverse projection matrix, transforming from clip to view space, updated if needed. The matrix is reused by the camera and must not be modified */
+	public Matrix4f getInvProj() {
+		update();
+		return invProj;
+	}
+	/** Returns the inverse view projection matrix, transforming from clip to world space, updated if needed. The matrix is reused by the camera and must not be modified */
+	public Matrix4f getInvViewProj() {
+		update();
+		return invViewProj;
+	}
+	/** Returns the view frustum, updated if needed. The frustum is reused by the camera and must not be modified */
+	public Frustum getFrustum() {
+		update();
+		return frustum;
+	}
+	/** Stores the position the view is rendered from (the camera position moved back by the center offset) in dest and returns dest */
+	public Vector3f getViewPos(Vector3f dest) {
+		return getInvView().getTranslation(dest);
+	}
+	/**
+	 * Stores the ray through a point of the screen in origin and direction, e.g. to pick what is under the mouse
+	 * @param x horizontal position in pixels from the left, e.g. from Window.getMousePos()
+	 * @param y vertical position in pixels from the top
+	 * @param width width of the screen in pixels
+	 * @param height height of the screen in pixels
+	 * @param origin receives the point of the ray on the near plane
+	 * @param direction receives the normalized direction of the ray, so hit distances along it are in world units
+	 */
+	public void getPickRay(float x, float y, float width, float height, Vector3f origin, Vector3f direction) {
+		Matrix4f inv = getInvViewProj();
+		float ndcX = 2 * x / width - 1, ndcY = 1 - 2 * y / height;
+		inv.transformProject(ndcX, ndcY, -1, origin);
+		inv.transformProject(ndcX, ndcY, 1, direction).sub(origin).normalize();
 	}
 	
 	/** Translates the camera along the global coordinate system */
 	public void translateByGlobal(Vector3f translation) {
 		camPos.add(translation);
+		viewDirty = true;
 	}
 	/** Translates the camera along the rotation relative axis */
 	public void translateByLocal(Vector3f translation) {
 		translation.rotateX((float)Math.toRadians(camRotX));
 		translation.rotateY((float)Math.toRadians(camRotY));
 		camPos.add(translation);
+		viewDirty = true;
 	}
 	/** Translates the camera to the global coordinates */
 	public void translateToGlobal(Vector3f translation) {
 		camPos.set(translation);
+		viewDirty = true;
 	}
 	
 	/** Adds to the x and y axis camera rotation */
 	public void rotate(float camRotX, float camRotY) {
 		this.camRotX += camRotX;
 		this.camRotY += camRotY;
+		viewDirty = true;
 	}
 	/** Sets the x and y axis camera rotation */
 	public void setRotation(float camRotX, float camRotY) {
 		this.camRotX = camRotX;
 		this.camRotY = camRotY;
+		viewDirty = true;
 	}
 	
 	/** Returns the current position vector of the camera */
 	public Vector3f getCamPos() {
 		return new Vector3f(camPos);
 	}
+	/** Stores the current position of the camera in dest and returns dest */
+	public Vector3f getCamPos(Vector3f dest) {
+		return dest.set(camPos);
+	}
 	/** Returns the current x axis rotation of the camera */
 	public float getRotX() {
 		return camRotX;
@@ -229,10 +336,12 @@ public class Camera {
 	/** Sets the offset from the center of rotation of the camera, set to 0 for first person camera, set to higher number for third person camera */
 	public void setCenterOffset(float newCenterOffset) {
 		centerOffset = newCenterOffset;
+		viewDirty = true;
 	}
 	/** Adds to the offset from the center of rotation of the camera */
 	public void addCenterOffset(float centerOffset) {
 		this.centerOffset = centerOffset;
+		viewDirty = true;
 	}
 	
 	// TODO FOR LATER: MAKE A DIFFERENT COORD SYSTEM THAN XYZ EULER FOR Z AXIS ROTATION, LIKE QUARTER ONIONS (QUATERNIONS BUT THATS BORING LOL).
@@ -0,0 +1,243 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Class holding an OpenGL framebuffer object with an RGBA color attachment and a depth/stencil attachment, used to render offscreen at any resolution.
+ * The depth/stencil attachment is a renderbuffer, or a texture if it has to be sampled later. A multisampled framebuffer renders into multisampled renderbuffers
+ * and is resolved into the color (and depth) textures by resolve(), which reading and sampling require. A framebuffer can also have several color attachments
+ * of any normalized or floating point format, which fragment shaders write through layout(location = n) outputs (multiple render targets, e.g. a G-buffer)
+ */
+public class Framebuffer {
+	
+	/** The OpenGL id of the framebuffer */
+	public int framebufferID;
+	
+	private int samples; // Samples per pixel, 1 when not multisampled
+	private boolean hasDepthTexture;
+	private int[] colorFormats; // Internal format of every color attachment
+	private Texture[] colors; // Color textures, the first one is the resolve target when multisampled
+	private Texture color; // First color texture
+	private Texture depth; // Depth/stencil texture, null if the depth is only a renderbuffer
+	private int colorBuffer; // Multisampled color renderbuffer, 0 when not multisampled
+	private int depthStencil; // Depth/stencil renderbuffer, 0 when the depth texture is attached directly
+	private int resolveID; // Framebuffer holding the textures when multisampled, 0 otherwise
+	private boolean needsResolve; // Whether the framebuffer was rendered to since the last resolve
+	private int width;
+	private int height;
+	
+	/** Creates a framebuffer with an RGBA color texture and a depth/stencil renderbuffer of the given size */
+	public Framebuffer(int width, int height) {
+		this(width, height, 1, false);
+	}
+	
+	/**
+	 * Creates a framebuffer
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param samples samples per pixel for multisample anti-aliasing, 1 for none, clamped to GL_MAX_SAMPLES
+	 * @param depthTexture whether the depth/stencil attachment should be a texture which can be sampled, otherwise it is a renderbuffer
+	 */
+	public Framebuffer(int width, int height, int samples, boolean depthTexture) {
+		this(width, height, samples, new int[] {GL33.GL_RGBA8}, depthTexture);
+	}
+	
+	/**
+	 * Creates a framebuffer with multiple render targets, one color texture per format. Fragment output n is written into the texture of colorFormats[n]
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 * @param colorFormats internal format of every color attachment, e.g. GL_RGBA8, GL_RGBA16F or GL_R32F, at most GL_MAX_DRAW_BUFFERS
+	 * @param depthTexture whether the depth/stencil attachment should be a texture which can be sampled, otherwise it is a renderbuffer
+	 */
+	public Framebuffer(int width, int height, int[] colorFormats, boolean depthTexture) {
+		this(width, height, 1, colorFormats, depthTexture);
+	}
+	
+	/** Creates the framebuffer, multisampling is only used with a single color attachment */
+	private Framebuffer(int width, int height, int samples, int[] colorFormats, boolean depthTexture) {
+		this.colorFormats = colorFormats.clone();
+		this.samples = (colorFormats.length > 1 ? 1 : Math.max(1, Math.min(samples, GL33.glGetInteger(GL33.GL_MAX_SAMPLES))));
+		this.hasDepthTexture = depthTexture;
+		framebufferID = GL33.glGenFramebuffers();
+		if(this.samples > 1) {
+			resolveID = GL33.glGenFramebuffers();
+			colorBuffer = GL33.glGenRenderbuffers();
+		}
+		if(this.samples > 1 || !depthTexture) depthStencil = GL33.glGenRenderbuffers();
+		allocate(width, height);
+	}
+	
+	/** Creates the attachments with the given size and attaches them */
+	private void allocate(int width, int height) {
+		this.width = width;
+		this.height = height;
+		colors = new Texture[colorFormats.length];
+		for(int i = 0; i < colors.length; i++) colors[i] = createTexture(colorFormats[i], GL33.GL_RGBA, (isFloatFormat(colorFormats[i]) ? GL33.GL_FLOAT : GL33.GL_UNSIGNED_BYTE), Texture.FILTER_LINEAR);
+		color = colors[0];
+		depth = (hasDepthTexture ? createTexture(GL33.GL_DEPTH24_STENCIL8, GL33.GL_DEPTH_STENCIL, GL33.GL_UNSIGNED_INT_24_8, Texture.FILTER_NEAREST) : null);
+		
+		if(samples > 1) {
+			GL33.glBindRenderbuffer(GL33.GL_RENDERBUFFER, colorBuffer);
+			GL33.glRenderbufferStorageMultisample(GL33.GL_RENDERBUFFER, samples, colorFormats[0], width, height);
+			GL33.glBindRenderbuffer(GL33.GL_RENDERBUFFER, depthStencil);
+			GL33.glRenderbufferStorageMultisample(GL33.GL_RENDERBUFFER, samples, GL33.GL_DEPTH24_STENCIL8, width, height);
+			GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, framebufferID);
+			GL33.glFramebufferRenderbuffer(GL33.GL_FRAMEBUFFER, GL33.GL_COLOR_ATTACHMENT0, GL33.GL_RENDERBUFFER, colorBuffer);
+			GL33.glFramebufferRenderbuffer(GL33.GL_FRAMEBUFFER, GL33.GL_DEPTH_STENCIL_ATTACHMENT, GL33.GL_RENDERBUFFER, depthStencil);
+			checkStatus();
+			// The textures go to the resolve framebuffer
+			GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, resolveID);
+			GL33.glFramebufferTexture2D(GL33.GL_FRAMEBUFFER, GL33.GL_COLOR_ATTACHMENT0, GL33.GL_TEXTURE_2D, color.textureID, 0);
+			if(depth != null) GL33.glFramebufferTexture2D(GL33.GL_FRAMEBUFFER, GL33.GL_DEPTH_STENCIL_ATTACHMENT, GL33.GL_TEXTURE_2D, depth.textureID, 0);
+			checkStatus();
+		} else {
+			GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, framebufferID);
+			int[] drawBuffers = new int[colors.length];
+			for(int i = 0; i < colors.length; i++) {
+				GL33.glFramebufferTexture2D(GL33.GL_FRAMEBUFFER, GL33.GL_COLOR_ATTACHMENT0 + i, GL33.GL_TEXTURE_2D, colors[i].textureID, 0);
+				drawBuffers[i] = GL33.GL_COLOR_ATTACHMENT0 + i;
+			}
+			if(colors.length > 1) GL33.glDrawBuffers(drawBuffers);
+			if(depth != null) {
+				GL33.glFramebufferTexture2D(GL33.GL_FRAMEBUFFER, GL33.GL_DEPTH_STENCIL_ATTACHMENT, GL33.GL_TEXTURE_2D, depth.textureID, 0);
+			} else {
+				GL33.glBindRenderbuffer(GL33.GL_RENDERBUFFER, depthStencil);
+				GL33.glRenderbufferStorage(GL33.GL_RENDERBUFFER, GL33.GL_DEPTH24_STENCIL8, width, height);
+				GL33.glFramebufferRenderbuffer(GL33.GL_FRAMEBUFFER, GL33.GL_DEPTH_STENCIL_ATTACHMENT, GL33.GL_RENDERBUFFER, depthStencil);
+			}
+			checkStatus();
+		}
+		needsResolve = false;
+		Window.print("Framebuffer: " + width + "x" + height + " framebuffer created with " + colors.length + " color attachments and " + samples + " samples", true, 2);
+	}
+	
+	/** Returns whether the internal format stores floating point values */
+	private static boolean isFloatFormat(int internalFormat) {
+		switch(internalFormat) {
+			case GL33.GL_RGBA16F: case GL33.GL_RGBA32F: case GL33.GL_RGB16F: case GL33.GL_RGB32F: case GL33.GL_RG16F: case GL33.GL_RG32F:
+			case GL33.GL_R16F: case GL33.GL_R32F: case GL33.GL_R11F_G11F_B10F:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/** Creates an empty texture of the framebuffer's size */
+	private Texture createTexture(int internalFormat, int format, int type, int filter) {
+		Texture t = new Texture(Texture.TEXTURE_CLAMP_TO_EDGE, Texture.TEXTURE_CLAMP_TO_EDGE, filter, filter);
+		GL33.glTexImage2D(GL33.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, (ByteBuffer)null);
+		t.setSize(width, height, 4);
+		t.setLoaded(true);
+		return t;
+	}
+	
+	/** Logs an error if the bound framebuffer is incomplete */
+	private void checkStatus() {
+		int status = GL33.glCheckFramebufferStatus(GL33.GL_FRAMEBUFFER);
+		if(status != GL33.GL_FRAMEBUFFER_COMPLETE) {
+			Window.print("Framebuffer: framebuffer incomplete, status " + status, true, true, true, 0);
+		}
+	}
+	
+	/** Binds the framebuffer for rendering and sets the viewport to its size */
+	public void bind() {
+		GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, framebufferID);
+		GL33.glViewport(0, 0, width, height);
+		needsResolve = (samples > 1);
+	}
+	
+	/** Binds the window's default framebuffer for rendering and sets the viewport to the given size */
+	public static void bindDefault(int width, int height) {
+		GLState.bindFramebuffer(GL33.GL_FRAMEBUFFER, 0);
+		GL33.glViewport(0, 0, width, height);
+	}
+	
+	/** Binds the framebuffer and clears its color to the given color, its depth to 1 and its stencil to 0 */
+	public void clear(float r, float g, float b, float a) {
+		bind();
+		GL33.glClearColor(r, g, b, a);
+		GL33.glClear(GL33.GL_COLOR_BUFFER_BIT | GL33.GL_DEPTH_BUFFER_BIT | GL33.GL_STENCIL_BUFFER_BIT);
+	}
+	
+	/** Resolves the multisampled attachments into the textures, skipped if the framebuffer isn't multisampled or wasn't rendered to since the last resolve */
+	public void resolve() {
+		if(!needsResolve) return;
+		GLState.bindFramebuffer(GL33.GL_READ_FRAMEBUFFER, framebufferID);
+		GLState.bindFramebuffer(GL33.GL_DRAW_FRAMEBUFFER, resolveID);
+		int mask = GL33.GL_COLOR_BUFFER_BIT | (depth != null ? GL33.GL_DEPTH_BUFFER_BIT | GL33.GL_STENCIL_BUFFER_BIT : 0);
+		GL33.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, mask, GL33.GL_NEAREST);
+		needsResolve = false;
+	}
+	
+	/** Resolves the framebuffer if needed and binds the framebuffer holding the color texture for reading, used for reading pixels back */
+	void bindForReading() {
+		resolve();
+		GLState.bindFramebuffer(GL33.GL_READ_FRAMEBUFFER, (samples > 1 ? resolveID : framebufferID));
+	}
+	
+	/** Reads the color attachment into dest as RGBA bytes, rows starting at the bottom. Waits for rendering to finish, see AsyncReadback for reading without waiting */
+	public void readPixels(ByteBuffer dest) {
+		bindForReading();
+		GLState.bindBuffer(GL33.GL_PIXEL_PACK_BUFFER, 0);
+		GL33.glPixelStorei(GL33.GL_PACK_ALIGNMENT, 1);
+		GL33.glReadPixels(0, 0, width, height, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, dest);
+	}
+	
+	/** Recreates the attachments with a new size, the old textures are disposed of */
+	public void resize(int width, int height) {
+		if(width == this.width && height == this.height) return;
+		disposeTextures();
+		allocate(width, height);
+	}
+	
+	/** Returns the color texture, which can be used like any other texture when the framebuffer isn't bound. A multisampled framebuffer has to be resolved first */
+	public Texture getColorTexture() {
+		return color;
+	}
+	/** Returns the color texture of the attachment with the given index, which fragment output index writes into */
+	public Texture getColorTexture(int index) {
+		return colors[index];
+	}
+	/** Returns the amount of color attachments */
+	public int getColorCount() {
+		return colors.length;
+	}
+	/** Returns the depth/stencil texture, null if the framebuffer was created without one. A multisampled framebuffer has to be resolved first */
+	public Texture getDepthTexture() {
+		return depth;
+	}
+	/** Returns the samples per pixel, 1 if the framebuffer isn't multisampled */
+	public int getSamples() {
+		return samples;
+	}
+	/** Returns the width of the framebuffer */
+	public int getWidth() {
+		return width;
+	}
+	/** Returns the height of the framebuffer */
+	public int getHeight() {
+		return height;
+	}
+	
+	/** Disposes of the attachment textures */
+	private void disposeTextures() {
+		for(Texture t : colors) t.dispose();
+		if(depth != null) depth.dispose();
+	}
+	
+	/** Disposes of the framebuffer and its attachments */
+	public void dispose() {
+		GL33.glDeleteFramebuffers(framebufferID);
+		GLState.framebufferDeleted(framebufferID);
+		if(resolveID != 0) {
+			GL33.glDeleteFramebuffers(resolveID);
+			GLState.framebufferDeleted(resolveID);
+		}
+		if(colorBuffer != 0) GL33.glDeleteRenderbuffers(colorBuffer);
+		if(depthStencil != 0) GL33.glDeleteRenderbuffers(depthStencil);
+		disposeTextures();
+	}
+
+}
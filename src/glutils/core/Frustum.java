@@ -0,0 +1,68 @@
+package glutils.core;
+
+import org.joml.Matrix4f;
+
+/**
+ * View frustum made of the six planes of a view projection matrix, used to test whether bounding volumes can be seen by a camera.
+ * Planes point inwards, a point is inside the frustum if its distance to every plane is positive
+ */
+public class Frustum {
+	
+	/** Plane indices */
+	public static final int LEFT = 0, RIGHT = 1, BOTTOM = 2, TOP = 3, NEAR = 4, FAR = 5;
+	
+	/** Normalized planes {a, b, c, d} one after another, the distance of a point to plane p is a*x + b*y + c*z + d */
+	public final float[] planes;
+	
+	/** Creates a frustum containing everything, set() has to be called before testing */
+	public Frustum() {
+		planes = new float[24];
+		for(int p = 0; p < 6; p++) planes[p * 4 + 3] = Float.MAX_VALUE;
+	}
+	
+	/** Sets the planes to the camera's frustum, which the camera only recomputes after its view or projection changed */
+	public Frustum set(Camera camera) {
+		System.arraycopy(camera.getFrustum().planes, 0, planes, 0, planes.length);
+		return this;
+	}
+	
+	/** Sets the planes from a view projection matrix (projection * view) */
+	public Frustum set(Matrix4f m) {
+		// Gribb/Hartmann plane extraction, row 3 plus or minus row 0, 1, 2
+		setPlane(LEFT, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+		setPlane(RIGHT, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+		setPlane(BOTTOM, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+		setPlane(TOP, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+		setPlane(NEAR, m.m03() + m.m02(), m.m13() + m.m12(), m.m23() + m.m22(), m.m33() + m.m32());
+		setPlane(FAR, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+		return this;
+	}
+	
+	/** Stores a normalized plane */
+	private void setPlane(int p, float a, float b, float c, float d) {
+		float invLength = 1 / (float)Math.sqrt(a * a + b * b + c * c);
+		planes[p * 4] = a * invLength;
+		planes[p * 4 + 1] = b * invLength;
+		planes[p * 4 + 2] = c * invLength;
+		planes[p * 4 + 3] = d * invLength;
+	}
+	
+	/** Returns whether a sphere is at least partially inside the frustum */
+	public boolean testSphere(float x, float y, float z, float radius) {
+		for(int p = 0; p < 24; p += 4) {
+			if(planes[p] * x + planes[p+1] * y + planes[p+2] * z + planes[p+3] < -radius) return false;
+		}
+		return true;
+	}
+	
+	/** Returns whether an axis aligned box is at least partially inside the frustum, can return true for boxes just outside a frustum corner */
+	public boolean testAabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		for(int p = 0; p < 24; p += 4) {
+			// Testing the corner farthest along the plane normal
+			float a = planes[p], b = planes[p+1], c = planes[p+2];
+			if(a * (a < 0 ? minX : maxX) + b * (b < 0 ? minY : maxY) + c * (c < 0 ? minZ : maxZ) + planes[p+3] < 0) return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,214 @@
+package glutils.core;
+
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Caches the OpenGL binding state (shader program, VAO, buffers, active texture unit, the textures bound to every unit and framebuffers) so that binds which wouldn't change anything are skipped.
+ * All glutils classes bind through this class, after binding objects with raw OpenGL calls invalidate() has to be called so that the cache doesn't go out of sync.
+ * Like OpenGL itself, it is meant to be used only from the thread owning the OpenGL context
+ */
+public class GLState {
+	
+	/** Value of a cached binding which is not known, the next bind always gets issued */
+	private static final int UNKNOWN = -1;
+	
+	// Cached bindings
+	private static int program = UNKNOWN; // Current shader program
+	private static int vertexArray = UNKNOWN; // Current VAO
+	private static int[] buffers = new int[] {UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN}; // Current buffer of every cached buffer target, see bufferIndex()
+	private static int activeUnit = UNKNOWN; // Current active texture unit, 0 based
+	private static int[][] textures = new int[16][]; // Current texture of every cached texture target (see textureIndex()) for every texture unit, null if nothing is known about the unit
+	private static int drawFramebuffer = UNKNOWN; // Current draw framebuffer
+	private static int readFramebuffer = UNKNOWN; // Current read framebuffer
+	
+	// Counters
+	private static long issued; // Amount of binds issued to OpenGL
+	private static long skipped; // Amount of binds skipped because the state already matched
+	
+	/** Uses the shader program, skipped if it is already in use */
+	public static void useProgram(int id) {
+		if(program == id) {
+			skipped++;
+			return;
+		}
+		GL33.glUseProgram(id);
+		program = id;
+		issued++;
+		RenderStats.countProgramBind();
+	}
+	
+	/** Binds the vertex array object, skipped if it is already bound */
+	public static void bindVertexArray(int id) {
+		if(vertexArray == id) {
+			skipped++;
+			return;
+		}
+		GL33.glBindVertexArray(id);
+		vertexArray = id;
+		// The element array buffer binding is part of the VAO state
+		buffers[1] = UNKNOWN;
+		issued++;
+	}
+	
+	/** Binds the buffer to the target, skipped if it is already bound, binds to targets that aren't cached are always issued */
+	public static void bindBuffer(int target, int id) {
+		int i = bufferIndex(target);
+		if(i != -1 && buffers[i] == id) {
+			skipped++;
+			return;
+		}
+		GL33.glBindBuffer(target, id);
+		if(i != -1) buffers[i] = id;
+		issued++;
+	}
+	
+	/** Makes the texture unit (0 based, not GL_TEXTURE0 based) active, skipped if it is already active */
+	public static void activeTexture(int unit) {
+		if(activeUnit == unit) {
+			skipped++;
+			return;
+		}
+		GL33.glActiveTexture(GL33.GL_TEXTURE0 + unit);
+		activeUnit = unit;
+		issued++;
+	}
+	
+	/** Binds the texture to the target of the currently active texture unit, skipped if it is already bound */
+	public static void bindTexture(int target, int id) {
+		int i = textureIndex(target);
+		if(activeUnit == UNKNOWN || i == -1) {
+			// Binding can't be cached without knowing where it goes
+			GL33.glBindTexture(target, id);
+			issued++;
+			RenderStats.countTextureBind();
+			return;
+		}
+		int[] unit = unitTextures(activeUnit);
+		if(unit[i] == id) {
+			skipped++;
+			return;
+		}
+		GL33.glBindTexture(target, id);
+		unit[i] = id;
+		issued++;
+		RenderStats.countTextureBind();
+	}
+	
+	/** Binds the texture to the target of the texture unit (0 based), skipped entirely if it is already bound there, otherwise the unit is made active first */
+	public static void bindTexture(int unit, int target, int id) {
+		int i = textureIndex(target);
+		if(i != -1 && unitTextures(unit)[i] == id) {
+			skipped++;
+			return;
+		}
+		activeTexture(unit);
+		bindTexture(target, id);
+	}
+	
+	/** Binds the framebuffer to GL_FRAMEBUFFER (draw and read), GL_DRAW_FRAMEBUFFER or GL_READ_FRAMEBUFFER, skipped if it is already bound there */
+	public static void bindFramebuffer(int target, int id) {
+		boolean draw = (target != GL33.GL_READ_FRAMEBUFFER), read = (target != GL33.GL_DRAW_FRAMEBUFFER);
+		if((!draw || drawFramebuffer == id) && (!read || readFramebuffer == id)) {
+			skipped++;
+			return;
+		}
+		GL33.glBindFramebuffer(target, id);
+		if(draw) drawFramebuffer = id;
+		if(read) readFramebuffer = id;
+		issued++;
+	}
+	
+	/** Forgets all cached state, has to be called after changing bindings with raw OpenGL calls or after switching the OpenGL context */
+	public static void invalidate() {
+		program = UNKNOWN;
+		vertexArray = UNKNOWN;
+		for(int i = 0; i < buffers.length; i++) buffers[i] = UNKNOWN;
+		activeUnit = UNKNOWN;
+		for(int i = 0; i < textures.length; i++) textures[i] = null;
+		drawFramebuffer = UNKNOWN;
+		readFramebuffer = UNKNOWN;
+	}
+	
+	// Deleting a bound object makes OpenGL unbind it, the cache has to follow
+	
+	/** Updates the cache after a shader program was deleted */
+	public static void programDeleted(int id) {
+		if(program == id) program = UNKNOWN;
+	}
+	/** Updates the cache after a vertex array object was deleted */
+	public static void vertexArrayDeleted(int id) {
+		if(vertexArray == id) vertexArray = 0;
+	}
+	/** Updates the cache after a buffer was deleted */
+	public static void bufferDeleted(int id) {
+		for(int i = 0; i < buffers.length; i++) {
+			if(buffers[i] == id) buffers[i] = 0;
+		}
+	}
+	/** Updates the cache after a texture was deleted */
+	public static void textureDeleted(int id) {
+		for(int[] unit : textures) {
+			if(unit == null) continue;
+			for(int i = 0; i < unit.length; i++) {
+				if(unit[i] == id) unit[i] = 0;
+			}
+		}
+	}
+	
+	/** Updates the cache after a framebuffer was deleted */
+	public static void framebufferDeleted(int id) {
+		if(drawFramebuffer == id) drawFramebuffer = 0;
+		if(readFramebuffer == id) readFramebuffer = 0;
+	}
+	
+	/** Returns the amount of binds issued to OpenGL since the last counter reset */
+	public static long getIssuedCount() {
+		return issued;
+	}
+	/** Returns the amount of binds skipped since the last counter reset */
+	public static long getSkippedCount() {
+		return skipped;
+	}
+	/** Resets the issued and skipped counters to 0 */
+	public static void resetCounters() {
+		issued = 0;
+		skipped = 0;
+	}
+	
+	/** Returns the cached texture bindings of the unit, growing the cache if necessary */
+	private static int[] unitTextures(int unit) {
+		if(unit >= textures.length) {
+			int[][] grown = new int[Math.max(unit + 1, textures.length * 2)][];
+			System.arraycopy(textures, 0, grown, 0, textures.length);
+			textures = grown;
+		}
+		if(textures[unit] == null) textures[unit] = new int[] {UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN};
+		return textures[unit];
+	}
+	
+	/** Returns the index of a buffer target inside the cache, -1 if the target isn't cached */
+	private static int bufferIndex(int target) {
+		switch(target) {
+			case GL33.GL_ARRAY_BUFFER: return 0;
+			case GL33.GL_ELEMENT_ARRAY_BUFFER: return 1;
+			case GL33.GL_PIXEL_PACK_BUFFER: return 2;
+			case GL33.GL_PIXEL_UNPACK_BUFFER: return 3;
+			case GL33.GL_UNIFORM_BUFFER: return 4;
+			case GL33.GL_TEXTURE_BUFFER: return 5;
+			default: return -1;
+		}
+	}
+	
+	/** Returns the index of a texture target inside the cache of a unit, -1 if the target isn't cached */
+	private static int textureIndex(int target) {
+		switch(target) {
+			case GL33.GL_TEXTURE_2D: return 0;
+			case GL33.GL_TEXTURE_2D_ARRAY: return 1;
+			case GL33.GL_TEXTURE_BUFFER: return 2;
+			case GL33.GL_TEXTURE_2D_MULTISAMPLE: return 3;
+			case GL33.GL_TEXTURE_CUBE_MAP: return 4;
+			default: return -1;
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+package glutils.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a simulation at a fixed rate independent of the rendering rate. Every frame the simulation is stepped as many times as the elapsed time requires, then the frame
+ * is rendered with the fraction of a step that has passed since the last one (alpha), which the renderer uses to interpolate between the previous and the current
+ * simulation state. Time is measured with System.nanoTime() in double precision.
+ *
+ * The simulation can also run on its own thread, then after every step Simulation.snapshot() is called while holding the same lock as Renderer.render(), so the snapshot
+ * is where the state the renderer reads gets copied. Without a window (servers, headless mode) only the simulation runs
+ */
+public class GameLoop {
+	
+	/** Simulation stepped at a fixed rate */
+	public interface Simulation {
+		/** Advances the simulation by one step of dt seconds */
+		void update(double dt);
+		/** Copies the state read by the renderer, only called when the simulation runs on its own thread */
+		default void snapshot() {}
+	}
+	/** Renders a frame */
+	public interface Renderer {
+		/** Renders the frame, alpha is the fraction of a step (0 to 1) passed since the last simulation step, used to interpolate between the previous and current state */
+		void render(double alpha);
+	}
+	
+	private Simulation simulation;
+	private Renderer renderer;
+	private double step; // Length of a simulation step in seconds
+	private int maxSteps; // Most steps run per frame, more are dropped so a slow simulation can't stall rendering
+	private double frameTime; // Shortest time between frames in seconds, 0 for no cap
+	
+	private volatile boolean running;
+	private final Object lock; // Held while snapshotting and rendering in threaded mode
+	private Thread simulationThread;
+	private volatile double lastStepTime; // Time of the last step in threaded mode
+	
+	// Statistics
+	private final AtomicLong steps; // Simulation steps since the loop started, counted on the simulation thread and read from others
+	private long frames; // Frames rendered since the loop started
+	private double alpha; // Alpha of the last rendered frame
+	private double frameRate; // Frames per second, measured every second
+	
+	private final long startTime; // Base of time(), keeps the double precision high
+	
+	/**
+	 * Creates a game loop
+	 * @param stepsPerSecond simulation rate
+	 * @param simulation the simulation stepped at the fixed rate
+	 * @param renderer renders frames, can be null if the loop only runs headless
+	 */
+	public GameLoop(double stepsPerSecond, Simulation simulation, Renderer renderer) {
+		this.simulation = simulation;
+		this.renderer = renderer;
+		step = 1 / stepsPerSecond;
+		maxSteps = 8;
+		frameTime = 0;
+		lock = new Object();
+		steps = new AtomicLong();
+		startTime = System.nanoTime();
+	}
+	
+	/**
+	 * Runs the loop until the window should close: input is polled, the simulation stepped (unless it runs on its own thread), the frame rendered and buffers swapped.
+	 * Has to be called from the thread owning the window's OpenGL context
+	 */
+	public void run(Window window) {
+		if(renderer == null) {
+			Window.print("GameLoop: run() needs a renderer, use runHeadless() to run without a window", true, true, true, 0);
+			return;
+		}
+		running = true;
+		double previous = time(), accumulator = 0, rateStart = previous;
+		long rateFrames = 0;
+		lastStepTime = previous;
+		while(running && window.running()) {
+			double frameStart = time();
+			window.pollInput();
+			if(simulationThread == null) {
+				accumulator = advance(accumulator + frameStart - previous);
+				alpha = accumulator / step;
+				renderer.render(alpha);
+			} else {
+				synchronized(lock) {
+					alpha = Math.min(1, (frameStart - lastStepTime) / step);
+					renderer.render(alpha);
+				}
+			}
+			previous = frameStart;
+			window.swapBuffers();
+			frames++;
+			rateFrames++;
+			if(frameStart - rateStart >= 1) {
+				frameRate = rateFrames / (frameStart - rateStart);
+				rateStart = frameStart;
+				rateFrames = 0;
+			}
+			if(frameTime > 0) waitUntil(frameStart + frameTime);
+		}
+		stopSimulationThread();
+		running = false;
+	}
+	
+	/** Runs only the simulation at its fixed rate on the calling thread until keepRunning returns false or stop() is called, for servers and headless mode */
+	public void runHeadless(BooleanSupplier keepRunning) {
+		running = true;
+		double next = time();
+		while(running && keepRunning.getAsBoolean()) {
+			simulation.update(step);
+			steps.incrementAndGet();
+			next += step;
+			// Falling behind by more than maxSteps drops the missed steps instead of catching up
+			if(time() - next > step * maxSteps) next = time();
+			waitUntil(next);
+		}
+		running = false;
+	}
+	
+	/** Runs the simulation on its own thread from now on, the next run() only renders. Stopped by stop() or when run() returns */
+	public void startSimulationThread() {
+		if(simulationThread != null) return;
+		running = true;
+		simulationThread = new Thread(() -> {
+			double next = time();
+			lastStepTime = next;
+			while(running) {
+				simulation.update(step);
+				steps.incrementAndGet();
+				synchronized(lock) {
+					simulation.snapshot();
+					lastStepTime = time();
+				}
+				next += step;
+				if(time() - next > step * maxSteps) next = time();
+				waitUntil(next);
+			}
+		}, "glutils-simulation");
+		simulationThread.setDaemon(true);
+		simulationThread.start();
+		Window.print("GameLoop: simulation thread started", true, 2);
+	}
+	
+	/** Makes run() or runHeadless() return after the current frame or step and stops the simulation thread */
+	public void stop() {
+		running = false;
+		stopSimulationThread();
+	}
+	
+	/** Runs as many simulation steps as fit into the accumulated time, returns the time left over */
+	private double advance(double accumulator) {
+		int count = 0;
+		while(accumulator >= step && count < maxSteps) {
+			simulation.update(step);
+			accumulator -= step;
+			steps.incrementAndGet();
+			count++;
+		}
+		// Steps over the limit are dropped, the simulation runs slower instead of stalling
+		if(count == maxSteps && accumulator >= step) accumulator %= step;
+		return accumulator;
+	}
+	
+	/** Waits for the simulation thread to finish */
+	private void stopSimulationThread() {
+		Thread t = simulationThread;
+		if(t == null || t == Thread.currentThread()) return;
+		running = false;
+		try {
+			t.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		simulationThread = null;
+	}
+	
+	/** Sleeps until the given time, the last millisecond is spent spinning since sleeps overshoot */
+	private void waitUntil(double target) {
+		double remaining;
+		while((remaining = target - time()) > 0) {
+			if(remaining > 0.002) {
+				try {
+					Thread.sleep((long)((remaining - 0.001) * 1000));
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+	
+	/** Returns the seconds since the loop was created from a monotonic clock */
+	public double time() {
+		return (System.nanoTime() - startTime) / 1e9;
+	}
+	
+	/** Sets the simulation rate */
+	public void setStepsPerSecond(double stepsPerSecond) {
+		step = 1 / stepsPerSecond;
+	}
+	/** Returns the length of a simulation step in seconds */
+	public double getStep() {
+		return step;
+	}
+	/** Sets the most simulation steps run per frame, steps over it are dropped when the simulation can't keep up */
+	public void setMaxSteps(int maxSteps) {
+		this.maxSteps = Math.max(1, maxSteps);
+	}
+	/** Caps the frame rate, 0 for no cap. Works alongside the window's swap interval, which usually has to be 0 for caps above the refresh rate */
+	public void setFrameCap(double framesPerSecond) {
+		frameTime = (framesPerSecond <= 0 ? 0 : 1 / framesPerSecond);
+	}
+	
+	/** Returns the alpha of the last rendered frame */
+	public double getAlpha() {
+		return alpha;
+	}
+	/** Returns the amount of simulation steps run since the loop started */
+	public long getStepCount() {
+		return steps.get();
+	}
+	/** Returns the amount of frames rendered since the loop started */
+	public long getFrameCount() {
+		return frames;
+	}
+	/** Returns the frames per second, measured every second */
+	public double getFrameRate() {
+		return frameRate;
+	}
+	/** Returns whether the loop is running */
+	public boolean isRunning() {
+		return running;
+	}
+
+}
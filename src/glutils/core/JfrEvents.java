@@ -0,0 +1,194 @@
+package glutils.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events emitted by glutils for file loads, OBJ parsing, texture decoding and uploading, shader compilation and frames. The events are
+ * enabled by default and show up in any recording (e.g. started with -XX:StartFlightRecording), so a recording of a stutter shows which asset or shader caused it.
+ * Events start timing when created. Without an active recording an event costs next to nothing, the allocation of an event object which doesn't escape is removed by the JIT
+ */
+public class JfrEvents {
+	
+	/** Type of the frame event, checked before creating frame events since they outlive a method and can't be removed by the JIT */
+	public static final EventType FRAME_TYPE = EventType.getEventType(Frame.class);
+	
+	private JfrEvents() {}
+	
+	/** A file loaded through FileIO */
+	@Name("glutils.FileLoad")
+	@Label("File Load")
+	@Category({"glutils", "IO"})
+	@Description("A file loaded through FileIO")
+	public static class FileLoad extends Event {
+		@Label("Path")
+		public String path;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+		
+		/** Creates the event and starts timing it */
+		public FileLoad() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded */
+		public void commit(String path, long bytes) {
+			end();
+			if(!shouldCommit()) return;
+			this.path = path;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+	
+	/** An OBJ model parsed by ObjLoader */
+	@Name("glutils.ObjParse")
+	@Label("OBJ Parse")
+	@Category({"glutils", "Loading"})
+	@Description("An OBJ model parsed by ObjLoader")
+	public static class ObjParse extends Event {
+		@Label("Vertices")
+		public int vertices;
+		@Label("Faces")
+		public int faces;
+		
+		/** Creates the event and starts timing it */
+		public ObjParse() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded */
+		public void commit(int vertices, int faces) {
+			end();
+			if(!shouldCommit()) return;
+			this.vertices = vertices;
+			this.faces = faces;
+			commit();
+		}
+	}
+	
+	/** An image decoded into RGBA pixels, or a failed attempt */
+	@Name("glutils.TextureDecode")
+	@Label("Texture Decode")
+	@Category({"glutils", "Loading"})
+	@Description("An image file decoded into RGBA pixels")
+	public static class TextureDecode extends Event {
+		@Label("Success")
+		public boolean success;
+		@Label("Width")
+		public int width;
+		@Label("Height")
+		public int height;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+		
+		/** Creates the event and starts timing it */
+		public TextureDecode() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded, a failed decode has no pixels so it records 0 bytes */
+		public void commit(int width, int height, boolean success) {
+			end();
+			if(!shouldCommit()) return;
+			this.success = success;
+			this.width = width;
+			this.height = height;
+			this.bytes = (success ? (long)width * height * 4 : 0);
+			commit();
+		}
+	}
+	
+	/** Pixels uploaded into a texture */
+	@Name("glutils.TextureUpload")
+	@Label("Texture Upload")
+	@Category({"glutils", "Rendering"})
+	@Description("RGBA pixels uploaded into a texture, asynchronous uploads are recorded per chunk")
+	public static class TextureUpload extends Event {
+		@Label("Width")
+		public int width;
+		@Label("Height")
+		public int height;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+		
+		/** Creates the event and starts timing it */
+		public TextureUpload() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded */
+		public void commit(int width, int height, long bytes) {
+			end();
+			if(!shouldCommit()) return;
+			this.width = width;
+			this.height = height;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+	
+	/** A shader program compiled and linked */
+	@Name("glutils.ShaderCompile")
+	@Label("Shader Compile")
+	@Category({"glutils", "Rendering"})
+	@Description("A shader program compiled and linked")
+	public static class ShaderCompile extends Event {
+		@Label("Success")
+		public boolean success;
+		@Label("Program")
+		public int program;
+		
+		/** Creates the event and starts timing it */
+		public ShaderCompile() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded */
+		public void commit(int program, boolean success) {
+			end();
+			if(!shouldCommit()) return;
+			this.program = program;
+			this.success = success;
+			commit();
+		}
+	}
+	
+	/** A frame, from one Window.pollInput() to the next */
+	@Name("glutils.Frame")
+	@Label("Frame")
+	@Category({"glutils", "Rendering"})
+	@Description("A frame, from one input poll to the next")
+	public static class Frame extends Event {
+		@Label("Frame")
+		public long frame;
+		@Label("Draw Calls")
+		public long drawCalls;
+		@Label("Primitives")
+		public long primitives;
+		
+		/** Creates the event and starts timing it */
+		public Frame() {
+			begin();
+		}
+		
+		/** Ends the event and commits it with the given values if it should be recorded */
+		public void commit(long frame, long drawCalls, long primitives) {
+			end();
+			if(!shouldCommit()) return;
+			this.frame = frame;
+			this.drawCalls = drawCalls;
+			this.primitives = primitives;
+			commit();
+		}
+	}
+
+}
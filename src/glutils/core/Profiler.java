@@ -0,0 +1,266 @@
+package glutils.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Frame profiler measuring named scopes on the CPU and the GPU. begin("shadows") and end() mark a scope, scopes can be nested. CPU time is measured with
+ * System.nanoTime(), GPU time with a pair of GL_TIMESTAMP queries, which are read back a few frames later from a ring of frames so reading never waits for the GPU.
+ * If the GPU is so far behind that the results still aren't available when a frame's queries are reused, that frame's GPU times are dropped instead.
+ *
+ * Every scope keeps its last 256 samples for rolling percentiles (p50/p95/p99), which can be exported as CSV or JSON. The window owns a profiler recording the
+ * whole frame as the scope "frame" (see Window.getProfiler()). A frame whose CPU time is much longer than its GPU time is CPU bound, a GPU time close to the
+ * CPU time means the GPU is the limit
+ */
+public class Profiler {
+	
+	/** Name of the scope covering the whole frame */
+	public static final String FRAME = "frame";
+	/** Amount of samples each scope keeps for percentiles */
+	public static final int WINDOW = 256;
+	
+	/** Timings of a named scope, all times are in milliseconds */
+	public static class Scope {
+		/** Name of the scope */
+		public final String name;
+		private final double[] cpu = new double[WINDOW], gpu = new double[WINDOW]; // Rolling samples
+		private long cpuCount, gpuCount; // Samples recorded in total
+		
+		Scope(String name) {
+			this.name = name;
+		}
+		
+		void addCpu(double ms) {
+			cpu[(int)(cpuCount++ % WINDOW)] = ms;
+		}
+		void addGpu(double ms) {
+			gpu[(int)(gpuCount++ % WINDOW)] = ms;
+		}
+		
+		/** Returns the last CPU time, 0 if none was recorded yet */
+		public double getCpuTime() {
+			return (cpuCount == 0 ? 0 : cpu[(int)((cpuCount - 1) % WINDOW)]);
+		}
+		/** Returns the last GPU time, 0 if none was read back yet */
+		public double getGpuTime() {
+			return (gpuCount == 0 ? 0 : gpu[(int)((gpuCount - 1) % WINDOW)]);
+		}
+		/** Returns the given percentile (0 to 100) of the recent CPU times */
+		public double getCpuPercentile(double percentile) {
+			return percentile(cpu, cpuCount, percentile);
+		}
+		/** Returns the given percentile (0 to 100) of the recent GPU times */
+		public double getGpuPercentile(double percentile) {
+			return percentile(gpu, gpuCount, percentile);
+		}
+		/** Returns the amount of times the scope was measured */
+		public long getSampleCount() {
+			return cpuCount;
+		}
+		
+		/** Returns the nearest rank percentile of the samples kept */
+		private static double percentile(double[] samples, long count, double percentile) {
+			int n = (int)Math.min(count, WINDOW);
+			if(n == 0) return 0;
+			double[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			int rank = (int)Math.ceil(percentile / 100 * n) - 1;
+			return sorted[Math.max(0, Math.min(n - 1, rank))];
+		}
+	}
+	
+	/** Queries and scopes recorded during one frame */
+	private static class Frame {
+		int[] queries = new int[0]; // Two timestamp queries per record, begin and end
+		Scope[] scopes = new Scope[16]; // Scope of each record
+		int count; // Records in the frame
+		int lastQuery; // Query issued last, once it is available all others are
+		boolean pending; // Whether the queries wait to be read back
+	}
+	
+	private HashMap<String, Scope> scopes;
+	private ArrayList<Scope> scopeList; // Scopes in order of creation, used for exporting
+	private Frame[] frames; // Ring of frames, results are read back when a frame is reused
+	private int current; // Frame being recorded
+	private int[] stack; // Records of the open scopes
+	private long[] starts; // CPU start time of the open scopes
+	private int depth; // Amount of open scopes
+	private boolean enabled;
+	private long frameCount;
+	private long dropped; // Frames whose GPU times were dropped because the GPU was too far behind
+	
+	/** Creates a profiler reading GPU times back 3 frames after they were recorded */
+	public Profiler() {
+		this(3);
+	}
+	
+	/** Creates a profiler reading GPU times back the given amount of frames after they were recorded, more frames make dropped GPU times less likely */
+	public Profiler(int latency) {
+		scopes = new HashMap<>();
+		scopeList = new ArrayList<>();
+		frames = new Frame[Math.max(1, latency) + 1];
+		for(int i = 0; i < frames.length; i++) frames[i] = new Frame();
+		stack = new int[16];
+		starts = new long[16];
+		enabled = true;
+	}
+	
+	/** Starts a scope with the given name, has to be closed by end() within the same frame */
+	public void begin(String name) {
+		if(!enabled) return;
+		Scope scope = scopes.get(name);
+		if(scope == null) {
+			scope = new Scope(name);
+			scopes.put(name, scope);
+			scopeList.add(scope);
+		}
+		Frame f = frames[current];
+		int r = f.count++;
+		if(r * 2 + 1 >= f.queries.length) {
+			int[] queries = Arrays.copyOf(f.queries, Math.max(32, f.queries.length * 2));
+			int[] generated = new int[queries.length - f.queries.length];
+			GL33.glGenQueries(generated);
+			System.arraycopy(generated, 0, queries, f.queries.length, generated.length);
+			f.queries = queries;
+			f.scopes = Arrays.copyOf(f.scopes, queries.length / 2);
+		}
+		f.scopes[r] = scope;
+		f.pending = true;
+		GL33.glQueryCounter(f.queries[r * 2], GL33.GL_TIMESTAMP);
+		if(depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+			starts = Arrays.copyOf(starts, depth * 2);
+		}
+		stack[depth] = r;
+		starts[depth++] = System.nanoTime();
+	}
+	
+	/** Ends the scope started last */
+	public void end() {
+		if(!enabled) return;
+		if(depth == 0) {
+			Window.print("Profiler: end() called without an open scope", true, true, true, 0);
+			return;
+		}
+		long now = System.nanoTime();
+		Frame f = frames[current];
+		int r = stack[--depth];
+		GL33.glQueryCounter(f.queries[r * 2 + 1], GL33.GL_TIMESTAMP);
+		f.lastQuery = f.queries[r * 2 + 1];
+		f.scopes[r].addCpu((now - starts[depth]) / 1e6);
+	}
+	
+	/** Ends the current frame and starts the next one, the frame itself is recorded as the scope "frame". Called by the window every frame */
+	public void frame() {
+		if(!enabled) return;
+		if(depth > 1) Window.print("Profiler: " + (depth - 1) + " scopes weren't ended before the frame ended", true, true, true, 0);
+		// Every query of the frame has to be issued before it can be read back
+		while(depth > 0) end();
+		current = (current + 1) % frames.length;
+		collect(frames[current]);
+		frameCount++;
+		begin(FRAME);
+	}
+	
+	/** Reads back the GPU times of a frame about to be reused, dropping them if they aren't available yet */
+	private void collect(Frame f) {
+		if(!f.pending) return;
+		f.pending = false;
+		int count = f.count;
+		f.count = 0;
+		if(GL33.glGetQueryObjecti(f.lastQuery, GL33.GL_QUERY_RESULT_AVAILABLE) == GL33.GL_FALSE) {
+			dropped++;
+			return;
+		}
+		for(int r = 0; r < count; r++) {
+			long begin = GL33.glGetQueryObjecti64(f.queries[r * 2], GL33.GL_QUERY_RESULT);
+			long end = GL33.glGetQueryObjecti64(f.queries[r * 2 + 1], GL33.GL_QUERY_RESULT);
+			f.scopes[r].addGpu((end - begin) / 1e6);
+		}
+	}
+	
+	/** Returns the scope with the given name, null if it was never measured */
+	public Scope getScope(String name) {
+		return scopes.get(name);
+	}
+	/** Returns all scopes measured so far in order of their first measurement */
+	public List<Scope> getScopes() {
+		return scopeList;
+	}
+	/** Returns the amount of frames recorded */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	/** Returns the amount of frames whose GPU times were dropped because the GPU was too far behind, a growing count means the latency is too low */
+	public long getDroppedCount() {
+		return dropped;
+	}
+	/** Turns the profiler on or off, a disabled profiler issues no queries. Scopes still open are ended */
+	public void setEnabled(boolean enabled) {
+		while(this.enabled && depth > 0) end();
+		this.enabled = enabled;
+	}
+	/** Returns whether the profiler is enabled */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/** Returns the timings of every scope as CSV, one line per scope, times in milliseconds */
+	public String toCSV() {
+		StringBuilder sb = new StringBuilder("scope,samples,cpu_last,cpu_p50,cpu_p95,cpu_p99,gpu_last,gpu_p50,gpu_p95,gpu_p99\n");
+		for(Scope s : scopeList) {
+			sb.append(s.name.replace(',', '_')).append(',').append(s.getSampleCount());
+			sb.append(String.format(Locale.ROOT, ",%.4f,%.4f,%.4f,%.4f", s.getCpuTime(), s.getCpuPercentile(50), s.getCpuPercentile(95), s.getCpuPercentile(99)));
+			sb.append(String.format(Locale.ROOT, ",%.4f,%.4f,%.4f,%.4f", s.getGpuTime(), s.getGpuPercentile(50), s.getGpuPercentile(95), s.getGpuPercentile(99)));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+	
+	/** Returns the timings of every scope as JSON, times in milliseconds */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"frames\":").append(frameCount).append(",\"dropped\":").append(dropped).append(",\"scopes\":[");
+		for(int i = 0; i < scopeList.size(); i++) {
+			Scope s = scopeList.get(i);
+			if(i > 0) sb.append(',');
+			sb.append("{\"name\":\"").append(s.name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\"samples\":").append(s.getSampleCount());
+			sb.append(String.format(Locale.ROOT, ",\"cpu\":{\"last\":%.4f,\"p50\":%.4f,\"p95\":%.4f,\"p99\":%.4f}",
+					s.getCpuTime(), s.getCpuPercentile(50), s.getCpuPercentile(95), s.getCpuPercentile(99)));
+			sb.append(String.format(Locale.ROOT, ",\"gpu\":{\"last\":%.4f,\"p50\":%.4f,\"p95\":%.4f,\"p99\":%.4f}}",
+					s.getGpuTime(), s.getGpuPercentile(50), s.getGpuPercentile(95), s.getGpuPercentile(99)));
+		}
+		return sb.append("]}").toString();
+	}
+	
+	/** Writes the timings to a file, as JSON if the path ends with ".json", otherwise as CSV */
+	public void save(String path) {
+		try {
+			Files.writeString(Paths.get(path), path.endsWith(".json") ? toJSON() : toCSV());
+			Window.print("Profiler: timings saved to " + path, true, 2);
+		} catch(IOException e) {
+			e.printStackTrace();
+			Window.print("Profiler: error saving timings to " + path, true, true, true, 0);
+		}
+	}
+	
+	/** Deletes the queries */
+	public void dispose() {
+		for(Frame f : frames) {
+			if(f.queries.length > 0) GL33.glDeleteQueries(f.queries);
+			f.queries = new int[0];
+			f.count = 0;
+			f.pending = false;
+		}
+		depth = 0;
+	}
+
+}
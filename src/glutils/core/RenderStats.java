@@ -0,0 +1,199 @@
+package glutils.core;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work submitted to OpenGL every frame: draw calls, vertices and primitives, shader program and texture binds actually issued (see GLState),
+ * uniform uploads and bytes uploaded into buffers and textures. The glutils classes count their own calls, code calling OpenGL directly can count through the
+ * count methods. Like GLState the counters are only touched by the thread owning the OpenGL context, so counting is a plain increment. Once per frame
+ * (called by Window.pollInput()) the counters are published as one immutable Frame, which can be read from any thread, including through JMX after
+ * registerMBean() has been called. Values read from one Frame always belong to the same frame, the single value getters each read the latest one
+ */
+public class RenderStats implements RenderStatsMXBean {
+	
+	/** Name the MBean is registered under */
+	public static final String MBEAN_NAME = "glutils:type=RenderStats";
+	
+	private static final RenderStats INSTANCE = new RenderStats();
+	
+	// Counters of the current frame, only used by the OpenGL thread
+	private static long drawCalls;
+	private static long vertices;
+	private static long primitives;
+	private static long programBinds;
+	private static long textureBinds;
+	private static long uniformUploads;
+	private static long bufferBytes;
+	private static long textureBytes;
+	
+	private volatile Frame last; // Values of the last finished frame, replaced as a whole so readers never see values of two frames
+	
+	private RenderStats() {
+		last = new Frame(0, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+	
+	/** Immutable counts of one finished frame */
+	public static final class Frame {
+		
+		private final long frameCount;
+		private final long drawCalls;
+		private final long vertices;
+		private final long primitives;
+		private final long programBinds;
+		private final long textureBinds;
+		private final long uniformUploads;
+		private final long bufferBytes;
+		private final long textureBytes;
+		
+		private Frame(long frameCount, long drawCalls, long vertices, long primitives, long programBinds, long textureBinds, long uniformUploads, long bufferBytes, long textureBytes) {
+			this.frameCount = frameCount;
+			this.drawCalls = drawCalls;
+			this.vertices = vertices;
+			this.primitives = primitives;
+			this.programBinds = programBinds;
+			this.textureBinds = textureBinds;
+			this.uniformUploads = uniformUploads;
+			this.bufferBytes = bufferBytes;
+			this.textureBytes = textureBytes;
+		}
+		
+		/** Returns the amount of frames finished up to and including this one */
+		public long getFrameCount() {
+			return frameCount;
+		}
+		/** Returns the draw calls of the frame */
+		public long getDrawCalls() {
+			return drawCalls;
+		}
+		/** Returns the vertices submitted in the frame */
+		public long getVertices() {
+			return vertices;
+		}
+		/** Returns the primitives (triangles) submitted in the frame */
+		public long getPrimitives() {
+			return primitives;
+		}
+		/** Returns the shader program binds issued in the frame */
+		public long getProgramBinds() {
+			return programBinds;
+		}
+		/** Returns the texture binds issued in the frame */
+		public long getTextureBinds() {
+			return textureBinds;
+		}
+		/** Returns the uniform uploads of the frame */
+		public long getUniformUploads() {
+			return uniformUploads;
+		}
+		/** Returns the bytes uploaded into buffers in the frame */
+		public long getBufferBytes() {
+			return bufferBytes;
+		}
+		/** Returns the bytes uploaded into textures in the frame */
+		public long getTextureBytes() {
+			return textureBytes;
+		}
+		
+		/** Returns the values in one line, for logging */
+		public String toString() {
+			return "draws " + drawCalls + ", vertices " + vertices + ", primitives " + primitives + ", programs " + programBinds + ", textures " + textureBinds
+					+ ", uniforms " + uniformUploads + ", buffer bytes " + bufferBytes + ", texture bytes " + textureBytes;
+		}
+		
+	}
+	
+	/** Returns the instance holding the last frame's values */
+	public static RenderStats get() {
+		return INSTANCE;
+	}
+	
+	/** Counts a draw call submitting the given amount of vertices and primitives */
+	public static void countDraw(long vertexCount, long primitiveCount) {
+		drawCalls++;
+		vertices += vertexCount;
+		primitives += primitiveCount;
+	}
+	/** Counts a shader program bind */
+	public static void countProgramBind() {
+		programBinds++;
+	}
+	/** Counts a texture bind */
+	public static void countTextureBind() {
+		textureBinds++;
+	}
+	/** Counts a uniform upload */
+	public static void countUniform() {
+		uniformUploads++;
+	}
+	/** Counts bytes uploaded into a buffer */
+	public static void countBufferBytes(long bytes) {
+		bufferBytes += bytes;
+	}
+	/** Counts bytes uploaded into a texture */
+	public static void countTextureBytes(long bytes) {
+		textureBytes += bytes;
+	}
+	
+	/** Publishes the current counters as the last frame's values and resets them, called by the window every frame */
+	public static void frame() {
+		RenderStats s = INSTANCE;
+		s.last = new Frame(s.last.frameCount + 1, drawCalls, vertices, primitives, programBinds, textureBinds, uniformUploads, bufferBytes, textureBytes);
+		drawCalls = vertices = primitives = 0;
+		programBinds = textureBinds = uniformUploads = 0;
+		bufferBytes = textureBytes = 0;
+	}
+	
+	/** Registers the stats with the platform MBean server under MBEAN_NAME, so JMX clients (e.g. JConsole or a metrics agent) can read them */
+	public static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(MBEAN_NAME));
+			Window.print("RenderStats: MBean registered as " + MBEAN_NAME, true, 2);
+		} catch(InstanceAlreadyExistsException e) {
+			// Already registered, nothing to do
+		} catch(JMException e) {
+			e.printStackTrace();
+			Window.print("RenderStats: error registering the MBean", true, true, true, 0);
+		}
+	}
+	
+	public Frame getLastFrame() {
+		return last;
+	}
+	public long getFrameCount() {
+		return last.frameCount;
+	}
+	public long getDrawCalls() {
+		return last.drawCalls;
+	}
+	public long getVertices() {
+		return last.vertices;
+	}
+	public long getPrimitives() {
+		return last.primitives;
+	}
+	public long getProgramBinds() {
+		return last.programBinds;
+	}
+	public long getTextureBinds() {
+		return last.textureBinds;
+	}
+	public long getUniformUploads() {
+		return last.uniformUploads;
+	}
+	public long getBufferBytes() {
+		return last.bufferBytes;
+	}
+	public long getTextureBytes() {
+		return last.textureBytes;
+	}
+	
+	/** Returns the last frame's values in one line, for logging */
+	public String toString() {
+		return last.toString();
+	}
+
+}
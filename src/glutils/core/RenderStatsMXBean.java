@@ -0,0 +1,27 @@
+package glutils.core;
+
+/** JMX management interface of RenderStats, every value is the count of the last finished frame. LastFrame holds all of them from the same frame */
+public interface RenderStatsMXBean {
+	
+	/** Returns all values of the last frame at once, exposed to JMX clients as composite data */
+	RenderStats.Frame getLastFrame();
+	/** Returns the amount of frames finished */
+	long getFrameCount();
+	/** Returns the draw calls of the last frame */
+	long getDrawCalls();
+	/** Returns the vertices submitted in the last frame */
+	long getVertices();
+	/** Returns the primitives (triangles) submitted in the last frame */
+	long getPrimitives();
+	/** Returns the shader program binds issued in the last frame */
+	long getProgramBinds();
+	/** Returns the texture binds issued in the last frame */
+	long getTextureBinds();
+	/** Returns the uniform uploads of the last frame */
+	long getUniformUploads();
+	/** Returns the bytes uploaded into buffers in the last frame */
+	long getBufferBytes();
+	/** Returns the bytes uploaded into textures in the last frame */
+	long getTextureBytes();
+
+}
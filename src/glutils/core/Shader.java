@@ -17,6 +17,7 @@ public class Shader {
 	 * @param fragmentShaderData code of fragment shader in String form
 	 */
 	public Shader(String vertexShaderData, String fragmentShaderData) {
+		JfrEvents.ShaderCompile event = new JfrEvents.ShaderCompile();
 		// Shader compilation
 		int vertexShader = GL33.glCreateShader(GL33.GL_VERTEX_SHADER);
 		GL33.glShaderSource(vertexShader, vertexShaderData);
@@ -36,40 +37,61 @@ public class Shader {
 		GL33.glAttachShader(id, vertexShader);
 		GL33.glAttachShader(id, fragmentShader);
 		GL33.glLinkProgram(id);
+		boolean linked = (GL33.glGetProgrami(id, GL33.GL_LINK_STATUS) == GL33.GL_TRUE);
+		if(!linked) Window.print("Shader program linking error: " + GL33.glGetProgramInfoLog(id), true, true, true, 0);
 		// Garbage disposal
 		GL33.glDeleteShader(vertexShader);
 		GL33.glDeleteShader(fragmentShader);
+		event.commit(id, istatusV == GL33.GL_TRUE && istatusF == GL33.GL_TRUE && linked);
 	}
 	
 	/** Uses current shader program in OpenGL */
 	public void use() {
-		GL33.glUseProgram(id);
+		GLState.useProgram(id);
 	}
 	
 	public void setUniformInt(String uniformName, int value) {
+		RenderStats.countUniform();
 		GL33.glUniform1i(GL33.glGetUniformLocation(this.id, uniformName), value);
 	}
 	
+	/** Sets an int array uniform (declared e.g. as uniform int name[n]), starting at its first element */
+	public void setUniformIntArray(String uniformName, int[] values) {
+		RenderStats.countUniform();
+		GL33.glUniform1iv(GL33.glGetUniformLocation(this.id, uniformName), values);
+	}
+	
 	public void setUniformFloat(String uniformName, float value) {
+		RenderStats.countUniform();
 		GL33.glUniform1f(GL33.glGetUniformLocation(this.id, uniformName), value);
 	}
 	
 	public void setUniformVec2(String uniformName, Vector2f value) {
+		RenderStats.countUniform();
 		GL33.glUniform2fv(GL33.glGetUniformLocation(this.id, uniformName), new float[] {value.x, value.y});
 	}
 	
 	public void setUniformVec3(String uniformName, Vector3f value) {
+		RenderStats.countUniform();
 		GL33.glUniform3fv(GL33.glGetUniformLocation(this.id, uniformName), new float[] {value.x, value.y, value.z});
 	}
 	
 	public void setUniformVec4(String uniformName, Vector4f value) {
+		RenderStats.countUniform();
 		GL33.glUniform4fv(GL33.glGetUniformLocation(this.id, uniformName), new float[] {value.x, value.y, value.z, value.w});
 	}
 	
 	public void setUniformMat4(String uniformName, boolean transpose, Matrix4f value) {
 		float[] mat = new float[16];
 		value.get(mat);
+		RenderStats.countUniform();
 		GL33.glUniformMatrix4fv(GL33.glGetUniformLocation(this.id, uniformName), transpose, mat);
 	}
+	
+	/** Deletes the shader program */
+	public void dispose() {
+		GL33.glDeleteProgram(id);
+		GLState.programDeleted(id);
+	}
 
 }
@@ -36,6 +36,65 @@ public class ShaderBuilder {
 	public static final int F_SPECULAR_DIR_LIGHT = 4;
 	/** Creates a fragment shader that uses a material and a world light (needs texCoords and normals from vertex shader, Material and WorldLight from code) */
 	public static final int F_SPECULAR_WORLD_LIGHT = 5;
+	/** Creates a fragment shader that uses a diffuse texture, a directional light and any amount of point lights (needs texCoords and normals from vertex shader, Texture, WorldLight and ClusteredLighting from code) */
+	public static final int F_SIMPLE_CLUSTERED_LIGHT = 6;
+	/** Creates a fragment shader that uses a material, a directional light and any amount of point lights (needs texCoords and normals from vertex shader, Material, WorldLight and ClusteredLighting from code) */
+	public static final int F_SPECULAR_CLUSTERED_LIGHT = 7;
+	/** Creates a fragment shader writing a diffuse texture and normals into a G-buffer for DeferredRenderer (needs texCoords and normals from vertex shader, Texture from code) */
+	public static final int F_SIMPLE_DEFERRED = 8;
+	/** Creates a fragment shader writing a material and normals into a G-buffer for DeferredRenderer (needs texCoords and normals from vertex shader, Material from code) */
+	public static final int F_SPECULAR_DEFERRED = 9;
+	/** Creates a fragment shader that uses a diffuse texture, a directional light and the point lights reaching the model (needs texCoords and normals from vertex shader, Texture, WorldLight and LightCuller from code) */
+	public static final int F_SIMPLE_OBJECT_LIGHT = 10;
+	/** Creates a fragment shader that uses a material, a directional light and the point lights reaching the model (needs texCoords and normals from vertex shader, Material, WorldLight and LightCuller from code) */
+	public static final int F_SPECULAR_OBJECT_LIGHT = 11;
+	/** Most point lights per model in the object light modes */
+	public static final int MAX_OBJECT_LIGHTS = 16;
+	
+	// Calculates one point light read from the light data of ClusteredLighting or LightCuller, shared by the buffer light modes
+	private static final String BUFFER_LIGHT_FUNCTION = "// Calculates the color of the object with a point light read from the light data (position and radius, color, intensity and falloff)\n"
+			+ "vec4 calculateBufferLight(int light, vec4 diffuseTexture, vec4 pos, vec3 normal) \n"
+			+ "{\n"
+			+ "	vec4 positionRadius = texelFetch(lightData, light * 3);\n"
+			+ "	vec3 toLight = positionRadius.xyz - vec3(pos.xyz);\n"
+			+ "	float distance = length(toLight);\n"
+			+ "	if(distance > positionRadius.w) return vec4(0.0);\n"
+			+ "	vec4 color = texelFetch(lightData, light * 3 + 1);\n"
+			+ "	vec4 params = texelFetch(lightData, light * 3 + 2);\n"
+			+ "	\n"
+			+ "	// Calculating diffuse multiplier and attenuation (falloff)\n"
+			+ "	float diffuseValue = max(dot(toLight / max(distance, 0.0001), normal), 0.0);\n"
+			+ "	float falloff = params.x / (1.0 + params.y * distance + params.z * (distance * distance));\n"
+			+ "	return color * diffuseTexture * falloff * (1.0 + diffuseValue);\n"
+			+ "}";
+	// Specular version of BUFFER_LIGHT_FUNCTION
+	private static final String BUFFER_SPECULAR_LIGHT_FUNCTION = "// Calculates the color of the object with a point light read from the light data (position and radius, color, intensity and falloff)\n"
+			+ "vec4 calculateBufferLight(int light, vec4 diffuseTexture, vec4 specularTexture, vec4 pos, vec3 normal, vec3 viewDir, int shininess) \n"
+			+ "{\n"
+			+ "	vec4 positionRadius = texelFetch(lightData, light * 3);\n"
+			+ "	vec3 toLight = positionRadius.xyz - vec3(pos.xyz);\n"
+			+ "	float distance = length(toLight);\n"
+			+ "	if(distance > positionRadius.w) return vec4(0.0);\n"
+			+ "	vec4 color = texelFetch(lightData, light * 3 + 1);\n"
+			+ "	vec4 params = texelFetch(lightData, light * 3 + 2);\n"
+			+ "	\n"
+			+ "	// Calculating diffuse and specular multipliers and attenuation (falloff)\n"
+			+ "	vec3 lightDir = -toLight / max(distance, 0.0001);\n"
+			+ "	float diffuseValue = max(dot(-lightDir, normal), 0.0);\n"
+			+ "	float specularValue = pow(max(dot(viewDir, reflect(lightDir, normal)), 0.0), shininess);\n"
+			+ "	float falloff = params.x / (1.0 + params.y * distance + params.z * (distance * distance));\n"
+			+ "	return color * falloff * (diffuseTexture * (1.0 + diffuseValue) + specularTexture * specularValue);\n"
+			+ "}";
+	// Finds the cluster of a fragment, shared by the clustered light modes
+	private static final String CLUSTER_FUNCTION = "// Returns the index of the cluster containing the fragment, from its screen position and view depth\n"
+			+ "int findCluster(vec4 pos) \n"
+			+ "{\n"
+			+ "	float depth = -(view * pos).z;\n"
+			+ "	float slice = (clusterLogDepth == 1 ? log(max(depth, 0.0001)) : depth) * clusterDepth.x + clusterDepth.y;\n"
+			+ "	ivec3 dims = ivec3(clusterDims);\n"
+			+ "	ivec3 cluster = clamp(ivec3(ivec2(gl_FragCoord.xy / clusterScreenSize * clusterDims.xy), int(slice)), ivec3(0), dims - 1);\n"
+			+ "	return cluster.x + dims.x * (cluster.y + dims.y * cluster.z);\n"
+			+ "}";
 	
 	// CONSTRUCTORS
 	
@@ -295,16 +354,22 @@ public class ShaderBuilder {
 	/** Generates a fragment shader based on the type argument (set by ShaderBuilder constants) */
 	public static String genDynamicFragmentShader(int type) {
 		
+		if(type == F_SIMPLE_DEFERRED || type == F_SPECULAR_DEFERRED) return genGBufferFragmentShader(type == F_SPECULAR_DEFERRED);
+		
 		// ShaderBuilder start
 		ShaderBuilder glsl = new ShaderBuilder(330);
-		boolean simpleLight = type == F_SIMPLE_DIR_LIGHT || type == F_SIMPLE_WORLD_LIGHT;
-		boolean specularLight = type == F_SPECULAR_DIR_LIGHT || type == F_SPECULAR_WORLD_LIGHT;
+		boolean simpleLight = type == F_SIMPLE_DIR_LIGHT || type == F_SIMPLE_WORLD_LIGHT || type == F_SIMPLE_CLUSTERED_LIGHT || type == F_SIMPLE_OBJECT_LIGHT;
+		boolean specularLight = type == F_SPECULAR_DIR_LIGHT || type == F_SPECULAR_WORLD_LIGHT || type == F_SPECULAR_CLUSTERED_LIGHT || type == F_SPECULAR_OBJECT_LIGHT;
 		boolean anyLight = simpleLight || specularLight;
 		//boolean directionalLight = type == F_SIMPLE_DIR_LIGHT || type == F_SPECULAR_DIR_LIGHT;
 		boolean worldLight = type == F_SIMPLE_WORLD_LIGHT || type == F_SPECULAR_WORLD_LIGHT;
+		boolean clusteredLight = type == F_SIMPLE_CLUSTERED_LIGHT || type == F_SPECULAR_CLUSTERED_LIGHT;
+		boolean objectLight = type == F_SIMPLE_OBJECT_LIGHT || type == F_SPECULAR_OBJECT_LIGHT;
+		boolean bufferLight = clusteredLight || objectLight; // Point lights read from a buffer texture
 		
 		// Preprocessor
 		if(worldLight) glsl.addPreprocessorDirective("define NUM_POINT_LIGHTS 12"); 
+		if(objectLight) glsl.addPreprocessorDirective("define MAX_OBJECT_LIGHTS " + MAX_OBJECT_LIGHTS); 
 		glsl.addLineBreak();
 		
 		// Structs
@@ -358,6 +423,20 @@ public class ShaderBuilder {
 			glsl.addVariableMediumQualifier("uniform", "PointLight", "pointLight[NUM_POINT_LIGHTS]");
 			glsl.addVariableMediumQualifier("uniform", "int", "pointLightsUsed");
 		}
+		if(bufferLight) glsl.addVariableMediumQualifier("uniform", "samplerBuffer", "lightData");
+		if(objectLight) {
+			glsl.addVariableMediumQualifier("uniform", "int", "lightIndices[MAX_OBJECT_LIGHTS]");
+			glsl.addVariableMediumQualifier("uniform", "int", "lightCount");
+		}
+		if(clusteredLight) {
+			glsl.addVariableMediumQualifier("uniform", "usamplerBuffer", "clusterGrid");
+			glsl.addVariableMediumQualifier("uniform", "usamplerBuffer", "clusterIndices");
+			glsl.addVariableMediumQualifier("uniform", "vec3", "clusterDims");
+			glsl.addVariableMediumQualifier("uniform", "vec2", "clusterDepth");
+			glsl.addVariableMediumQualifier("uniform", "int", "clusterLogDepth");
+			glsl.addVariableMediumQualifier("uniform", "vec2", "clusterScreenSize");
+			glsl.addVariableMediumQualifier("uniform", "mat4", "view");
+		}
 		glsl.addVariableMediumQualifier("uniform", "vec3", "camPos");
 		
 		// Functions
@@ -421,6 +500,35 @@ public class ShaderBuilder {
 						+ "	return f;\n"
 						+ "}", true, true);
 			}
+			if(bufferLight) glsl.addCode(BUFFER_LIGHT_FUNCTION, true, true);
+			if(clusteredLight) {
+				glsl.addCode(CLUSTER_FUNCTION, true, true);
+				glsl.addCode("// Adds up the colors from the point lights of the fragment's cluster\n"
+						+ "vec4 calculateClusteredLights(sampler2D tex, vec2 texCoords, vec4 pos, vec3 normal) \n"
+						+ "{\n"
+						+ "	vec4 diffuseTexture = texture(tex, texCoords);\n"
+						+ "	uvec2 cluster = texelFetch(clusterGrid, findCluster(pos)).xy;\n"
+						+ "	vec4 f = vec4(0.0);\n"
+						+ "	for(uint i = 0u; i < cluster.y; i++) \n"
+						+ "	{\n"
+						+ "		f += calculateBufferLight(int(texelFetch(clusterIndices, int(cluster.x + i)).r), diffuseTexture, pos, normal);\n"
+						+ "	}\n"
+						+ "	return f;\n"
+						+ "}", true, true);
+			}
+			if(objectLight) {
+				glsl.addCode("// Adds up the colors from the point lights reaching the model, selected by LightCuller\n"
+						+ "vec4 calculateObjectLights(sampler2D tex, vec2 texCoords, vec4 pos, vec3 normal) \n"
+						+ "{\n"
+						+ "	vec4 diffuseTexture = texture(tex, texCoords);\n"
+						+ "	vec4 f = vec4(0.0);\n"
+						+ "	for(int i = 0; i < min(MAX_OBJECT_LIGHTS, lightCount); i++) \n"
+						+ "	{\n"
+						+ "		f += calculateBufferLight(lightIndices[i], diffuseTexture, pos, normal);\n"
+						+ "	}\n"
+						+ "	return f;\n"
+						+ "}", true, true);
+			}
 		} else if(specularLight) {
 			glsl.addCode("// Calculates the color of the object with the directional light and material\n"
 					+ "vec4 calculateWorldLight(DirectionalLight dirLight, vec4 ambient, Material material, vec2 texCoords, vec3 normal, vec3 viewDir) \n"
@@ -491,12 +599,48 @@ public class ShaderBuilder {
 						+ "	return f;\n"
 						+ "}", true, true);
 			}
+			if(bufferLight) glsl.addCode(BUFFER_SPECULAR_LIGHT_FUNCTION, true, true);
+			if(clusteredLight) {
+				glsl.addCode(CLUSTER_FUNCTION, true, true);
+				glsl.addCode("// Adds up the colors from the point lights of the fragment's cluster\n"
+						+ "vec4 calculateClusteredLights(Material material, vec2 texCoords, vec4 pos, vec3 normal, vec3 viewDir) \n"
+						+ "{\n"
+						+ "	vec4 diffuseTexture = texture(material.diffuse, texCoords);\n"
+						+ "	vec4 specularTexture = texture(material.specular, texCoords);\n"
+						+ "	uvec2 cluster = texelFetch(clusterGrid, findCluster(pos)).xy;\n"
+						+ "	vec4 f = vec4(0.0);\n"
+						+ "	for(uint i = 0u; i < cluster.y; i++) \n"
+						+ "	{\n"
+						+ "		f += calculateBufferLight(int(texelFetch(clusterIndices, int(cluster.x + i)).r), diffuseTexture, specularTexture, pos, normal, viewDir, material.shininess);\n"
+						+ "	}\n"
+						+ "	return f;\n"
+						+ "}", true, true);
+			}
+			if(objectLight) {
+				glsl.addCode("// Adds up the colors from the point lights reaching the model, selected by LightCuller\n"
+						+ "vec4 calculateObjectLights(Material material, vec2 texCoords, vec4 pos, vec3 normal, vec3 viewDir) \n"
+						+ "{\n"
+						+ "	vec4 diffuseTexture = texture(material.diffuse, texCoords);\n"
+						+ "	vec4 specularTexture = texture(material.specular, texCoords);\n"
+						+ "	vec4 f = vec4(0.0);\n"
+						+ "	for(int i = 0; i < min(MAX_OBJECT_LIGHTS, lightCount); i++) \n"
+						+ "	{\n"
+						+ "		f += calculateBufferLight(lightIndices[i], diffuseTexture, specularTexture, pos, normal, viewDir, material.shininess);\n"
+						+ "	}\n"
+						+ "	return f;\n"
+						+ "}", true, true);
+			}
 		}
 		
 		// Main
 		glsl.openMainFunction();
 		
-		if(simpleLight)
+		String bufferLights = (clusteredLight ? "calculateClusteredLights" : "calculateObjectLights");
+		if(bufferLight && simpleLight)
+			glsl.addVariableMediumAssignment("vec4", "fCol", "calculateWorldLight(directionalLight, ambientLight, tex, texCoords, normalize(normal)) + " + bufferLights + "(tex, texCoords, worldPos, normalize(normal))");
+		else if(bufferLight)
+			glsl.addVariableMediumAssignment("vec4", "fCol", "calculateWorldLight(directionalLight, ambientLight, material, texCoords, normalize(normal), normalize(camPos - vec3(worldPos.xyz))) + " + bufferLights + "(material, texCoords, worldPos, normalize(normal), normalize(camPos - vec3(worldPos.xyz)))");
+		else if(simpleLight)
 			glsl.addVariableMediumAssignment("vec4", "fCol", (worldLight ? "calculateLight(directionalLight, pointLight, ambientLight, tex, texCoords, worldPos, normalize(normal))" : "calculateWorldLight(directionalLight, directionalLight.color, tex, texCoords, normalize(normal))"));
 		else if(specularLight)
 			glsl.addVariableMediumAssignment("vec4", "fCol", (worldLight ? "calculateLight(directionalLight, pointLight, ambientLight, material, texCoords, worldPos, normalize(normal), normalize(camPos - vec3(worldPos.xyz)))" : "calculateWorldLight(directionalLight, directionalLight.color, material, texCoords, normalize(normal), normalize(camPos - vec3(worldPos.xyz)))"));
@@ -513,4 +657,51 @@ public class ShaderBuilder {
 		
 		return glsl.build();
 	}
+	
+	/** Generates the G-buffer fragment shader of the deferred modes, writing albedo and specular strength into output 0 and the normal and shininess into output 1 */
+	private static String genGBufferFragmentShader(boolean material) {
+		
+		ShaderBuilder glsl = new ShaderBuilder(330);
+		
+		// Structs
+		if(material) {
+			glsl.openStruct("Material");
+			glsl.addVariableShort("sampler2D", "diffuse");
+			glsl.addVariableShort("sampler2D", "specular");
+			glsl.addVariableShort("int", "shininess");
+			glsl.closeStruct();
+			glsl.addLineBreak();
+		}
+		
+		// Ins and Outs
+		glsl.addVariableMediumQualifier("in", "vec4", "worldPos");
+		glsl.addVariableMediumQualifier("in", "vec2", "texCoords");
+		glsl.addVariableMediumQualifier("in", "vec3", "normal");
+		glsl.addLineBreak();
+		glsl.addLayoutVariable(0, "out", "vec4", "gAlbedo");
+		glsl.addLayoutVariable(1, "out", "vec4", "gNormal");
+		glsl.addLineBreak();
+		
+		// Uniforms
+		glsl.addVariableMediumQualifier("uniform", (material ? "Material" : "sampler2D"), (material ? "material" : "tex"));
+		glsl.addLineBreak();
+		
+		// Main
+		glsl.openMainFunction();
+		glsl.addVariableMediumAssignment("vec4", "diffuseTexture", (material ? "texture(material.diffuse, texCoords)" : "texture(tex, texCoords)"));
+		glsl.openIf("diffuseTexture.a == 0");
+		glsl.callStatement("discard");
+		glsl.closeIf(false);
+		if(material) {
+			glsl.addVariableMediumAssignment("vec3", "specularTexture", "texture(material.specular, texCoords).rgb");
+			glsl.addCode("gAlbedo = vec4(diffuseTexture.rgb, dot(specularTexture, vec3(1.0 / 3.0)));", false, true);
+			glsl.addCode("gNormal = vec4(normalize(normal), float(material.shininess));", false, true);
+		} else {
+			glsl.addCode("gAlbedo = vec4(diffuseTexture.rgb, 0.0);", false, true);
+			glsl.addCode("gNormal = vec4(normalize(normal), 1.0);", false, true);
+		}
+		glsl.closeFunction();
+		
+		return glsl.build();
+	}
 }
@@ -1,6 +1,7 @@
 package glutils.core;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 
 import org.joml.Vector2f;
 import org.lwjgl.opengl.GL33;
@@ -27,32 +28,29 @@ public class Texture {
 	public static final int FILTER_MIPMAP_LINEAR = GL33.GL_LINEAR_MIPMAP_LINEAR;
 	public static final int FILTER_MIPMAP_NEAREST = GL33.GL_NEAREST_MIPMAP_NEAREST;
 	
+	private boolean loaded; // Whether the texture data has been fully uploaded
+	private boolean mipmapped; // Whether mipmaps have been generated for the texture
+	
 	/** Creates new texture, S and T wrap is manually defined */
 	public Texture(ByteBuffer textureData, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
-		// Variable initialization + declaration
-		width = new int[1];
-		height = new int[1];
-		colorChannels = new int[1];
-		// GL texture generation
-		textureID = GL33.glGenTextures();
-		GL33.glBindTexture(GL33.GL_TEXTURE_2D, textureID);
-		// Texture parameter setting
-		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_S, wrapS);
-		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_T, wrapT);
-		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MIN_FILTER, minFilter);
-		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MAG_FILTER, magFilter);
+		this(wrapS, wrapT, minFilter, magFilter);
 		// Texture data loading
+		JfrEvents.TextureDecode decode = new JfrEvents.TextureDecode();
 		this.textureData = STBImage.stbi_load_from_memory(textureData, width, height, colorChannels, STBImage.STBI_rgb_alpha);
+		decode.commit(width[0], height[0], this.textureData != null);
 		if(this.textureData != null) {
+			JfrEvents.TextureUpload upload = new JfrEvents.TextureUpload();
 			GL33.glTexImage2D(GL33.GL_TEXTURE_2D, 0, GL33.GL_RGBA, width[0], height[0], 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, this.textureData);
+			upload.commit(width[0], height[0], (long)width[0] * height[0] * 4);
+			RenderStats.countTextureBytes((long)width[0] * height[0] * 4);
 			if(genMipmap) {
 				GL33.glGenerateMipmap(GL33.GL_TEXTURE_2D);
 			}
+			mipmapped = genMipmap;
+			loaded = true;
 			Window.print("Texture: texture loaded", true, 2);
-			textureData.clear();
-			textureData = null;
+			// The decoded data is owned by STBImage and has to be freed by it, the buffer is unusable afterwards
 			STBImage.stbi_image_free(this.textureData);
-			this.textureData.clear();
 			this.textureData = null;
 		} else {
 			Window.print("Texture: texture loading error\n  " + STBImage.stbi_failure_reason(), true, true, true, 0);
@@ -71,14 +69,101 @@ public class Texture {
 		this(textureData, TEXTURE_REPEAT, TEXTURE_REPEAT, FILTER_MIPMAP_LINEAR, FILTER_LINEAR, true);
 	}
 	
+	/** Internal constructor, generates the texture object and sets its parameters without any texture data, used by TextureLoader */
+	Texture(int wrapS, int wrapT, int minFilter, int magFilter) {
+		// Variable initialization + declaration
+		width = new int[1];
+		height = new int[1];
+		colorChannels = new int[1];
+		loaded = false;
+		mipmapped = false;
+		// GL texture generation
+		textureID = GL33.glGenTextures();
+		GLState.bindTexture(GL33.GL_TEXTURE_2D, textureID);
+		// Texture parameter setting
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_S, wrapS);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_T, wrapT);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MIN_FILTER, minFilter);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MAG_FILTER, magFilter);
+	}
+	
+	/** 
+	 * Creates a new texture out of already decoded pixel data
+	 * @param pixels RGBA pixel data with 4 bytes per pixel, rows starting at the top of the image
+	 * @param width width of the pixel data
+	 * @param height height of the pixel data
+	 */
+	public static Texture fromPixels(ByteBuffer pixels, int width, int height, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		Texture t = new Texture(wrapS, wrapT, minFilter, magFilter);
+		JfrEvents.TextureUpload upload = new JfrEvents.TextureUpload();
+		GL33.glTexImage2D(GL33.GL_TEXTURE_2D, 0, GL33.GL_RGBA, width, height, 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, pixels);
+		upload.commit(width, height, (long)width * height * 4);
+		RenderStats.countTextureBytes((long)width * height * 4);
+		if(genMipmap) {
+			GL33.glGenerateMipmap(GL33.GL_TEXTURE_2D);
+		}
+		t.setSize(width, height, 4);
+		t.mipmapped = genMipmap;
+		t.setLoaded(true);
+		return t;
+	}
+	
+	/** 
+	 * Creates a new texture out of an already generated mip chain, each level is uploaded as is and no mipmaps are generated by OpenGL
+	 * @param levels RGBA pixel data of every mip level, starting with the full size level, each level half the size of the previous one
+	 * @param width width of the full size level
+	 * @param height height of the full size level
+	 */
+	public static Texture fromMipLevels(ByteBuffer[] levels, int width, int height, int wrapS, int wrapT, int minFilter, int magFilter) {
+		return fromMipLevels(levels, 0, width, height, wrapS, wrapT, minFilter, magFilter);
+	}
+	/** 
+	 * Creates a new texture out of part of an already generated mip chain, only the levels from baseLevel to the smallest one are uploaded and the texture's base level is set to baseLevel
+	 * @param levels RGBA pixel data of every mip level, starting with the full size level, each level half the size of the previous one, levels before baseLevel are not read and can be null
+	 * @param baseLevel the finest level to upload
+	 * @param width width of the full size level
+	 * @param height height of the full size level
+	 */
+	public static Texture fromMipLevels(ByteBuffer[] levels, int baseLevel, int width, int height, int wrapS, int wrapT, int minFilter, int magFilter) {
+		Texture t = new Texture(wrapS, wrapT, minFilter, magFilter);
+		t.setSize(width, height, 4);
+		for(int i = baseLevel; i < levels.length; i++) {
+			t.uploadMipLevel(i, levels[i]);
+		}
+		t.setLevelRange(baseLevel, levels.length - 1);
+		t.mipmapped = levels.length > 1;
+		t.setLoaded(true);
+		return t;
+	}
+	
+	/** Uploads RGBA pixel data into a mip level of the texture, the level's size is derived from the texture's full size */
+	public void uploadMipLevel(int level, ByteBuffer pixels) {
+		int w = Math.max(1, width[0] >> level), h = Math.max(1, height[0] >> level);
+		GLState.bindTexture(GL33.GL_TEXTURE_2D, textureID);
+		JfrEvents.TextureUpload upload = new JfrEvents.TextureUpload();
+		GL33.glTexImage2D(GL33.GL_TEXTURE_2D, level, GL33.GL_RGBA, w, h, 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, pixels);
+		upload.commit(w, h, (long)w * h * 4);
+		RenderStats.countTextureBytes((long)w * h * 4);
+	}
+	/** Frees the memory of a mip level by redefining it with a size of 0, the level has to be outside of the range set by setLevelRange() */
+	public void freeMipLevel(int level) {
+		GLState.bindTexture(GL33.GL_TEXTURE_2D, textureID);
+		GL33.glTexImage2D(GL33.GL_TEXTURE_2D, level, GL33.GL_RGBA, 0, 0, 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+	}
+	/** Clamps the mip levels used for sampling to the range from baseLevel (finest) to maxLevel (coarsest) */
+	public void setLevelRange(int baseLevel, int maxLevel) {
+		GLState.bindTexture(GL33.GL_TEXTURE_2D, textureID);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_BASE_LEVEL, baseLevel);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MAX_LEVEL, maxLevel);
+	}
+	
 	/** Uses the texture in the texture slot textureSlot and sets the texture sampler2D uniform name to uniformName */
 	public void use(String uniformName, int textureSlot, Shader shaderProgram) {
 		// Uniform changing
 		//GL33.glUniform1i(GL33.glGetUniformLocation(shaderProgram.id, uniformName), textureSlot);
-		shaderProgram.setUniformInt("uniformName", textureSlot);
-		// Binding texture to slot
-		GL33.glActiveTexture(GL33.GL_TEXTURE0 + textureSlot);
-		GL33.glBindTexture(GL33.GL_TEXTURE_2D, textureID);
+		shaderProgram.setUniformInt(uniformName, textureSlot);
+		// Binding texture to slot, skipped if it is already bound there
+		GLState.bindTexture(textureSlot, GL33.GL_TEXTURE_2D, textureID);
 	}
 	
 	/** Returns the size of the texture */
@@ -91,9 +176,47 @@ public class Texture {
 		return colorChannels[0];
 	}
 	
+	/** Returns whether the texture data has been fully uploaded, false while an asynchronous load is still in progress or if loading failed */
+	public boolean isLoaded() {
+		return loaded;
+	}
+	
+	/** Internal method, sets the size and color channels of the texture once its data is known */
+	void setSize(int width, int height, int colorChannels) {
+		this.width[0] = width;
+		this.height[0] = height;
+		this.colorChannels[0] = colorChannels;
+	}
+	
+	/** Returns the estimated amount of video memory used by the texture in bytes, 4 bytes per pixel plus a third for the mip chain if mipmaps were generated */
+	public long getMemorySize() {
+		long base = (long)width[0] * height[0] * 4;
+		return (mipmapped ? base + base / 3 : base);
+	}
+	
+	/** Internal method, sets whether mipmaps have been generated for the texture */
+	void setMipmapped(boolean mipmapped) {
+		this.mipmapped = mipmapped;
+	}
+	
+	/** Internal method, marks the texture data as fully uploaded */
+	void setLoaded(boolean loaded) {
+		this.loaded = loaded;
+	}
+	
 	/** Disposes of the generated texture object */
 	public void dispose() {
 		GL33.glDeleteTextures(textureID);
-		System.gc();
+		GLState.textureDeleted(textureID);
+	}
+	
+	/** Disposes of the generated texture objects of all the given textures with a single OpenGL call */
+	public static void dispose(Collection<Texture> textures) {
+		if(textures.isEmpty()) return;
+		int[] ids = new int[textures.size()];
+		int i = 0;
+		for(Texture t : textures) ids[i++] = t.textureID;
+		GL33.glDeleteTextures(ids);
+		for(int id : ids) GLState.textureDeleted(id);
 	}
 }
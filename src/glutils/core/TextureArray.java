@@ -0,0 +1,118 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.stb.STBImage;
+import org.lwjgl.stb.STBImageResize;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Packs many images into the layers of one GL_TEXTURE_2D_ARRAY so that models using them can be drawn with a single texture bind.
+ * All layers share the same size, images of a different size are resized, in the shader the texture is sampled with a sampler2DArray and the region's layer index
+ */
+public class TextureArray {
+	
+	/** The OpenGL id of the texture array, 0 before build() */
+	public int textureID;
+	
+	private int width, height; // Size of every layer
+	private ArrayList<ByteBuffer> layers; // RGBA pixel data of every layer, cleared after the array was built
+	private ArrayList<TextureRegion> regions; // Regions of every layer
+	
+	/** Creates an empty texture array whose layers have the given size */
+	public TextureArray(int width, int height) {
+		this.width = width;
+		this.height = height;
+		layers = new ArrayList<>();
+		regions = new ArrayList<>();
+		textureID = 0;
+	}
+	
+	/** Decodes image file data and adds it as a new layer, returns the region of the layer or null if the image couldn't be decoded */
+	public TextureRegion add(ByteBuffer textureData) {
+		int[] w = new int[1], h = new int[1], c = new int[1];
+		ByteBuffer image = STBImage.stbi_load_from_memory(textureData, w, h, c, STBImage.STBI_rgb_alpha);
+		if(image == null) {
+			Window.print("TextureArray: texture loading error\n  " + STBImage.stbi_failure_reason(), true, true, true, 0);
+			return null;
+		}
+		TextureRegion r = add(image, w[0], h[0]);
+		STBImage.stbi_image_free(image);
+		return r;
+	}
+	
+	/** Adds already decoded RGBA pixel data as a new layer, resizing it to the layer size if necessary, returns the region of the layer */
+	public TextureRegion add(ByteBuffer image, int imageWidth, int imageHeight) {
+		if(textureID != 0) {
+			Window.print("TextureArray: array was already built, images can't be added anymore", true, true, true, 0);
+			return null;
+		}
+		ByteBuffer layer = MemoryUtil.memAlloc(width * height * 4);
+		if(imageWidth == width && imageHeight == height) {
+			MemoryUtil.memCopy(image, layer);
+		} else {
+			STBImageResize.stbir_resize_uint8(image, imageWidth, imageHeight, 0, layer, width, height, 0, 4);
+			Window.print("TextureArray: " + imageWidth + "x" + imageHeight + " image resized to layer size", true, 2);
+		}
+		layers.add(layer);
+		TextureRegion r = new TextureRegion(0, 0, width, height, layers.size() - 1, width, height);
+		regions.add(r);
+		return r;
+	}
+	
+	/** Uploads all layers into the texture array and frees the CPU copies, no images can be added afterwards */
+	public void build(int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		if(textureID != 0) return;
+		textureID = GL33.glGenTextures();
+		GLState.bindTexture(GL33.GL_TEXTURE_2D_ARRAY, textureID);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_WRAP_S, wrapS);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_WRAP_T, wrapT);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_MIN_FILTER, minFilter);
+		GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_MAG_FILTER, magFilter);
+		// Allocating storage for all layers, then filling each layer
+		GL33.glTexImage3D(GL33.GL_TEXTURE_2D_ARRAY, 0, GL33.GL_RGBA, width, height, layers.size(), 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+		for(int i = 0; i < layers.size(); i++) {
+			GL33.glTexSubImage3D(GL33.GL_TEXTURE_2D_ARRAY, 0, 0, 0, i, width, height, 1, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, layers.get(i));
+			RenderStats.countTextureBytes((long)width * height * 4);
+			MemoryUtil.memFree(layers.get(i));
+		}
+		if(genMipmap) {
+			GL33.glGenerateMipmap(GL33.GL_TEXTURE_2D_ARRAY);
+		}
+		Window.print("TextureArray: texture array built with " + layers.size() + " layers", true, 2);
+		layers.clear();
+	}
+	/** Uploads all layers into the texture array with repeat wrap, linear mipmap linear min filter and linear mag filter, generating mipmaps */
+	public void build() {
+		build(Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR, true);
+	}
+	
+	/** Uses the texture array in the texture slot textureSlot and sets the sampler2DArray uniform uniformName to it */
+	public void use(String uniformName, int textureSlot, Shader shaderProgram) {
+		shaderProgram.setUniformInt(uniformName, textureSlot);
+		GLState.bindTexture(textureSlot, GL33.GL_TEXTURE_2D_ARRAY, textureID);
+	}
+	
+	/** Returns the regions of all layers, the layer index of a region is the index to sample in the shader */
+	public ArrayList<TextureRegion> getRegions() {
+		return regions;
+	}
+	/** Returns the amount of layers */
+	public int getLayerCount() {
+		return regions.size();
+	}
+	
+	/** Disposes of the texture array and any CPU copies that haven't been uploaded yet */
+	public void dispose() {
+		for(ByteBuffer b : layers) MemoryUtil.memFree(b);
+		layers.clear();
+		if(textureID != 0) {
+			GL33.glDeleteTextures(textureID);
+			GLState.textureDeleted(textureID);
+		}
+		textureID = 0;
+	}
+
+}
@@ -0,0 +1,188 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.stb.STBImage;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Packs many small images into one 2D texture so that models using them can be drawn with a single texture bind.
+ * Images are placed using a skyline bottom-left packer, each image is surrounded by a gutter of repeated edge pixels so that filtering and mipmaps don't bleed between images
+ */
+public class TextureAtlas {
+	
+	private int width, height; // Size of the atlas texture
+	private int padding; // Size of the gutter around each image in pixels
+	private int alignment; // Power of two all packed rectangles are aligned to, keeps mip blocks from straddling two images
+	private ByteBuffer pixels; // RGBA pixel data of the atlas, null after the atlas was built
+	private ArrayList<int[]> skyline; // Skyline segments of the packer, each {x, y, width}, sorted by x
+	private ArrayList<TextureRegion> regions; // Regions packed so far
+	private Texture texture; // The built texture, null before build()
+	
+	/**
+	 * Creates an empty atlas
+	 * @param width width of the atlas texture
+	 * @param height height of the atlas texture
+	 * @param padding size of the gutter around each image in pixels, a padding of 2^n keeps the first n mip levels free of bleeding
+	 */
+	public TextureAtlas(int width, int height, int padding) {
+		this.width = width;
+		this.height = height;
+		this.padding = Math.max(0, padding);
+		alignment = (this.padding <= 1 ? 1 : Integer.highestOneBit(this.padding - 1) << 1);
+		pixels = MemoryUtil.memCalloc(width * height * 4);
+		skyline = new ArrayList<>();
+		skyline.add(new int[] {0, 0, width});
+		regions = new ArrayList<>();
+		texture = null;
+	}
+	/** Creates an empty atlas with a 4 pixel gutter around each image */
+	public TextureAtlas(int width, int height) {
+		this(width, height, 4);
+	}
+	
+	/** Decodes image file data and packs it into the atlas, returns the region of the image or null if it didn't fit or couldn't be decoded */
+	public TextureRegion add(ByteBuffer textureData) {
+		int[] w = new int[1], h = new int[1], c = new int[1];
+		ByteBuffer image = STBImage.stbi_load_from_memory(textureData, w, h, c, STBImage.STBI_rgb_alpha);
+		if(image == null) {
+			Window.print("TextureAtlas: texture loading error\n  " + STBImage.stbi_failure_reason(), true, true, true, 0);
+			return null;
+		}
+		TextureRegion r = add(image, w[0], h[0]);
+		STBImage.stbi_image_free(image);
+		return r;
+	}
+	
+	/** Packs already decoded RGBA pixel data into the atlas, returns the region of the image or null if it didn't fit */
+	public TextureRegion add(ByteBuffer image, int imageWidth, int imageHeight) {
+		if(pixels == null) {
+			Window.print("TextureAtlas: atlas was already built, images can't be added anymore", true, true, true, 0);
+			return null;
+		}
+		// Packing the padded, aligned rectangle
+		int packedWidth = align(imageWidth + padding * 2);
+		int packedHeight = align(imageHeight + padding * 2);
+		int[] pos = pack(packedWidth, packedHeight);
+		if(pos == null) {
+			Window.print("TextureAtlas: no space left for " + imageWidth + "x" + imageHeight + " image", true, true, true, 0);
+			return null;
+		}
+		// Copying the image and its gutter, gutter pixels repeat the closest edge pixel
+		int x0 = pos[0] + padding, y0 = pos[1] + padding;
+		for(int row = -padding; row < imageHeight + padding; row++) {
+			int srcRow = Math.min(Math.max(row, 0), imageHeight - 1);
+			int dst = ((y0 + row) * width + x0) * 4;
+			int src = srcRow * imageWidth * 4;
+			MemoryUtil.memCopy(MemoryUtil.memAddress(image) + src, MemoryUtil.memAddress(pixels) + dst, imageWidth * 4L);
+			int left = image.getInt(src), right = image.getInt(src + (imageWidth - 1) * 4);
+			for(int i = 1; i <= padding; i++) {
+				pixels.putInt(dst - i * 4, left);
+				pixels.putInt(dst + (imageWidth - 1 + i) * 4, right);
+			}
+		}
+		TextureRegion r = new TextureRegion(x0, y0, imageWidth, imageHeight, 0, width, height);
+		regions.add(r);
+		return r;
+	}
+	
+	/**
+	 * Uploads the packed images into the atlas texture and frees the CPU copy, no images can be added afterwards.
+	 * The texture wraps with clamp to edge and, if mipmaps are generated, its max mip level is limited so that the gutters stay effective
+	 */
+	public Texture build(int minFilter, int magFilter, boolean genMipmap) {
+		if(pixels == null) return texture;
+		texture = Texture.fromPixels(pixels, width, height, Texture.TEXTURE_CLAMP_TO_EDGE, Texture.TEXTURE_CLAMP_TO_EDGE, minFilter, magFilter, genMipmap);
+		if(genMipmap) {
+			GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MAX_LEVEL, Integer.numberOfTrailingZeros(alignment));
+		}
+		MemoryUtil.memFree(pixels);
+		pixels = null;
+		Window.print("TextureAtlas: atlas built with " + regions.size() + " images", true, 2);
+		return texture;
+	}
+	/** Uploads the packed images into the atlas texture with linear mipmap linear min filter and linear mag filter, generating mipmaps */
+	public Texture build() {
+		return build(Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR, true);
+	}
+	
+	/** Finds the bottom-left-most position for a rectangle on the skyline and adds it to the skyline, returns {x, y} or null if it doesn't fit */
+	private int[] pack(int rectWidth, int rectHeight) {
+		int bestIndex = -1, bestX = 0, bestY = Integer.MAX_VALUE, bestWidth = Integer.MAX_VALUE;
+		for(int i = 0; i < skyline.size(); i++) {
+			int x = skyline.get(i)[0];
+			if(x + rectWidth > width) break;
+			// The rectangle rests on the highest segment it spans
+			int y = 0, remaining = rectWidth;
+			for(int j = i; remaining > 0; j++) {
+				int[] s = skyline.get(j);
+				y = Math.max(y, s[1]);
+				remaining -= s[2];
+			}
+			if(y + rectHeight > height) continue;
+			int segmentWidth = skyline.get(i)[2];
+			if(y < bestY || (y == bestY && segmentWidth < bestWidth)) {
+				bestIndex = i;
+				bestX = x;
+				bestY = y;
+				bestWidth = segmentWidth;
+			}
+		}
+		if(bestIndex == -1) return null;
+		
+		// Inserting the new segment and shrinking or removing the segments it covers
+		skyline.add(bestIndex, new int[] {bestX, bestY + rectHeight, rectWidth});
+		for(int i = bestIndex + 1; i < skyline.size(); i++) {
+			int[] s = skyline.get(i);
+			int end = bestX + rectWidth;
+			if(s[0] >= end) break;
+			int overlap = end - s[0];
+			if(overlap >= s[2]) {
+				skyline.remove(i--);
+			} else {
+				s[0] += overlap;
+				s[2] -= overlap;
+				break;
+			}
+		}
+		// Merging neighboring segments of the same height
+		for(int i = 0; i < skyline.size() - 1; i++) {
+			int[] a = skyline.get(i), b = skyline.get(i + 1);
+			if(a[1] == b[1]) {
+				a[2] += b[2];
+				skyline.remove(i-- + 1);
+			}
+		}
+		return new int[] {bestX, bestY};
+	}
+	
+	/** Rounds the value up to a multiple of the alignment */
+	private int align(int value) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+	
+	/** Returns the built atlas texture, null before build() */
+	public Texture getTexture() {
+		return texture;
+	}
+	/** Returns the regions packed into the atlas */
+	public ArrayList<TextureRegion> getRegions() {
+		return regions;
+	}
+	/** Returns the amount of atlas rows used by the packed images */
+	public int getUsedHeight() {
+		int max = 0;
+		for(int[] s : skyline) max = Math.max(max, s[1]);
+		return max;
+	}
+	
+	/** Disposes of the atlas texture and the CPU copy of the pixel data */
+	public void dispose() {
+		if(pixels != null) MemoryUtil.memFree(pixels);
+		pixels = null;
+		if(texture != null) texture.dispose();
+	}
+
+}
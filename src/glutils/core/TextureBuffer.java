@@ -0,0 +1,90 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Class holding a buffer texture, a buffer object which shaders read through texelFetch() on a samplerBuffer (or usamplerBuffer/isamplerBuffer for integer formats).
+ * Used for large arrays of data which don't fit into uniforms, like light lists. Every update reallocates the buffer's storage, so the driver never waits for draws
+ * still reading the previous data
+ */
+public class TextureBuffer {
+	
+	/** The OpenGL id of the buffer object */
+	public int bufferID;
+	/** The OpenGL id of the buffer texture */
+	public int textureID;
+	
+	private int internalFormat; // Format of a texel, e.g. GL_RGBA32F or GL_R32UI
+	private long size; // Size of the data in bytes
+	
+	/**
+	 * Creates an empty buffer texture
+	 * @param internalFormat format of a texel, e.g. GL_RGBA32F (vec4 per texel), GL_RG32UI (uvec2 per texel) or GL_R32UI (uint per texel)
+	 */
+	public TextureBuffer(int internalFormat) {
+		this.internalFormat = internalFormat;
+		bufferID = GL33.glGenBuffers();
+		GLState.bindBuffer(GL33.GL_TEXTURE_BUFFER, bufferID);
+		GL33.glBufferData(GL33.GL_TEXTURE_BUFFER, 16, GL33.GL_STREAM_DRAW);
+		textureID = GL33.glGenTextures();
+		GLState.bindTexture(GL33.GL_TEXTURE_BUFFER, textureID);
+		GL33.glTexBuffer(GL33.GL_TEXTURE_BUFFER, internalFormat, bufferID);
+	}
+	
+	/** Replaces the data with the remaining floats of data */
+	public void update(FloatBuffer data) {
+		GLState.bindBuffer(GL33.GL_TEXTURE_BUFFER, bufferID);
+		GL33.glBufferData(GL33.GL_TEXTURE_BUFFER, data, GL33.GL_STREAM_DRAW);
+		uploaded((long)data.remaining() * Float.BYTES);
+	}
+	/** Replaces the data with the remaining ints of data */
+	public void update(IntBuffer data) {
+		GLState.bindBuffer(GL33.GL_TEXTURE_BUFFER, bufferID);
+		GL33.glBufferData(GL33.GL_TEXTURE_BUFFER, data, GL33.GL_STREAM_DRAW);
+		uploaded((long)data.remaining() * Integer.BYTES);
+	}
+	/** Replaces the data with the remaining bytes of data */
+	public void update(ByteBuffer data) {
+		GLState.bindBuffer(GL33.GL_TEXTURE_BUFFER, bufferID);
+		GL33.glBufferData(GL33.GL_TEXTURE_BUFFER, data, GL33.GL_STREAM_DRAW);
+		uploaded(data.remaining());
+	}
+	
+	/** Records the size of an upload */
+	private void uploaded(long bytes) {
+		size = bytes;
+		RenderStats.countBufferBytes(bytes);
+	}
+	
+	/** Binds the buffer texture to the texture slot and sets the sampler uniform with the given name to it */
+	public void use(String uniformName, int textureSlot, Shader shaderProgram) {
+		shaderProgram.setUniformInt(uniformName, textureSlot);
+		GLState.bindTexture(textureSlot, GL33.GL_TEXTURE_BUFFER, textureID);
+	}
+	
+	/** Returns the format of a texel */
+	public int getInternalFormat() {
+		return internalFormat;
+	}
+	/** Returns the size of the data in bytes */
+	public long getSize() {
+		return size;
+	}
+	/** Returns the most texels a buffer texture can hold on this OpenGL implementation */
+	public static int getMaxTexels() {
+		return GL33.glGetInteger(GL33.GL_MAX_TEXTURE_BUFFER_SIZE);
+	}
+	
+	/** Disposes of the buffer texture and the buffer object */
+	public void dispose() {
+		GL33.glDeleteTextures(textureID);
+		GLState.textureDeleted(textureID);
+		GL33.glDeleteBuffers(bufferID);
+		GLState.bufferDeleted(bufferID);
+	}
+
+}
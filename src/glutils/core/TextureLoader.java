@@ -0,0 +1,274 @@
+package glutils.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.stb.STBImage;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Loads textures asynchronously, image files are decoded by STBImage on worker threads and the decoded data is uploaded through a ring of pixel buffer objects.
+ * The load methods and update() have to be called from the thread owning the OpenGL context, update() is meant to be called once per frame
+ */
+public class TextureLoader {
+	
+	private static final long DISPOSE_TIMEOUT = 30; // Seconds dispose() waits for images still being decoded
+	
+	// Decoding
+	private ExecutorService decoders; // Worker threads decoding the image files
+	private ConcurrentLinkedQueue<PendingTexture> decoded; // Images which finished decoding, waiting for upload
+	private int pendingDecodes; // Amount of images currently being decoded, only touched by the GL thread
+	
+	// Uploading
+	private ArrayDeque<PendingTexture> uploading; // Images being uploaded, the first one is uploaded in chunks until done
+	private ArrayList<PendingTexture> mipmapQueue; // Uploaded textures waiting for mipmap generation in the next update
+	private int[] pbos; // Ring of pixel unpack buffers
+	private long[] fences; // Fence sync of the last upload from each buffer of the ring, 0 if the buffer is free
+	private int pboSize; // Size of each pixel unpack buffer in bytes
+	private int pboIndex; // Index of the next buffer of the ring to use
+	private long uploadBudget; // Maximum amount of bytes uploaded in one update
+	
+	// Statistics
+	private long bytesUploaded; // Total amount of bytes uploaded
+	private long uploadNanos; // Total time spent uploading in nanoseconds
+	private long lastUpdateBytes; // Amount of bytes uploaded in the last update
+	
+	/**
+	 * Creates a texture loader
+	 * @param decodeThreads amount of worker threads decoding image files
+	 * @param pboCount amount of pixel buffer objects in the upload ring, at least 2 recommended so that the CPU can fill one while the GPU reads another
+	 * @param pboSize size of one pixel buffer object in bytes, images are uploaded in row chunks of at most this size
+	 * @param uploadBudget maximum amount of bytes uploaded in one update() call, limits the upload time spent per frame
+	 */
+	public TextureLoader(int decodeThreads, int pboCount, int pboSize, long uploadBudget) {
+		decoders = Executors.newFixedThreadPool(Math.max(1, decodeThreads), r -> {
+			Thread t = new Thread(r, "glutils-texture-decoder");
+			t.setDaemon(true);
+			return t;
+		});
+		decoded = new ConcurrentLinkedQueue<>();
+		pendingDecodes = 0;
+		
+		uploading = new ArrayDeque<>();
+		mipmapQueue = new ArrayList<>();
+		pbos = new int[Math.max(1, pboCount)];
+		fences = new long[pbos.length];
+		GL33.glGenBuffers(pbos);
+		for(int pbo : pbos) {
+			GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, pbo);
+			GL33.glBufferData(GL33.GL_PIXEL_UNPACK_BUFFER, pboSize, GL33.GL_STREAM_DRAW);
+		}
+		GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, 0);
+		this.pboSize = pboSize;
+		pboIndex = 0;
+		this.uploadBudget = uploadBudget;
+		
+		bytesUploaded = 0;
+		uploadNanos = 0;
+		lastUpdateBytes = 0;
+	}
+	/** Creates a texture loader with 2 decode threads and a ring of 3 pixel buffer objects of 4 MB, uploading at most 16 MB per update */
+	public TextureLoader() {
+		this(2, 3, 4 * 1024 * 1024, 16 * 1024 * 1024);
+	}
+	
+	/**
+	 * Starts loading a texture from image file data, the returned texture can be used right away but stays empty until isLoaded() returns true
+	 * @param textureData the image file data, has to stay unchanged until the texture is loaded
+	 */
+	public Texture load(ByteBuffer textureData, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		PendingTexture p = new PendingTexture(new Texture(wrapS, wrapT, minFilter, magFilter), genMipmap);
+		pendingDecodes++;
+		decoders.execute(() -> {
+			int[] width = new int[1], height = new int[1], colorChannels = new int[1];
+			JfrEvents.TextureDecode event = new JfrEvents.TextureDecode();
+			p.pixels = STBImage.stbi_load_from_memory(textureData, width, height, colorChannels, STBImage.STBI_rgb_alpha);
+			event.commit(width[0], height[0], p.pixels != null);
+			if(p.pixels == null) p.error = STBImage.stbi_failure_reason();
+			p.width = width[0];
+			p.height = height[0];
+			p.colorChannels = colorChannels[0];
+			decoded.add(p);
+		});
+		return p.texture;
+	}
+	/** Starts loading a texture from image file data, S and T wrap is set to repeat, min filter is set to linear mipmap linear, mag filter is set to linear, genMipmap is set to true */
+	public Texture load(ByteBuffer textureData) {
+		return load(textureData, Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR, true);
+	}
+	
+	/** Uploads decoded textures within the upload budget and generates mipmaps of textures uploaded in the previous update, has to be called from the GL thread */
+	public void update() {
+		// Mipmaps are generated one update after the upload so that the PBO copies have time to finish
+		for(PendingTexture p : mipmapQueue) {
+			GLState.bindTexture(GL33.GL_TEXTURE_2D, p.texture.textureID);
+			GL33.glGenerateMipmap(GL33.GL_TEXTURE_2D);
+			p.texture.setMipmapped(true);
+			p.texture.setLoaded(true);
+		}
+		mipmapQueue.clear();
+		
+		// Taking over newly decoded images
+		PendingTexture d;
+		while((d = decoded.poll()) != null) {
+			pendingDecodes--;
+			if(d.pixels == null) {
+				Window.print("TextureLoader: texture loading error\n  " + d.error, true, true, true, 0);
+			} else {
+				uploading.add(d);
+			}
+		}
+		
+		// Uploading chunks until the budget is used up or the ring is full
+		long start = System.nanoTime();
+		long uploaded = 0;
+		while(!uploading.isEmpty() && uploaded < uploadBudget) {
+			PendingTexture p = uploading.peek();
+			int rowBytes = p.width * 4;
+			if(!p.allocated) {
+				// Allocating the texture storage before the first chunk, the previous chunk's buffer would otherwise be read as its source
+				GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, 0);
+				GLState.bindTexture(GL33.GL_TEXTURE_2D, p.texture.textureID);
+				GL33.glTexImage2D(GL33.GL_TEXTURE_2D, 0, GL33.GL_RGBA, p.width, p.height, 0, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+				p.texture.setSize(p.width, p.height, p.colorChannels);
+				p.allocated = true;
+			}
+			if(rowBytes > pboSize) {
+				// A single row does not fit into a buffer of the ring, uploading straight from client memory
+				GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, 0);
+				GLState.bindTexture(GL33.GL_TEXTURE_2D, p.texture.textureID);
+				JfrEvents.TextureUpload event = new JfrEvents.TextureUpload();
+				GL33.glTexSubImage2D(GL33.GL_TEXTURE_2D, 0, 0, 0, p.width, p.height, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, p.pixels);
+				event.commit(p.width, p.height, (long)p.width * p.height * 4);
+				RenderStats.countTextureBytes((long)p.width * p.height * 4);
+				uploaded += (long)rowBytes * p.height;
+				p.nextRow = p.height;
+			} else {
+				if(!acquireBuffer()) break;
+				int rows = Math.min(p.height - p.nextRow, pboSize / rowBytes);
+				int bytes = rows * rowBytes;
+				JfrEvents.TextureUpload event = new JfrEvents.TextureUpload();
+				// Filling the buffer, orphaning the previous storage so the driver never has to wait
+				GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, pbos[pboIndex]);
+				ByteBuffer mapped = GL33.glMapBufferRange(GL33.GL_PIXEL_UNPACK_BUFFER, 0, bytes, GL33.GL_MAP_WRITE_BIT | GL33.GL_MAP_INVALIDATE_BUFFER_BIT);
+				if(mapped == null) {
+					GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, 0);
+					Window.print("TextureLoader: pixel buffer mapping error", true, true, true, 0);
+					break;
+				}
+				MemoryUtil.memCopy(MemoryUtil.memAddress(p.pixels) + (long)p.nextRow * rowBytes, MemoryUtil.memAddress(mapped), bytes);
+				GL33.glUnmapBuffer(GL33.GL_PIXEL_UNPACK_BUFFER);
+				// Copying from the buffer into the texture, returns immediately since the source is a buffer object
+				GLState.bindTexture(GL33.GL_TEXTURE_2D, p.texture.textureID);
+				GL33.glTexSubImage2D(GL33.GL_TEXTURE_2D, 0, 0, p.nextRow, p.width, rows, GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, 0L);
+				event.commit(p.width, rows, bytes);
+				RenderStats.countTextureBytes((long)p.width * rows * 4);
+				fences[pboIndex] = GL33.glFenceSync(GL33.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+				pboIndex = (pboIndex + 1) % pbos.length;
+				uploaded += bytes;
+				p.nextRow += rows;
+			}
+			if(p.nextRow >= p.height) {
+				// Upload finished, the decoded data is owned by STBImage and has to be freed by it
+				uploading.poll();
+				STBImage.stbi_image_free(p.pixels);
+				p.pixels = null;
+				if(p.genMipmap) {
+					mipmapQueue.add(p);
+				} else {
+					p.texture.setLoaded(true);
+				}
+				Window.print("TextureLoader: texture loaded", true, 2);
+			}
+		}
+		// Unbinding so that later client memory uploads are not read as buffer offsets
+		GLState.bindBuffer(GL33.GL_PIXEL_UNPACK_BUFFER, 0);
+		
+		if(uploaded > 0) uploadNanos += System.nanoTime() - start;
+		bytesUploaded += uploaded;
+		lastUpdateBytes = uploaded;
+	}
+	
+	/** Returns whether the current buffer of the ring is free to be written to, deletes its fence if the GPU has finished reading from it */
+	private boolean acquireBuffer() {
+		long fence = fences[pboIndex];
+		if(fence == 0) return true;
+		int status = GL33.glClientWaitSync(fence, 0, 0);
+		if(status == GL33.GL_TIMEOUT_EXPIRED) return false;
+		GL33.glDeleteSync(fence);
+		fences[pboIndex] = 0;
+		return true;
+	}
+	
+	/** Returns whether there are any textures still being decoded or uploaded */
+	public boolean isBusy() {
+		return pendingDecodes > 0 || !uploading.isEmpty() || !mipmapQueue.isEmpty();
+	}
+	
+	/** Returns the total amount of bytes uploaded */
+	public long getBytesUploaded() {
+		return bytesUploaded;
+	}
+	/** Returns the amount of bytes uploaded in the last update */
+	public long getLastUpdateBytes() {
+		return lastUpdateBytes;
+	}
+	/** Returns the average upload bandwidth in bytes per second, measured over the time spent issuing uploads */
+	public double getUploadBandwidth() {
+		return (uploadNanos == 0 ? 0 : bytesUploaded / (uploadNanos / 1e9));
+	}
+	
+	/** Disposes of the worker threads and the pixel buffer objects, textures which have not finished loading stay empty. Waits for images still being decoded to free them */
+	public void dispose() {
+		decoders.shutdownNow();
+		// Decoding can't be interrupted, images finishing after the shutdown are added to decoded and freed below
+		try {
+			if(!decoders.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.SECONDS)) Window.print("TextureLoader: decode threads still running after " + DISPOSE_TIMEOUT + " seconds, their images are leaked", true, true, true, 0);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(int i = 0; i < fences.length; i++) {
+			if(fences[i] != 0) GL33.glDeleteSync(fences[i]);
+			fences[i] = 0;
+		}
+		GL33.glDeleteBuffers(pbos);
+		for(int pbo : pbos) GLState.bufferDeleted(pbo);
+		for(PendingTexture p : uploading) STBImage.stbi_image_free(p.pixels);
+		uploading.clear();
+		PendingTexture d;
+		while((d = decoded.poll()) != null) {
+			if(d.pixels != null) STBImage.stbi_image_free(d.pixels);
+		}
+		mipmapQueue.clear();
+	}
+	
+	/** Texture waiting to be decoded or uploaded */
+	private static class PendingTexture {
+		
+		final Texture texture;
+		final boolean genMipmap;
+		
+		// Written by the decoding thread before being published through the decoded queue
+		ByteBuffer pixels;
+		String error;
+		int width;
+		int height;
+		int colorChannels;
+		
+		boolean allocated; // Whether the texture storage has been allocated, stays allocated while waiting for a free buffer
+		int nextRow; // First row which has not been uploaded yet
+		
+		PendingTexture(Texture texture, boolean genMipmap) {
+			this.texture = texture;
+			this.genMipmap = genMipmap;
+			nextRow = 0;
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package glutils.core;
+
+import org.joml.Vector2f;
+
+/** Sub-texture handle returned by TextureAtlas and TextureArray, holds where the packed image lies inside the shared texture */
+public class TextureRegion {
+	
+	/** Position of the region inside the atlas in pixels, 0,0 is the top left corner */
+	public final int x, y;
+	/** Size of the region in pixels */
+	public final int width, height;
+	/** Layer of the region inside a texture array, 0 for atlas regions */
+	public final int layer;
+	
+	/** Offset to add to tex coords after scaling them, maps the 0,0 tex coord to the region's corner */
+	public final Vector2f uvOffset;
+	/** Scale to multiply tex coords by, maps the 0-1 tex coord range to the region's size */
+	public final Vector2f uvScale;
+	
+	/** Internal constructor, regions are created by TextureAtlas and TextureArray */
+	TextureRegion(int x, int y, int width, int height, int layer, int textureWidth, int textureHeight) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.layer = layer;
+		uvOffset = new Vector2f((float)x / textureWidth, (float)y / textureHeight);
+		uvScale = new Vector2f((float)width / textureWidth, (float)height / textureHeight);
+	}
+	
+	/** Maps a tex coord pair inside the source image (0-1 range) into the region, writes the result into dest and returns it */
+	public Vector2f map(float u, float v, Vector2f dest) {
+		return dest.set(uvOffset.x + u * uvScale.x, uvOffset.y + v * uvScale.y);
+	}
+	
+	/** Maps an array of tex coord pairs inside the source image into the region, writes the results into dest, which can be the same array as texCoords */
+	public float[] map(float[] texCoords, float[] dest) {
+		for(int i = 0; i + 1 < texCoords.length; i += 2) {
+			dest[i] = uvOffset.x + texCoords[i] * uvScale.x;
+			dest[i+1] = uvOffset.y + texCoords[i+1] * uvScale.y;
+		}
+		return dest;
+	}
+
+}
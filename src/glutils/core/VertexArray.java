@@ -35,7 +35,7 @@ public class VertexArray {
 	 * @param size how many values are in one complete part of the data array (for example each 3 values in the data array define a vertex - size 3)
 	 */
 	public void addBuffer(String name, float[] data, int vertexAttribPointer, int size) {
-		GL33.glBindVertexArray(batchID);
+		GLState.bindVertexArray(batchID);
 		buffers.put(name, new Buffer(data, vertexAttribPointer, size));
 		if(vertexAttribPointer == vertexBufferNumber) {
 			vertexArraySize = data.length;
@@ -48,7 +48,7 @@ public class VertexArray {
 	 * @param data new data to insert into the buffer
 	 */
 	public void updateBuffer(String name, float[] data) {
-		GL33.glBindVertexArray(batchID);
+		GLState.bindVertexArray(batchID);
 		Buffer b = buffers.get(name);
 		b.updateBuffer(data);
 		if(b.vertexAttribPointer == vertexBufferNumber) {
@@ -66,13 +66,22 @@ public class VertexArray {
 	
 	/** Renders the triangles of the current VAO, shader has to already be used before */
 	public void render() {
-		GL33.glBindVertexArray(batchID);
+		GLState.bindVertexArray(batchID);
 		GL33.glDrawArrays(GL33.GL_TRIANGLES, 0, (vertexArraySize / 3)); // divided by three makes it render the correct amount of vertices
+		RenderStats.countDraw(vertexArraySize / 3, vertexArraySize / 9);
+	}
+	
+	/** Renders the triangles of the current VAO the given amount of times, shaders tell the instances apart by gl_InstanceID */
+	public void renderInstanced(int instances) {
+		GLState.bindVertexArray(batchID);
+		GL33.glDrawArraysInstanced(GL33.GL_TRIANGLES, 0, (vertexArraySize / 3), instances);
+		RenderStats.countDraw((long)instances * (vertexArraySize / 3), (long)instances * (vertexArraySize / 9));
 	}
 	
 	/** Disposes of the generated Vertex array object */
 	public void dispose() {
 		GL33.glDeleteVertexArrays(batchID);
+		GLState.vertexArrayDeleted(batchID);
 		for(String s : buffers.keySet()) {
 			Buffer b = buffers.get(s);
 			b.dispose();
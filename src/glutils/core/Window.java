@@ -24,7 +24,7 @@ public class Window {
 	public long window;
 	
 	/** Stores the time between last frame and current frame in seconds */
-	private float deltaTime;
+	private double deltaTime;
 	
 	// General private variables
 		// Variables taking care of key/mouse input
@@ -46,8 +46,12 @@ public class Window {
 	private boolean captureMouse; // Boolean with whether mouse is captured or not
 	private boolean firstMouse; // Boolean with whether mouse has been moved yet, used so that mouseOffset doesn't jump at the start of the engine
 		// Other variables
-	private float lastFrame; // Stores the time in last frame
+	private double lastFrame; // Stores the time in last frame
+	private int swapInterval; // Amount of screen refreshes to wait for before swapping buffers
 	private boolean resized; // Whether the window has been resized in the last frame
+	private boolean headless; // Whether the window is hidden and only renders into framebuffers
+	private Profiler profiler; // Records the CPU and GPU time of every frame
+	private JfrEvents.Frame frameEvent; // Flight recorder event of the current frame, null if frame events aren't recorded
 	
 	// Debug logs
 	/** Variable setting the frequency of debug logs printed to the console */
@@ -91,6 +95,27 @@ public class Window {
 	 *  @param glfwGlProfile the OpenGL profile of the GLFW window as defined by the GLFW constants
 	 */
 	public Window(int width, int height, boolean resizeable, String title, int debugLogs, int glfwGlProfile) {
+		this(width, height, resizeable, title, debugLogs, glfwGlProfile, false, false);
+	}
+	
+	/** 
+	 * Creates a hidden window for headless rendering into framebuffers, the window's own buffers are never shown or swapped. On Linux servers without a GPU this runs on
+	 * Mesa's software rasterizer (llvmpipe, set LIBGL_ALWAYS_SOFTWARE=1 to force it), a display server is still required, for example Xvfb
+	 * @param width width of the hidden window, can be small since rendering goes into framebuffers
+	 * @param height height of the hidden window
+	 * @param debugLogs whether to print GL_utils debug logs in the console or not, set by Window constants
+	 * @param useEgl whether to create the OpenGL context through EGL instead of GLX, needed by some headless Mesa setups
+	 */
+	public static Window createHeadless(int width, int height, int debugLogs, boolean useEgl) {
+		return new Window(width, height, false, "", debugLogs, GLFW.GLFW_OPENGL_CORE_PROFILE, true, useEgl);
+	}
+	/** Creates a hidden window for headless rendering into framebuffers with a GLX context and reduced debug logs */
+	public static Window createHeadless(int width, int height) {
+		return createHeadless(width, height, REDUCED_LOGS, false);
+	}
+	
+	/** Private constructor doing the window creation for the public constructors and static initialization methods */
+	private Window(int width, int height, boolean resizeable, String title, int debugLogs, int glfwGlProfile, boolean headless, boolean useEgl) {
 		
 		// General private variable initialization
 			// Input variables
@@ -116,6 +141,7 @@ public class Window {
 		deltaTime = 0;
 		lastFrame = 0;
 		resized = false;
+		this.headless = headless;
 		Window.debugLogs = debugLogs;
 		
 		// GLFW  initialization
@@ -129,18 +155,26 @@ public class Window {
 		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MINOR, 3);
 		GLFW.glfwWindowHint(GLFW.GLFW_OPENGL_PROFILE, glfwGlProfile);
 		GLFW.glfwWindowHint(GLFW.GLFW_RESIZABLE, (resizeable == true ? 1 : 0));
+		if(headless) {
+			GLFW.glfwWindowHint(GLFW.GLFW_VISIBLE, GLFW.GLFW_FALSE);
+			GLFW.glfwWindowHint(GLFW.GLFW_FOCUSED, GLFW.GLFW_FALSE);
+			if(useEgl) GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_CREATION_API, GLFW.GLFW_EGL_CONTEXT_API);
+		}
 		
 		// Window initialization
 		window = GLFW.glfwCreateWindow(width, height, title, 0, 0);
 		if(window == 0) {
 			Window.print("Error with window starting, exiting engine", true, true, true, 0);
 		}
+		GLFW.glfwDefaultWindowHints(); // Hints stay set for windows created later
+
 		
 		// OpenGL context setting and starting, OpenGL setup
 		GLFW.glfwMakeContextCurrent(window); // Context of GLFW window set up for OpenGL
 		GL.createCapabilities(); // Initializing OpenGL in GLFW window graphics context
 		GL33.glViewport(0, 0, width, height); // Setting OpenGL viewport size to window size
-		GLFW.glfwSwapInterval(1); // Setting how frequently buffers should be swapped
+		setSwapInterval(headless ? 0 : 1); // Setting how frequently buffers should be swapped, headless windows never wait for the display
+		profiler = new Profiler();
 		
 		// Printing out system info into the console for debug
 		try {
@@ -220,10 +254,24 @@ public class Window {
 	
 	// End of constructor, start of important window methods
 	
-	/** Updates GLFW window and inputs, necessary for the window to work */
+	/** Updates GLFW window and inputs, necessary for the window to work, the frame's CPU and GPU time is recorded by the window's profiler */
 	public void update() {
+		pollInput();
+		if(!headless) swapBuffers();
+	}
+	
+	/** Updates the delta time and inputs without swapping buffers, for loops that poll input and render at different times (see GameLoop) */
+	public void pollInput() {
+		profiler.frame();
+		RenderStats.frame();
+		if(frameEvent != null) {
+			RenderStats.Frame stats = RenderStats.get().getLastFrame();
+			frameEvent.commit(stats.getFrameCount(), stats.getDrawCalls(), stats.getPrimitives());
+		}
+		frameEvent = (JfrEvents.FRAME_TYPE.isEnabled() ? new JfrEvents.Frame() : null);
+		
 		// Delta time updating
-		float currentFrame = (float)GLFW.glfwGetTime();
+		double currentFrame = GLFW.glfwGetTime();
 		deltaTime = currentFrame - lastFrame;
 		lastFrame = currentFrame;
 		
@@ -237,11 +285,25 @@ public class Window {
 		isKeyReleased = false;
 		resized = false;
 		
-		// Polling events and swapping buffers, crucial for GLFW to work
+		// Polling events, crucial for GLFW to work
 		GLFW.glfwPollEvents();
+	}
+	
+	/** Swaps the window buffers, showing the rendered frame */
+	public void swapBuffers() {
 		GLFW.glfwSwapBuffers(window);
 	}
 	
+	/** Sets the amount of screen refreshes to wait for before swapping buffers, 0 turns vsync off, 1 (default) syncs to every refresh */
+	public void setSwapInterval(int swapInterval) {
+		GLFW.glfwSwapInterval(swapInterval);
+		this.swapInterval = swapInterval;
+	}
+	/** Returns the amount of screen refreshes waited for before swapping buffers */
+	public int getSwapInterval() {
+		return swapInterval;
+	}
+	
 	/** Requests that the window should close */
 	public void requestClose() {
 		GLFW.glfwSetWindowShouldClose(window, true);
@@ -255,6 +317,9 @@ public class Window {
 	
 	/** Terminates GLFW,  to be used only after all other window methods, otherwise causes problems with methods not executing properly, including the running() method */
 	public void terminate() {
+		// Null if the window failed to initialize
+		if(profiler != null) profiler.dispose();
+		profiler = null;
 		GLFW.glfwTerminate();
 		Window.print("Window: GLFW terminated, no GLFW using methods can be used from now on", true, 1);
 	}
@@ -380,6 +445,14 @@ public class Window {
 		GLFW.glfwGetWindowSize(window, x, y);
 		return new Vector2f(x[0], y[0]);
 	}
+	/** Returns the profiler recording every frame as the scope Profiler.FRAME, further scopes can be measured with it */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+	/** Returns whether the window is a hidden headless window */
+	public boolean isHeadless() {
+		return headless;
+	}
 	/** Returns whether the window was resized in the last frame */
 	public boolean resized() {
 		return resized;
@@ -387,6 +460,10 @@ public class Window {
 	
 	/** Returns the current deltaTime, used instead of making deltaTime public to avoid users manually changing deltaTime */
 	public float getDeltaTime() {
+		return (float)deltaTime;
+	}
+	/** Returns the current deltaTime in double precision */
+	public double getDeltaTimeExact() {
 		return deltaTime;
 	}
 	
@@ -0,0 +1,275 @@
+package glutils.utils;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import glutils.core.Window;
+
+/**
+ * Bulk math kernels for CPU side geometry work like baking static batches, skinning, computing bounds and transforming Mesh vertices, working on whole float arrays
+ * instead of one JOML vector at a time. Points and normals are either interleaved (x, y, z, x, y, z, ...) like Mesh.verts or split into separate x, y and z arrays (SoA).
+ * The kernels run on a backend picked once at startup. The scalar backend is made of plain counted loops with the matrix held in locals. When the jdk.incubator.vector
+ * module is present (--add-modules jdk.incubator.vector) and VectorBulkMath from the src-vector source root was built, it is loaded by reflection and used instead, see there
+ * for measured speedups. Another backend can be
+ * plugged in by naming its class in the glutils.bulkmath.backend system property or by calling setBackend(), the property value "scalar" forces the scalar backend
+ */
+public class BulkMath {
+	
+	/** System property naming the class of the backend to use, the class has to implement Backend and have a public no-argument constructor, "scalar" forces the scalar backend */
+	public static final String BACKEND_PROPERTY = "glutils.bulkmath.backend";
+	/** Class name of the Vector API backend, loaded by reflection so BulkMath works without the jdk.incubator.vector module */
+	private static final String VECTOR_BACKEND = "glutils.utils.VectorBulkMath";
+	
+	private static volatile Backend backend = loadBackend();
+	
+	private BulkMath() {}
+	
+	/** Interface of a set of bulk math kernels, all counts are in elements (points, normals or floats), not in array slots. Sources and destinations may be the same arrays */
+	public interface Backend {
+		/** Transforms count interleaved points by the affine part of the matrix (w = 1, no perspective divide) */
+		void transformPoints(Matrix4f m, float[] src, int srcOffset, float[] dest, int destOffset, int count);
+		/** Transforms count points stored in separate x, y and z arrays by the affine part of the matrix, reading and writing at the same offset */
+		void transformPoints(Matrix4f m, float[] x, float[] y, float[] z, float[] destX, float[] destY, float[] destZ, int offset, int count);
+		/** Transforms count interleaved normals by the matrix, normalizing the results if normalize is true */
+		void transformNormals(Matrix3f m, float[] src, int srcOffset, float[] dest, int destOffset, int count, boolean normalize);
+		/** Stores the bounding box of count interleaved points in min and max */
+		void bounds(float[] points, int offset, int count, Vector3f min, Vector3f max);
+		/** Stores the bounding box of count points stored in separate x, y and z arrays in min and max */
+		void bounds(float[] x, float[] y, float[] z, int offset, int count, Vector3f min, Vector3f max);
+		/** Converts count floats to IEEE half floats, rounding to nearest even */
+		void toHalf(float[] src, int srcOffset, short[] dest, int destOffset, int count);
+		/** Converts count IEEE half floats to floats */
+		void fromHalf(short[] src, int srcOffset, float[] dest, int destOffset, int count);
+	}
+	
+	/** Backend made of scalar loops, used when no other backend is selected */
+	public static class ScalarBackend implements Backend {
+		
+		@Override
+		public void transformPoints(Matrix4f m, float[] src, int srcOffset, float[] dest, int destOffset, int count) {
+			float m00 = m.m00(), m01 = m.m01(), m02 = m.m02();
+			float m10 = m.m10(), m11 = m.m11(), m12 = m.m12();
+			float m20 = m.m20(), m21 = m.m21(), m22 = m.m22();
+			float m30 = m.m30(), m31 = m.m31(), m32 = m.m32();
+			for(int i = 0; i < count; i++) {
+				int s = srcOffset + i * 3, d = destOffset + i * 3;
+				float x = src[s], y = src[s+1], z = src[s+2];
+				dest[d] = m00 * x + m10 * y + m20 * z + m30;
+				dest[d+1] = m01 * x + m11 * y + m21 * z + m31;
+				dest[d+2] = m02 * x + m12 * y + m22 * z + m32;
+			}
+		}
+		
+		@Override
+		public void transformPoints(Matrix4f m, float[] x, float[] y, float[] z, float[] destX, float[] destY, float[] destZ, int offset, int count) {
+			float m00 = m.m00(), m01 = m.m01(), m02 = m.m02();
+			float m10 = m.m10(), m11 = m.m11(), m12 = m.m12();
+			float m20 = m.m20(), m21 = m.m21(), m22 = m.m22();
+			float m30 = m.m30(), m31 = m.m31(), m32 = m.m32();
+			for(int i = offset, end = offset + count; i < end; i++) {
+				float px = x[i], py = y[i], pz = z[i];
+				destX[i] = m00 * px + m10 * py + m20 * pz + m30;
+				destY[i] = m01 * px + m11 * py + m21 * pz + m31;
+				destZ[i] = m02 * px + m12 * py + m22 * pz + m32;
+			}
+		}
+		
+		@Override
+		public void transformNormals(Matrix3f m, float[] src, int srcOffset, float[] dest, int destOffset, int count, boolean normalize) {
+			float m00 = m.m00(), m01 = m.m01(), m02 = m.m02();
+			float m10 = m.m10(), m11 = m.m11(), m12 = m.m12();
+			float m20 = m.m20(), m21 = m.m21(), m22 = m.m22();
+			for(int i = 0; i < count; i++) {
+				int s = srcOffset + i * 3, d = destOffset + i * 3;
+				float x = src[s], y = src[s+1], z = src[s+2];
+				float nx = m00 * x + m10 * y + m20 * z;
+				float ny = m01 * x + m11 * y + m21 * z;
+				float nz = m02 * x + m12 * y + m22 * z;
+				if(normalize) {
+					float len2 = nx * nx + ny * ny + nz * nz;
+					// Zero length normals stay zero instead of turning into NaNs
+					float inv = len2 > 0 ? (float)(1 / Math.sqrt(len2)) : 0;
+					nx *= inv; ny *= inv; nz *= inv;
+				}
+				dest[d] = nx;
+				dest[d+1] = ny;
+				dest[d+2] = nz;
+			}
+		}
+		
+		@Override
+		public void bounds(float[] points, int offset, int count, Vector3f min, Vector3f max) {
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+			for(int i = 0; i < count; i++) {
+				int p = offset + i * 3;
+				float x = points[p], y = points[p+1], z = points[p+2];
+				minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+				minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+			}
+			min.set(minX, minY, minZ);
+			max.set(maxX, maxY, maxZ);
+		}
+		
+		@Override
+		public void bounds(float[] x, float[] y, float[] z, int offset, int count, Vector3f min, Vector3f max) {
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+			for(int i = offset, end = offset + count; i < end; i++) {
+				minX = Math.min(minX, x[i]); maxX = Math.max(maxX, x[i]);
+				minY = Math.min(minY, y[i]); maxY = Math.max(maxY, y[i]);
+				minZ = Math.min(minZ, z[i]); maxZ = Math.max(maxZ, z[i]);
+			}
+			min.set(minX, minY, minZ);
+			max.set(maxX, maxY, maxZ);
+		}
+		
+		@Override
+		public void toHalf(float[] src, int srcOffset, short[] dest, int destOffset, int count) {
+			for(int i = 0; i < count; i++)
+				dest[destOffset + i] = BulkMath.toHalf(src[srcOffset + i]);
+		}
+		
+		@Override
+		public void fromHalf(short[] src, int srcOffset, float[] dest, int destOffset, int count) {
+			for(int i = 0; i < count; i++)
+				dest[destOffset + i] = BulkMath.fromHalf(src[srcOffset + i]);
+		}
+		
+	}
+	
+	/** Creates the backend named by the system property, or the Vector API backend if its module is present and it was built, falling back to the scalar backend if neither can be created */
+	private static Backend loadBackend() {
+		String name = System.getProperty(BACKEND_PROPERTY);
+		if(name == null || name.isEmpty()) {
+			if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+				Window.print("BulkMath: Module jdk.incubator.vector not present, using the scalar backend", true, 2);
+				return new ScalarBackend();
+			}
+			try {
+				Class.forName(VECTOR_BACKEND, false, BulkMath.class.getClassLoader());
+			} catch(ClassNotFoundException e) {
+				Window.print("BulkMath: " + VECTOR_BACKEND + " not built (src-vector), using the scalar backend", true, 2);
+				return new ScalarBackend();
+			}
+			name = VECTOR_BACKEND;
+		}
+		if(!name.equals("scalar")) {
+			try {
+				Backend b = (Backend)Class.forName(name).getDeclaredConstructor().newInstance();
+				Window.print("BulkMath: Using backend " + name, true, 2);
+				return b;
+			} catch(ReflectiveOperationException | ClassCastException | LinkageError e) {
+				Window.print("BulkMath: Couldn't create backend " + name + " (" + e + "), using the scalar backend", true, true, true, 0);
+			}
+		}
+		return new ScalarBackend();
+	}
+	
+	/** Sets the backend all kernels run on */
+	public static void setBackend(Backend backend) {
+		BulkMath.backend = backend;
+	}
+	/** Returns the backend all kernels run on */
+	public static Backend getBackend() {
+		return backend;
+	}
+	
+	/** Transforms count interleaved points by the affine part of the matrix (w = 1, no perspective divide) */
+	public static void transformPoints(Matrix4f m, float[] src, int srcOffset, float[] dest, int destOffset, int count) {
+		backend.transformPoints(m, src, srcOffset, dest, destOffset, count);
+	}
+	/** Transforms all interleaved points of src into dest, which has to be at least as long as src */
+	public static void transformPoints(Matrix4f m, float[] src, float[] dest) {
+		backend.transformPoints(m, src, 0, dest, 0, src.length / 3);
+	}
+	/** Transforms count points stored in separate x, y and z arrays by the affine part of the matrix, reading and writing at the same offset */
+	public static void transformPoints(Matrix4f m, float[] x, float[] y, float[] z, float[] destX, float[] destY, float[] destZ, int offset, int count) {
+		backend.transformPoints(m, x, y, z, destX, destY, destZ, offset, count);
+	}
+	/** Transforms count interleaved normals by the matrix, which for a model transform is its normal matrix (Matrix4f.normal()), normalizing the results if normalize is true */
+	public static void transformNormals(Matrix3f m, float[] src, int srcOffset, float[] dest, int destOffset, int count, boolean normalize) {
+		backend.transformNormals(m, src, srcOffset, dest, destOffset, count, normalize);
+	}
+	/** Transforms and normalizes all interleaved normals of src into dest, which has to be at least as long as src */
+	public static void transformNormals(Matrix3f m, float[] src, float[] dest) {
+		backend.transformNormals(m, src, 0, dest, 0, src.length / 3, true);
+	}
+	/** Stores the bounding box of count interleaved points in min and max, with no points min is positive and max negative infinity */
+	public static void bounds(float[] points, int offset, int count, Vector3f min, Vector3f max) {
+		backend.bounds(points, offset, count, min, max);
+	}
+	/** Stores the bounding box of count points stored in separate x, y and z arrays in min and max */
+	public static void bounds(float[] x, float[] y, float[] z, int offset, int count, Vector3f min, Vector3f max) {
+		backend.bounds(x, y, z, offset, count, min, max);
+	}
+	/** Converts count floats to IEEE half floats, rounding to nearest even */
+	public static void toHalf(float[] src, int srcOffset, short[] dest, int destOffset, int count) {
+		backend.toHalf(src, srcOffset, dest, destOffset, count);
+	}
+	/** Converts all floats of src to a new array of IEEE half floats */
+	public static short[] toHalf(float[] src) {
+		short[] dest = new short[src.length];
+		backend.toHalf(src, 0, dest, 0, src.length);
+		return dest;
+	}
+	/** Converts count IEEE half floats to floats */
+	public static void fromHalf(short[] src, int srcOffset, float[] dest, int destOffset, int count) {
+		backend.fromHalf(src, srcOffset, dest, destOffset, count);
+	}
+	/** Converts all IEEE half floats of src to a new array of floats */
+	public static float[] fromHalf(short[] src) {
+		float[] dest = new float[src.length];
+		backend.fromHalf(src, 0, dest, 0, src.length);
+		return dest;
+	}
+	
+	/** Converts a float to an IEEE half float, rounding to nearest even, values too large for a half become infinity and NaNs stay NaNs */
+	public static short toHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = (bits >>> 23) & 0xff;
+		int mant = bits & 0x7fffff;
+		if(exp == 0xff) // Infinity stays infinity, NaNs keep their top payload bits and are made quiet so they don't turn into infinity
+			return (short)(sign | 0x7c00 | (mant != 0 ? 0x200 | (mant >>> 13) : 0));
+		int e = exp - 127 + 15; // Exponent rebiased for a half
+		if(e >= 0x1f)
+			return (short)(sign | 0x7c00);
+		if(e <= 0) {
+			// Subnormal half, everything below half of the smallest subnormal rounds to zero
+			if(e < -10)
+				return (short)sign;
+			int m = mant | 0x800000;
+			int shift = 14 - e;
+			int h = m >>> shift;
+			int rem = m & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if(rem > halfway || (rem == halfway && (h & 1) != 0))
+				h++; // May carry into the smallest normal half, which is the right result
+			return (short)(sign | h);
+		}
+		int h = (e << 10) | (mant >>> 13);
+		int rem = mant & 0x1fff;
+		if(rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0))
+			h++; // May carry into the exponent, up to infinity, which is the right result
+		return (short)(sign | h);
+	}
+	
+	/** Converts an IEEE half float to a float, which is always exact */
+	public static float fromHalf(short half) {
+		int bits = half & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exp = (bits >>> 10) & 0x1f;
+		int mant = bits & 0x3ff;
+		if(exp == 0) {
+			float f = mant * 0x1p-24f;
+			return sign != 0 ? -f : f;
+		}
+		if(exp == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+		return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mant << 13));
+	}
+
+}
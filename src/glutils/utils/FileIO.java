@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+import glutils.core.JfrEvents;
 import glutils.core.Window;
 
 /** Class with static methods for saving and loading files */
@@ -19,7 +20,9 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static String loadStringInternal(Class<?> c, String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
+		long bytes = 0; // Counted separately, the length of the String is in chars
 		StringBuilder data = new StringBuilder();
 		BufferedInputStream in = new BufferedInputStream(c.getResourceAsStream(path));
 		try {
@@ -27,9 +30,11 @@ public class FileIO {
 				r = in.read();
 				if(r != -1) {
 					data.append((char)r);
+					bytes++;
 				}
 			}
 			in.close();
+			event.commit(path, bytes);
 			Window.print("FileManager: String from internal file " + path + " loaded successfully", true, 2);
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -44,6 +49,7 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static byte[] loadByteArrayInternal(Class<?> c, String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
 		ArrayList<Byte> temp = new ArrayList<>();
 		BufferedInputStream in = new BufferedInputStream(c.getResourceAsStream(path));
@@ -59,6 +65,7 @@ public class FileIO {
 			for(int i = 0; i < temp.size(); i++) {
 				data[i] = temp.get(i);
 			}
+			event.commit(path, data.length);
 			Window.print("FileManager: byte[] from internal file " + path + " loaded successfully", true, 2);
 			return data;
 		} catch(Exception e) {
@@ -74,6 +81,7 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static ByteBuffer loadByteBufferInternal(Class<?> c, String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
 		ArrayList<Byte> temp = new ArrayList<>();
 		BufferedInputStream in = new BufferedInputStream(c.getResourceAsStream(path));
@@ -93,6 +101,7 @@ public class FileIO {
 			ByteBuffer data = ByteBuffer.allocateDirect(temp.size());
 			data.put(temp2);
 			data.flip();
+			event.commit(path, data.capacity());
 			Window.print("FileManager: ByteBuffer from internal file " + path + " loaded successfully", true, 2);
 			return data;
 		} catch(Exception e) {
@@ -108,7 +117,9 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static String loadStringExternal(String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
+		long bytes = 0; // Counted separately, the length of the String is in chars
 		StringBuilder data = new StringBuilder();
 		try {
 			BufferedInputStream in = new BufferedInputStream(new FileInputStream(new File(path)));
@@ -116,9 +127,11 @@ public class FileIO {
 				r = in.read();
 				if(r != -1) {
 					data.append((char)r);
+					bytes++;
 				}
 			}
 			in.close();
+			event.commit(path, bytes);
 			Window.print("FileManager: String from external file " + path + " loaded successfully", true, 2);
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -133,6 +146,7 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static byte[] loadByteArrayExternal(String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
 		ArrayList<Byte> temp = new ArrayList<>();
 		try {
@@ -148,6 +162,7 @@ public class FileIO {
 			for(int i = 0; i < temp.size(); i++) {
 				data[i] = temp.get(i);
 			}
+			event.commit(path, data.length);
 			Window.print("FileManager: byte[] from external file " + path + " loaded successfully", true, 2);
 			return data;
 		} catch(Exception e) {
@@ -162,6 +177,7 @@ public class FileIO {
 	 * @param path the path to the desired file relative to the class c 
 	 */
 	public static ByteBuffer loadByteBufferExternal(String path) {
+		JfrEvents.FileLoad event = new JfrEvents.FileLoad();
 		int r = 0;
 		ArrayList<Byte> temp = new ArrayList<>();
 		try {
@@ -180,6 +196,7 @@ public class FileIO {
 			ByteBuffer data = ByteBuffer.allocateDirect(temp.size());
 			data.put(temp2);
 			data.flip();
+			event.commit(path, data.capacity());
 			Window.print("FileManager: ByteBuffer from external file " + path + " loaded successfully", true, 2);
 			return data;
 		} catch(Exception e) {
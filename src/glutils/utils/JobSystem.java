@@ -0,0 +1,199 @@
+package glutils.utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import glutils.core.Window;
+
+/**
+ * Runs graphs of jobs on a work stealing thread pool. Jobs are created with create() or parallelFor(), connected with Job.dependsOn() and started with start(),
+ * a job only runs once all the jobs it depends on have finished. Jobs must not call OpenGL, their results are meant to be replayed by the GL thread
+ */
+public class JobSystem {
+	
+	private ForkJoinPool pool; // Work stealing pool running the jobs
+	
+	/** Creates a job system with the given amount of worker threads */
+	public JobSystem(int threads) {
+		pool = new ForkJoinPool(Math.max(1, threads), p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("glutils-job-" + t.getPoolIndex());
+			t.setDaemon(true);
+			return t;
+		}, null, false);
+	}
+	/** Creates a job system with one worker thread per available processor */
+	public JobSystem() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/** Creates a job running the given work, the job has to be started with start() */
+	public Job create(Runnable work) {
+		return new Job(this, work);
+	}
+	
+	/**
+	 * Creates a job which runs body over the range 0 to count split into batches, batches run in parallel and the job finishes once all batches have finished
+	 * @param count size of the range
+	 * @param batchSize amount of indices handled by one call of body
+	 * @param body called with the batch range from (inclusive) to (exclusive)
+	 */
+	public Job parallelFor(int count, int batchSize, RangeBody body) {
+		int batch = Math.max(1, batchSize);
+		return create(() -> {
+			if(count <= batch) {
+				if(count > 0) body.run(0, count);
+			} else {
+				pool.invoke(new RangeTask(body, 0, count, batch));
+			}
+		});
+	}
+	
+	/** Starts all given jobs, jobs with unfinished dependencies are queued and start as soon as their dependencies finish */
+	public void start(Job ... jobs) {
+		for(Job j : jobs) j.start();
+	}
+	
+	/** Starts the job and waits for it to finish */
+	public void run(Job job) {
+		job.start();
+		job.await();
+	}
+	
+	/** Returns the amount of worker threads */
+	public int getThreadCount() {
+		return pool.getParallelism();
+	}
+	
+	/** Stops the worker threads, jobs which haven't started yet are dropped */
+	public void dispose() {
+		pool.shutdownNow();
+	}
+	
+	/** Part of a job graph, runs once all the jobs it depends on have finished */
+	public static class Job {
+		
+		private final JobSystem system;
+		private final Runnable work;
+		private final ArrayList<Job> successors; // Jobs depending on this one
+		private final AtomicInteger pending; // Unfinished dependencies plus one while the job hasn't been started
+		private volatile boolean done;
+		
+		private Job(JobSystem system, Runnable work) {
+			this.system = system;
+			this.work = work;
+			successors = new ArrayList<>();
+			pending = new AtomicInteger(1);
+			done = false;
+		}
+		
+		/** Makes this job wait for the given jobs to finish before running, has to be called before this job is started, returns this job */
+		public Job dependsOn(Job ... dependencies) {
+			for(Job d : dependencies) {
+				synchronized(d) {
+					if(d.done) continue;
+					pending.incrementAndGet();
+					d.successors.add(this);
+				}
+			}
+			return this;
+		}
+		
+		/** Starts the job, it runs once all its dependencies have finished */
+		private void start() {
+			release();
+		}
+		
+		/** Removes one unfinished dependency, schedules the job once none are left */
+		private void release() {
+			if(pending.decrementAndGet() == 0) {
+				system.pool.execute(this::execute);
+			}
+		}
+		
+		/** Runs the work, then marks the job as done and releases the jobs depending on it */
+		private void execute() {
+			try {
+				work.run();
+			} catch(RuntimeException e) {
+				// Tasks run through execute() keep their exceptions to themselves, so failures are reported here
+				e.printStackTrace();
+				Window.print("JobSystem: job failed on thread " + Thread.currentThread().getName(), true, true, true, 0);
+			} finally {
+				ArrayList<Job> ready;
+				synchronized(this) {
+					done = true;
+					ready = new ArrayList<>(successors);
+					successors.clear();
+					notifyAll();
+				}
+				for(Job s : ready) s.release();
+			}
+		}
+		
+		/** Waits for the job to finish, a waiting worker thread gets replaced by a spare thread for the time it is blocked so that the pool keeps running jobs */
+		public void await() {
+			if(done) return;
+			try {
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					@Override
+					public boolean block() throws InterruptedException {
+						synchronized(Job.this) {
+							while(!done) Job.this.wait();
+						}
+						return true;
+					}
+					@Override
+					public boolean isReleasable() {
+						return done;
+					}
+				});
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/** Returns whether the job has finished */
+		public boolean isDone() {
+			return done;
+		}
+	}
+	
+	/** Body of a parallel for job, called with a batch of the range */
+	public interface RangeBody {
+		/** Handles the indices from (inclusive) to (exclusive) */
+		void run(int from, int to);
+	}
+	
+	/** Splits a range in half until it fits into a batch, the halves are stolen by idle workers */
+	private static class RangeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final RangeBody body;
+		private final int from, to, batch;
+		
+		RangeTask(RangeBody body, int from, int to, int batch) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.batch = batch;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to - from <= batch) {
+				body.run(from, to);
+				return;
+			}
+			// Splitting on a batch boundary so that batch indices stay aligned
+			int mid = from + ((to - from) / batch / 2) * batch;
+			if(mid == from) mid = from + batch;
+			invokeAll(new RangeTask(body, from, mid, batch), new RangeTask(body, mid, to, batch));
+		}
+	}
+
+}
@@ -1,5 +1,11 @@
 package glutils.utils;
 
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import glutils.core.TextureRegion;
+
 /** Class that holds vertices, tex coords */
 public class Mesh {
 	
@@ -10,16 +16,28 @@ public class Mesh {
 	/** Vertex normals array */
 	public float[] normals;
 	
+	// Bounding volumes of the vertices in model space
+	private Vector3f boundsMin; // Minimum corner of the bounding box
+	private Vector3f boundsMax; // Maximum corner of the bounding box
+	private Vector3f boundsCenter; // Center of the bounding sphere, which is the center of the bounding box
+	private float boundsRadius; // Radius of the bounding sphere
+	private volatile MeshBVH bvh; // Triangle tree of the vertices, built on first use
+	
 	/** Constructor, creates class with verts, texCoords and normals */
 	public Mesh(float[] verts, float[] texCoords, float[] normals) {
 		this.verts = verts;
 		this.texCoords = texCoords;
 		this.normals = normals;
+		boundsMin = new Vector3f();
+		boundsMax = new Vector3f();
+		boundsCenter = new Vector3f();
+		updateBounds();
 	}
 	
 	/** Sets the vertex array of the model */
 	public void setVerts(float[] verts) {
 		this.verts = verts;
+		updateBounds();
 	}
 	/** Sets the tex coords array of the model */
 	public void setTexCoords(float[] texCoords) {
@@ -30,6 +48,76 @@ public class Mesh {
 		this.normals = normals;
 	}
 	
+	/** Remaps the tex coords of the model into the given atlas or array region, the original tex coords have to be in the 0-1 range */
+	public void remapTexCoords(TextureRegion region) {
+		texCoords = region.map(texCoords, new float[texCoords.length]);
+	}
+	
+	/** Transforms the vertices and normals of the model in place, e.g. to bake it into a static batch, and updates the bounds */
+	public void transform(Matrix4f transform) {
+		if(verts != null)
+			BulkMath.transformPoints(transform, verts, verts);
+		if(normals != null)
+			BulkMath.transformNormals(transform.normal(new Matrix3f()), normals, normals);
+		updateBounds();
+	}
+	
+	/** Recomputes the bounding box and sphere from the vertices, called automatically by the constructor and setVerts(), has to be called after changing verts directly, also drops the cached BVH */
+	public void updateBounds() {
+		bvh = null;
+		if(verts == null || verts.length < 3) {
+			boundsMin.zero();
+			boundsMax.zero();
+			boundsCenter.zero();
+			boundsRadius = 0;
+			return;
+		}
+		BulkMath.bounds(verts, 0, verts.length / 3, boundsMin, boundsMax);
+		boundsMin.add(boundsMax, boundsCenter).mul(0.5f);
+		// The farthest vertex from the box center gives a tighter sphere than the box corners
+		float r2 = 0;
+		for(int i = 0; i + 2 < verts.length; i += 3) {
+			float dx = verts[i] - boundsCenter.x, dy = verts[i+1] - boundsCenter.y, dz = verts[i+2] - boundsCenter.z;
+			r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+		}
+		boundsRadius = (float)Math.sqrt(r2);
+	}
+	
+	/** Stores the minimum corner of the model space bounding box in dest and returns it */
+	public Vector3f getBoundsMin(Vector3f dest) {
+		return dest.set(boundsMin);
+	}
+	/** Stores the maximum corner of the model space bounding box in dest and returns it */
+	public Vector3f getBoundsMax(Vector3f dest) {
+		return dest.set(boundsMax);
+	}
+	/** Stores the center of the model space bounding sphere in dest and returns it */
+	public Vector3f getBoundsCenter(Vector3f dest) {
+		return dest.set(boundsCenter);
+	}
+	/** Returns the radius of the model space bounding sphere */
+	public float getBoundsRadius() {
+		return boundsRadius;
+	}
+	
+	/** Returns the triangle BVH of the vertices for ray casts and collision queries, built on the calling thread on first use and cached until the vertices change */
+	public MeshBVH getBVH() {
+		return getBVH(null);
+	}
+	/** Returns the triangle BVH of the vertices, built in parallel on the job system on first use and cached until the vertices change */
+	public MeshBVH getBVH(JobSystem jobs) {
+		MeshBVH tree = bvh;
+		if(tree != null && tree.isBuiltFrom(verts)) return tree;
+		synchronized(this) {
+			tree = bvh;
+			if(tree == null || !tree.isBuiltFrom(verts)) {
+				tree = new MeshBVH(verts, jobs);
+				bvh = tree;
+			}
+			return tree;
+		}
+	}
+	
 	/** Returns the vertex array of the model */
 	public float[] getVerts() {
 		return verts;
@@ -0,0 +1,709 @@
+package glutils.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joml.Vector3f;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh, answering ray, segment, closest point, sphere and box queries in logarithmic time, used for picking and CPU side collision.
+ * Every three vertices form a triangle, triangle i is made of vertices 3i to 3i + 2. The tree is built top-down with the binned surface area heuristic, when built on a JobSystem
+ * the binning of large nodes and the subtrees below them run in parallel. Meshes build and cache their tree through Mesh.getBVH().
+ * Nodes are stored in arrays per component and queries use reusable memory per thread, so queries don't allocate and are thread safe. The tree doesn't follow changes of the vertices
+ */
+public class MeshBVH {
+	
+	/** Amount of bins per axis used by the surface area heuristic */
+	private static final int BINS = 16;
+	/** Most triangles a leaf holds */
+	private static final int MAX_LEAF_SIZE = 8;
+	/** Cost of visiting a node relative to testing a triangle, used by the surface area heuristic */
+	private static final float TRAVERSAL_COST = 1;
+	/** Nodes with more triangles than this are binned in parallel, smaller ones are built as whole subtrees by one job each */
+	private static final int PARALLEL_SIZE = 1 << 14;
+	/** Amount of triangles handled by one batch of a parallel loop */
+	private static final int BATCH_SIZE = 4096;
+	
+	private final float[] verts; // Vertices the tree was built from
+	private final int triangleCount;
+	private int[] order; // Triangle indices in leaf order
+	// Node bounds
+	private float[] minX, minY, minZ, maxX, maxY, maxZ;
+	// Leaves hold the triangles order[first] to order[first + count - 1], internal nodes have a count of 0 and their children at first and first + 1
+	private int[] first, count;
+	private int nodeCount;
+	
+	// Only used while building
+	private float[] triMinX, triMinY, triMinZ, triMaxX, triMaxY, triMaxZ; // Triangle bounds, kept in the order of order so binning reads them sequentially
+	private AtomicInteger allocated; // Amount of nodes allocated, children are allocated in pairs from any thread
+	
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+	
+	/**
+	 * Builds the tree over the triangles of the vertices
+	 * @param verts vertices, 9 floats per triangle, the array is kept and must not be changed while the tree is used
+	 * @param jobs job system to build on in parallel, null to build on the calling thread
+	 */
+	public MeshBVH(float[] verts, JobSystem jobs) {
+		this.verts = verts;
+		triangleCount = (verts == null ? 0 : verts.length / 9);
+		int capacity = Math.max(1, 2 * triangleCount - 1);
+		minX = new float[capacity]; minY = new float[capacity]; minZ = new float[capacity];
+		maxX = new float[capacity]; maxY = new float[capacity]; maxZ = new float[capacity];
+		first = new int[capacity];
+		count = new int[capacity];
+		order = new int[triangleCount];
+		if(triangleCount > 0) build(jobs);
+	}
+	/** Builds the tree over the triangles of the vertices on the calling thread */
+	public MeshBVH(float[] verts) {
+		this(verts, null);
+	}
+	
+	/** Builds the tree, splitting large nodes first and then building the subtrees below them in parallel */
+	private void build(JobSystem jobs) {
+		int n = triangleCount;
+		triMinX = new float[n]; triMinY = new float[n]; triMinZ = new float[n];
+		triMaxX = new float[n]; triMaxY = new float[n]; triMaxZ = new float[n];
+		JobSystem.RangeBody triangleBounds = (from, to) -> {
+			for(int t = from; t < to; t++) {
+				int p = t * 9;
+				triMinX[t] = Math.min(verts[p], Math.min(verts[p+3], verts[p+6])); triMaxX[t] = Math.max(verts[p], Math.max(verts[p+3], verts[p+6]));
+				triMinY[t] = Math.min(verts[p+1], Math.min(verts[p+4], verts[p+7])); triMaxY[t] = Math.max(verts[p+1], Math.max(verts[p+4], verts[p+7]));
+				triMinZ[t] = Math.min(verts[p+2], Math.min(verts[p+5], verts[p+8])); triMaxZ[t] = Math.max(verts[p+2], Math.max(verts[p+5], verts[p+8]));
+				order[t] = t;
+			}
+		};
+		if(jobs != null && n > BATCH_SIZE) jobs.run(jobs.parallelFor(n, BATCH_SIZE, triangleBounds));
+		else triangleBounds.run(0, n);
+		
+		Vector3f min = new Vector3f(), max = new Vector3f();
+		BulkMath.bounds(verts, 0, n * 3, min, max);
+		setBounds(0, min.x, min.y, min.z, max.x, max.y, max.z);
+		first[0] = 0;
+		count[0] = n;
+		allocated = new AtomicInteger(1);
+		
+		// Large nodes are split one by one with parallel binning, the subtrees below them are left to the jobs
+		Bins bins = new Bins();
+		int[] subtrees = new int[16];
+		int subtreeCount = 0;
+		int[] stack = bins.stack;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(jobs != null && count[node] > PARALLEL_SIZE && split(node, bins, jobs)) {
+				if(top + 2 > stack.length) stack = bins.stack = Arrays.copyOf(stack, stack.length * 2);
+				stack[top++] = first[node];
+				stack[top++] = first[node] + 1;
+			} else {
+				if(subtreeCount == subtrees.length) subtrees = Arrays.copyOf(subtrees, subtreeCount * 2);
+				subtrees[subtreeCount++] = node;
+			}
+		}
+		if(jobs == null || subtreeCount == 1) {
+			for(int i = 0; i < subtreeCount; i++) buildSubtree(subtrees[i], bins);
+		} else {
+			int[] roots = subtrees;
+			jobs.run(jobs.parallelFor(subtreeCount, 1, (from, to) -> {
+				Bins b = new Bins();
+				for(int i = from; i < to; i++) buildSubtree(roots[i], b);
+			}));
+		}
+		
+		nodeCount = allocated.get();
+		// Sized for the worst case of one triangle per leaf, leaves usually hold several
+		minX = Arrays.copyOf(minX, nodeCount); minY = Arrays.copyOf(minY, nodeCount); minZ = Arrays.copyOf(minZ, nodeCount);
+		maxX = Arrays.copyOf(maxX, nodeCount); maxY = Arrays.copyOf(maxY, nodeCount); maxZ = Arrays.copyOf(maxZ, nodeCount);
+		first = Arrays.copyOf(first, nodeCount);
+		count = Arrays.copyOf(count, nodeCount);
+		triMinX = triMinY = triMinZ = triMaxX = triMaxY = triMaxZ = null;
+		allocated = null;
+	}
+	
+	/** Splits the node and all its descendants on the calling thread */
+	private void buildSubtree(int root, Bins bins) {
+		int[] stack = bins.stack;
+		int top = 0;
+		stack[top++] = root;
+		while(top > 0) {
+			int node = stack[--top];
+			if(!split(node, bins, null)) continue;
+			if(top + 2 > stack.length) stack = bins.stack = Arrays.copyOf(stack, stack.length * 2);
+			stack[top++] = first[node];
+			stack[top++] = first[node] + 1;
+		}
+	}
+	
+	/** Splits a leaf into two children at the split with the lowest surface area cost, returns false if the node stays a leaf */
+	private boolean split(int node, Bins bins, JobSystem jobs) {
+		int f = first[node], c = count[node];
+		if(c <= 1) return false;
+		bin(bins, f, c, jobs);
+		
+		// Sweeping over the bins of every axis from the left storing the cost of the left side of every split, then from the right adding the cost of the right side
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1, bestSplit = 0;
+		for(int a = 0; a < 3; a++) {
+			if(bins.scale[a] == 0) continue;
+			bins.clearSum();
+			for(int s = 1; s < bins.binCount; s++) {
+				bins.sum(a, s - 1);
+				bins.leftCount[s] = bins.sumCount;
+				bins.leftCost[s] = bins.sumArea() * bins.sumCount;
+			}
+			bins.clearSum();
+			for(int s = bins.binCount - 1; s > 0; s--) {
+				bins.sum(a, s);
+				if(bins.leftCount[s] == 0 || bins.sumCount == 0) continue;
+				float cost = bins.leftCost[s] + bins.sumArea() * bins.sumCount;
+				if(cost < bestCost) {
+					bestCost = cost;
+					bestAxis = a;
+					bestSplit = s;
+				}
+			}
+		}
+		
+		int mid;
+		int k = -1;
+		if(bestAxis < 0) {
+			// All centroids are in one point, so only a split in the middle of the range keeps leaves small
+			if(c <= MAX_LEAF_SIZE) return false;
+			mid = f + c / 2;
+			k = allocated.getAndAdd(2);
+			computeBounds(k, f, mid);
+			computeBounds(k + 1, mid, f + c);
+		} else {
+			float splitCost = TRAVERSAL_COST + bestCost / Math.max(area(node), Float.MIN_NORMAL);
+			if(c <= MAX_LEAF_SIZE && splitCost >= c) return false;
+			float[] lo = (bestAxis == 0 ? triMinX : bestAxis == 1 ? triMinY : triMinZ), hi = (bestAxis == 0 ? triMaxX : bestAxis == 1 ? triMaxY : triMaxZ);
+			int i = f, j = f + c - 1;
+			while(i <= j) {
+				if(bins.index(bestAxis, (lo[i] + hi[i]) * 0.5f) < bestSplit) i++;
+				else swap(i, j--);
+			}
+			mid = i;
+			k = allocated.getAndAdd(2);
+			if(mid == f || mid == f + c) {
+				mid = f + c / 2;
+				computeBounds(k, f, mid);
+				computeBounds(k + 1, mid, f + c);
+			} else {
+				bins.clearSum();
+				for(int s = 0; s < bestSplit; s++) bins.sum(bestAxis, s);
+				setBounds(k, bins.sumMinX, bins.sumMinY, bins.sumMinZ, bins.sumMaxX, bins.sumMaxY, bins.sumMaxZ);
+				bins.clearSum();
+				for(int s = bestSplit; s < bins.binCount; s++) bins.sum(bestAxis, s);
+				setBounds(k + 1, bins.sumMinX, bins.sumMinY, bins.sumMinZ, bins.sumMaxX, bins.sumMaxY, bins.sumMaxZ);
+			}
+		}
+		first[k] = f;
+		count[k] = mid - f;
+		first[k + 1] = mid;
+		count[k + 1] = f + c - mid;
+		first[node] = k;
+		count[node] = 0;
+		return true;
+	}
+	
+	/** Fills the bins with the triangles of a range, large ranges are binned in parallel into bins per batch which are then merged */
+	private void bin(Bins bins, int f, int c, JobSystem jobs) {
+		boolean parallel = (jobs != null && c > PARALLEL_SIZE);
+		bins.clearCenters();
+		if(parallel) {
+			jobs.run(jobs.parallelFor(c, BATCH_SIZE, (from, to) -> {
+				Bins b = new Bins();
+				b.clearCenters();
+				b.addCenters(f + from, f + to);
+				synchronized(bins) {
+					bins.mergeCenters(b);
+				}
+			}));
+		} else {
+			bins.addCenters(f, f + c);
+		}
+		bins.setScale(c);
+		bins.clearBins();
+		if(parallel) {
+			jobs.run(jobs.parallelFor(c, BATCH_SIZE, (from, to) -> {
+				Bins b = new Bins();
+				b.copyScale(bins);
+				b.clearBins();
+				b.addBins(f + from, f + to);
+				synchronized(bins) {
+					bins.mergeBins(b);
+				}
+			}));
+		} else {
+			bins.addBins(f, f + c);
+		}
+	}
+	
+	/** Swaps two triangles of the build order */
+	private void swap(int i, int j) {
+		int t = order[i]; order[i] = order[j]; order[j] = t;
+		float f;
+		f = triMinX[i]; triMinX[i] = triMinX[j]; triMinX[j] = f;
+		f = triMinY[i]; triMinY[i] = triMinY[j]; triMinY[j] = f;
+		f = triMinZ[i]; triMinZ[i] = triMinZ[j]; triMinZ[j] = f;
+		f = triMaxX[i]; triMaxX[i] = triMaxX[j]; triMaxX[j] = f;
+		f = triMaxY[i]; triMaxY[i] = triMaxY[j]; triMaxY[j] = f;
+		f = triMaxZ[i]; triMaxZ[i] = triMaxZ[j]; triMaxZ[j] = f;
+	}
+	
+	/** Sets the bounds of a node to the bounds of the triangles order[from] to order[to - 1] */
+	private void computeBounds(int node, int from, int to) {
+		float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY, z0 = Float.POSITIVE_INFINITY;
+		float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+		for(int i = from; i < to; i++) {
+			x0 = Math.min(x0, triMinX[i]); x1 = Math.max(x1, triMaxX[i]);
+			y0 = Math.min(y0, triMinY[i]); y1 = Math.max(y1, triMaxY[i]);
+			z0 = Math.min(z0, triMinZ[i]); z1 = Math.max(z1, triMaxZ[i]);
+		}
+		setBounds(node, x0, y0, z0, x1, y1, z1);
+	}
+	
+	private void setBounds(int node, float x0, float y0, float z0, float x1, float y1, float z1) {
+		minX[node] = x0; minY[node] = y0; minZ[node] = z0;
+		maxX[node] = x1; maxY[node] = y1; maxZ[node] = z1;
+	}
+	
+	/** Returns half the surface area of the node bounds */
+	private float area(int node) {
+		float dx = maxX[node] - minX[node], dy = maxY[node] - minY[node], dz = maxZ[node] - minZ[node];
+		return dx * dy + dy * dz + dz * dx;
+	}
+	
+	/**
+	 * Finds a triangle hit by a ray
+	 * @param maxDistance maximum distance of a hit, in multiples of the direction's length
+	 * @param anyHit whether to stop at the first hit found instead of searching for the closest one, enough for visibility and collision checks
+	 * @param hit receives the hit, unchanged if nothing was hit
+	 * @return whether a triangle was hit
+	 */
+	public boolean raycast(float originX, float originY, float originZ, float dirX, float dirY, float dirZ, float maxDistance, boolean anyHit, Hit hit) {
+		if(triangleCount == 0) return false;
+		Scratch s = scratch.get();
+		int[] stack = s.stack;
+		float ix = 1 / dirX, iy = 1 / dirY, iz = 1 / dirZ;
+		float closest = maxDistance;
+		boolean found = false;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int n = stack[--top];
+			if(slab(n, originX, originY, originZ, ix, iy, iz, closest) < 0) continue;
+			if(count[n] > 0) {
+				for(int i = first[n], end = first[n] + count[n]; i < end; i++) {
+					float d = intersect(order[i], originX, originY, originZ, dirX, dirY, dirZ, closest, s);
+					if(d < 0) continue;
+					closest = d;
+					found = true;
+					hit.distance = d;
+					hit.triangle = order[i];
+					hit.u = s.u;
+					hit.v = s.v;
+					if(anyHit) return true;
+				}
+			} else {
+				// Pushing the farther child first so that the nearer one is visited first and shrinks the search distance
+				int l = first[n], r = l + 1;
+				float tl = slab(l, originX, originY, originZ, ix, iy, iz, closest), tr = slab(r, originX, originY, originZ, ix, iy, iz, closest);
+				if(top + 2 > stack.length) stack = s.stack = Arrays.copyOf(stack, stack.length * 2);
+				if(tl >= 0 && tr >= 0) {
+					stack[top++] = (tl < tr ? r : l);
+					stack[top++] = (tl < tr ? l : r);
+				} else if(tl >= 0) {
+					stack[top++] = l;
+				} else if(tr >= 0) {
+					stack[top++] = r;
+				}
+			}
+		}
+		return found;
+	}
+	/** Finds the closest triangle hit by a ray, stores it in hit and returns whether a triangle was hit, distances are in multiples of the direction's length */
+	public boolean raycast(Vector3f origin, Vector3f direction, float maxDistance, Hit hit) {
+		return raycast(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, maxDistance, false, hit);
+	}
+	/** Returns whether a ray hits any triangle within maxDistance, in multiples of the direction's length */
+	public boolean intersects(Vector3f origin, Vector3f direction, float maxDistance) {
+		return raycast(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, maxDistance, true, scratch.get().hit);
+	}
+	/** Finds the triangle hit closest to from by the segment from from to to, stores it in hit and returns whether a triangle was hit, the hit distance is 0 at from and 1 at to */
+	public boolean segmentcast(Vector3f from, Vector3f to, Hit hit) {
+		return raycast(from.x, from.y, from.z, to.x - from.x, to.y - from.y, to.z - from.z, 1, false, hit);
+	}
+	/** Returns whether the segment from from to to hits any triangle */
+	public boolean intersectsSegment(Vector3f from, Vector3f to) {
+		return raycast(from.x, from.y, from.z, to.x - from.x, to.y - from.y, to.z - from.z, 1, true, scratch.get().hit);
+	}
+	
+	/**
+	 * Finds the point on the triangles closest to a point, e.g. to push a sphere out of the mesh
+	 * @param maxDistance maximum distance of the closest point, smaller values skip more of the tree
+	 * @param hit receives the triangle and the barycentric coordinates of the closest point and its distance, unchanged if no triangle is within maxDistance
+	 * @return whether a triangle is within maxDistance
+	 */
+	public boolean closestPoint(float x, float y, float z, float maxDistance, Hit hit) {
+		if(triangleCount == 0) return false;
+		Scratch s = scratch.get();
+		int[] stack = s.stack;
+		float closest2 = maxDistance * maxDistance;
+		boolean found = false;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int n = stack[--top];
+			if(boxDistance2(n, x, y, z) > closest2) continue;
+			if(count[n] > 0) {
+				for(int i = first[n], end = first[n] + count[n]; i < end; i++) {
+					float d2 = closestOnTriangle(order[i], x, y, z, s);
+					if(d2 > closest2) continue;
+					closest2 = d2;
+					found = true;
+					hit.triangle = order[i];
+					hit.u = s.u;
+					hit.v = s.v;
+				}
+			} else {
+				// Visiting the nearer child first shrinks the search distance sooner
+				int l = first[n], r = l + 1;
+				if(top + 2 > stack.length) stack = s.stack = Arrays.copyOf(stack, stack.length * 2);
+				boolean leftNearer = boxDistance2(l, x, y, z) < boxDistance2(r, x, y, z);
+				stack[top++] = (leftNearer ? r : l);
+				stack[top++] = (leftNearer ? l : r);
+			}
+		}
+		if(found) hit.distance = (float)Math.sqrt(closest2);
+		return found;
+	}
+	/** Finds the point on the triangles closest to a point, see closestPoint(float, float, float, float, Hit) */
+	public boolean closestPoint(Vector3f point, float maxDistance, Hit hit) {
+		return closestPoint(point.x, point.y, point.z, maxDistance, hit);
+	}
+	
+	/**
+	 * Finds the triangles touching a sphere
+	 * @param dest receives the triangle indices, triangles which don't fit are counted but not stored
+	 * @return the amount of triangles touching the sphere, which can be more than dest holds
+	 */
+	public int querySphere(float x, float y, float z, float radius, int[] dest) {
+		if(triangleCount == 0) return 0;
+		Scratch s = scratch.get();
+		int[] stack = s.stack;
+		float r2 = radius * radius;
+		int hits = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int n = stack[--top];
+			if(boxDistance2(n, x, y, z) > r2) continue;
+			if(count[n] > 0) {
+				for(int i = first[n], end = first[n] + count[n]; i < end; i++) {
+					if(closestOnTriangle(order[i], x, y, z, s) > r2) continue;
+					if(hits < dest.length) dest[hits] = order[i];
+					hits++;
+				}
+			} else {
+				if(top + 2 > stack.length) stack = s.stack = Arrays.copyOf(stack, stack.length * 2);
+				stack[top++] = first[n];
+				stack[top++] = first[n] + 1;
+			}
+		}
+		return hits;
+	}
+	/** Finds the triangles touching a sphere, see querySphere(float, float, float, float, int[]) */
+	public int querySphere(Vector3f center, float radius, int[] dest) {
+		return querySphere(center.x, center.y, center.z, radius, dest);
+	}
+	
+	/**
+	 * Finds the triangles whose bounds overlap a box, a conservative test meant as the broad phase of a collision check
+	 * @param dest receives the triangle indices, triangles which don't fit are counted but not stored
+	 * @return the amount of triangles found, which can be more than dest holds
+	 */
+	public int queryAabb(float boxMinX, float boxMinY, float boxMinZ, float boxMaxX, float boxMaxY, float boxMaxZ, int[] dest) {
+		if(triangleCount == 0) return 0;
+		Scratch s = scratch.get();
+		int[] stack = s.stack;
+		int hits = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int n = stack[--top];
+			if(minX[n] > boxMaxX || maxX[n] < boxMinX || minY[n] > boxMaxY || maxY[n] < boxMinY || minZ[n] > boxMaxZ || maxZ[n] < boxMinZ) continue;
+			if(count[n] > 0) {
+				for(int i = first[n], end = first[n] + count[n]; i < end; i++) {
+					int p = order[i] * 9;
+					if(Math.min(verts[p], Math.min(verts[p+3], verts[p+6])) > boxMaxX || Math.max(verts[p], Math.max(verts[p+3], verts[p+6])) < boxMinX) continue;
+					if(Math.min(verts[p+1], Math.min(verts[p+4], verts[p+7])) > boxMaxY || Math.max(verts[p+1], Math.max(verts[p+4], verts[p+7])) < boxMinY) continue;
+					if(Math.min(verts[p+2], Math.min(verts[p+5], verts[p+8])) > boxMaxZ || Math.max(verts[p+2], Math.max(verts[p+5], verts[p+8])) < boxMinZ) continue;
+					if(hits < dest.length) dest[hits] = order[i];
+					hits++;
+				}
+			} else {
+				if(top + 2 > stack.length) stack = s.stack = Arrays.copyOf(stack, stack.length * 2);
+				stack[top++] = first[n];
+				stack[top++] = first[n] + 1;
+			}
+		}
+		return hits;
+	}
+	
+	/** Stores the point of a hit in dest and returns dest */
+	public Vector3f getPoint(Hit hit, Vector3f dest) {
+		int p = hit.triangle * 9;
+		float w = 1 - hit.u - hit.v;
+		return dest.set(w * verts[p] + hit.u * verts[p+3] + hit.v * verts[p+6], w * verts[p+1] + hit.u * verts[p+4] + hit.v * verts[p+7], w * verts[p+2] + hit.u * verts[p+5] + hit.v * verts[p+8]);
+	}
+	/** Stores the normalized face normal of a triangle, facing the side its vertices are counter-clockwise on, in dest and returns dest */
+	public Vector3f getNormal(int triangle, Vector3f dest) {
+		int p = triangle * 9;
+		float e1x = verts[p+3] - verts[p], e1y = verts[p+4] - verts[p+1], e1z = verts[p+5] - verts[p+2];
+		float e2x = verts[p+6] - verts[p], e2y = verts[p+7] - verts[p+1], e2z = verts[p+8] - verts[p+2];
+		dest.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x);
+		float length = dest.length();
+		return (length > 0 ? dest.div(length) : dest);
+	}
+	
+	/** Returns the amount of triangles */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+	/** Returns the amount of nodes */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	/** Returns whether the tree was built from the given vertex array */
+	public boolean isBuiltFrom(float[] verts) {
+		return this.verts == verts;
+	}
+	
+	/** Returns the distance at which a ray enters the node bounds, 0 if it starts inside, -1 if it misses them within maxDistance */
+	private float slab(int n, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance) {
+		float near = 0, far = maxDistance;
+		// A zero direction component has an infinite inverse, which times an origin lying on a bound gives NaN, so such axes only check that the origin is within the slab
+		if(Float.isInfinite(ix)) {
+			if(ox < minX[n] || ox > maxX[n]) return -1;
+		} else {
+			float t1 = (minX[n] - ox) * ix, t2 = (maxX[n] - ox) * ix;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		if(Float.isInfinite(iy)) {
+			if(oy < minY[n] || oy > maxY[n]) return -1;
+		} else {
+			float t1 = (minY[n] - oy) * iy, t2 = (maxY[n] - oy) * iy;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		if(Float.isInfinite(iz)) {
+			if(oz < minZ[n] || oz > maxZ[n]) return -1;
+		} else {
+			float t1 = (minZ[n] - oz) * iz, t2 = (maxZ[n] - oz) * iz;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		return (near <= far ? near : -1);
+	}
+	
+	/** Returns the squared distance from a point to the node bounds, 0 if the point is inside */
+	private float boxDistance2(int n, float x, float y, float z) {
+		float dx = Math.max(0, Math.max(minX[n] - x, x - maxX[n]));
+		float dy = Math.max(0, Math.max(minY[n] - y, y - maxY[n]));
+		float dz = Math.max(0, Math.max(minZ[n] - z, z - maxZ[n]));
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	/** Returns the distance at which a ray hits both sides of a triangle (Moeller-Trumbore), -1 if it misses within maxDistance, stores the barycentric coordinates in the scratch */
+	private float intersect(int t, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, Scratch s) {
+		int p = t * 9;
+		float ax = verts[p], ay = verts[p+1], az = verts[p+2];
+		float e1x = verts[p+3] - ax, e1y = verts[p+4] - ay, e1z = verts[p+5] - az;
+		float e2x = verts[p+6] - ax, e2y = verts[p+7] - ay, e2z = verts[p+8] - az;
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if(det == 0) return -1;
+		float inv = 1 / det;
+		float tx = ox - ax, ty = oy - ay, tz = oz - az;
+		// Negated comparisons also reject NaNs of degenerate triangles
+		float u = (tx * px + ty * py + tz * pz) * inv;
+		if(!(u >= 0 && u <= 1)) return -1;
+		float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inv;
+		if(!(v >= 0 && u + v <= 1)) return -1;
+		float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if(!(d >= 0 && d <= maxDistance)) return -1;
+		s.u = u;
+		s.v = v;
+		return d;
+	}
+	
+	/** Returns the squared distance from a point to the closest point of a triangle, stores the barycentric coordinates of the closest point in the scratch */
+	private float closestOnTriangle(int t, float x, float y, float z, Scratch s) {
+		int p = t * 9;
+		float ax = verts[p], ay = verts[p+1], az = verts[p+2];
+		float abx = verts[p+3] - ax, aby = verts[p+4] - ay, abz = verts[p+5] - az;
+		float acx = verts[p+6] - ax, acy = verts[p+7] - ay, acz = verts[p+8] - az;
+		float apx = x - ax, apy = y - ay, apz = z - az;
+		// Finding the region of the triangle the point projects into, a vertex, an edge or the face
+		float u, v;
+		float d1 = abx * apx + aby * apy + abz * apz, d2 = acx * apx + acy * apy + acz * apz;
+		float d3 = d1 - (abx * abx + aby * aby + abz * abz), d4 = d2 - (abx * acx + aby * acy + abz * acz);
+		float d5 = d1 - (abx * acx + aby * acy + abz * acz), d6 = d2 - (acx * acx + acy * acy + acz * acz);
+		float vc = d1 * d4 - d3 * d2, vb = d5 * d2 - d1 * d6, va = d3 * d6 - d5 * d4;
+		if(d1 <= 0 && d2 <= 0) {
+			u = 0; v = 0;
+		} else if(d3 >= 0 && d4 <= d3) {
+			u = 1; v = 0;
+		} else if(d6 >= 0 && d5 <= d6) {
+			u = 0; v = 1;
+		} else if(vc <= 0 && d1 >= 0 && d3 <= 0) {
+			u = d1 / (d1 - d3); v = 0;
+		} else if(vb <= 0 && d2 >= 0 && d6 <= 0) {
+			u = 0; v = d2 / (d2 - d6);
+		} else if(va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+			v = (d4 - d3) / ((d4 - d3) + (d5 - d6)); u = 1 - v;
+		} else {
+			float sum = va + vb + vc;
+			u = (sum != 0 ? vb / sum : 0);
+			v = (sum != 0 ? vc / sum : 0);
+		}
+		float dx = ax + abx * u + acx * v - x, dy = ay + aby * u + acy * v - y, dz = az + abz * u + acz * v - z;
+		s.u = u;
+		s.v = v;
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	/** Result of a query, reusable between queries */
+	public static class Hit {
+		/** Distance of the hit, along the ray in multiples of the direction's length or from the query point of closestPoint() */
+		public float distance;
+		/** Index of the triangle, made of vertices 3 * triangle to 3 * triangle + 2 */
+		public int triangle = -1;
+		/** Barycentric coordinates of the point, which is vertex 0 + u * (vertex 1 - vertex 0) + v * (vertex 2 - vertex 0) */
+		public float u, v;
+	}
+	
+	/** Query memory of one thread */
+	private static class Scratch {
+		int[] stack = new int[64];
+		float u, v;
+		Hit hit = new Hit();
+	}
+	
+	/** Bins of the surface area heuristic for all three axes, with the memory of one building thread */
+	private class Bins {
+		int[] stack = new int[64];
+		// Bounds of the triangle centers of the binned range, bins split them into equal parts
+		float[] centerMin = new float[3], centerMax = new float[3], scale = new float[3];
+		int binCount; // Amount of bins used per axis, small ranges use fewer bins since clearing and sweeping them would cost more than binning the triangles
+		// Triangle count and triangle bounds of every bin, BINS per axis
+		int[] counts = new int[3 * BINS];
+		float[] binMinX = new float[3 * BINS], binMinY = new float[3 * BINS], binMinZ = new float[3 * BINS];
+		float[] binMaxX = new float[3 * BINS], binMaxY = new float[3 * BINS], binMaxZ = new float[3 * BINS];
+		// Triangle count and cost of the left side of every split of an axis
+		int[] leftCount = new int[BINS];
+		float[] leftCost = new float[BINS];
+		// Running sum of bins
+		float sumMinX, sumMinY, sumMinZ, sumMaxX, sumMaxY, sumMaxZ;
+		int sumCount;
+		
+		void clearCenters() {
+			Arrays.fill(centerMin, Float.POSITIVE_INFINITY);
+			Arrays.fill(centerMax, Float.NEGATIVE_INFINITY);
+		}
+		void addCenters(int from, int to) {
+			for(int i = from; i < to; i++) {
+				float x = (triMinX[i] + triMaxX[i]) * 0.5f, y = (triMinY[i] + triMaxY[i]) * 0.5f, z = (triMinZ[i] + triMaxZ[i]) * 0.5f;
+				centerMin[0] = Math.min(centerMin[0], x); centerMax[0] = Math.max(centerMax[0], x);
+				centerMin[1] = Math.min(centerMin[1], y); centerMax[1] = Math.max(centerMax[1], y);
+				centerMin[2] = Math.min(centerMin[2], z); centerMax[2] = Math.max(centerMax[2], z);
+			}
+		}
+		void mergeCenters(Bins b) {
+			for(int a = 0; a < 3; a++) {
+				centerMin[a] = Math.min(centerMin[a], b.centerMin[a]);
+				centerMax[a] = Math.max(centerMax[a], b.centerMax[a]);
+			}
+		}
+		/** Sets the amount of bins for a range of triangles and the scale mapping centroids to bins, 0 for axes all centroids share one coordinate on */
+		void setScale(int triangles) {
+			binCount = Math.min(BINS, triangles);
+			for(int a = 0; a < 3; a++) {
+				float extent = centerMax[a] - centerMin[a];
+				scale[a] = (extent > 0 ? binCount / extent : 0);
+			}
+		}
+		void copyScale(Bins b) {
+			System.arraycopy(b.centerMin, 0, centerMin, 0, 3);
+			System.arraycopy(b.scale, 0, scale, 0, 3);
+			binCount = b.binCount;
+		}
+		/** Returns the bin of a centroid coordinate on an axis */
+		int index(int axis, float center) {
+			int b = (int)((center - centerMin[axis]) * scale[axis]);
+			return (b < 0 ? 0 : b < binCount ? b : binCount - 1);
+		}
+		
+		void clearBins() {
+			for(int a = 0; a < 3; a++) {
+				for(int b = a * BINS, end = b + binCount; b < end; b++) {
+					counts[b] = 0;
+					binMinX[b] = binMinY[b] = binMinZ[b] = Float.POSITIVE_INFINITY;
+					binMaxX[b] = binMaxY[b] = binMaxZ[b] = Float.NEGATIVE_INFINITY;
+				}
+			}
+		}
+		void addBins(int from, int to) {
+			// Axes without extent all land in their first bin, which is harmless since split() skips them
+			for(int i = from; i < to; i++) {
+				float x0 = triMinX[i], y0 = triMinY[i], z0 = triMinZ[i], x1 = triMaxX[i], y1 = triMaxY[i], z1 = triMaxZ[i];
+				add(index(0, (x0 + x1) * 0.5f), x0, y0, z0, x1, y1, z1);
+				add(BINS + index(1, (y0 + y1) * 0.5f), x0, y0, z0, x1, y1, z1);
+				add(2 * BINS + index(2, (z0 + z1) * 0.5f), x0, y0, z0, x1, y1, z1);
+			}
+		}
+		/** Adds a triangle to a bin, comparisons instead of Math.min() and Math.max() since the bounds are never NaN */
+		private void add(int b, float x0, float y0, float z0, float x1, float y1, float z1) {
+			counts[b]++;
+			if(x0 < binMinX[b]) binMinX[b] = x0;
+			if(y0 < binMinY[b]) binMinY[b] = y0;
+			if(z0 < binMinZ[b]) binMinZ[b] = z0;
+			if(x1 > binMaxX[b]) binMaxX[b] = x1;
+			if(y1 > binMaxY[b]) binMaxY[b] = y1;
+			if(z1 > binMaxZ[b]) binMaxZ[b] = z1;
+		}
+		void mergeBins(Bins b) {
+			for(int i = 0; i < counts.length; i++) {
+				counts[i] += b.counts[i];
+				binMinX[i] = Math.min(binMinX[i], b.binMinX[i]); binMinY[i] = Math.min(binMinY[i], b.binMinY[i]); binMinZ[i] = Math.min(binMinZ[i], b.binMinZ[i]);
+				binMaxX[i] = Math.max(binMaxX[i], b.binMaxX[i]); binMaxY[i] = Math.max(binMaxY[i], b.binMaxY[i]); binMaxZ[i] = Math.max(binMaxZ[i], b.binMaxZ[i]);
+			}
+		}
+		
+		void clearSum() {
+			sumMinX = sumMinY = sumMinZ = Float.POSITIVE_INFINITY;
+			sumMaxX = sumMaxY = sumMaxZ = Float.NEGATIVE_INFINITY;
+			sumCount = 0;
+		}
+		/** Adds a bin of an axis to the running sum */
+		void sum(int axis, int bin) {
+			int b = axis * BINS + bin;
+			if(counts[b] == 0) return;
+			sumMinX = Math.min(sumMinX, binMinX[b]); sumMinY = Math.min(sumMinY, binMinY[b]); sumMinZ = Math.min(sumMinZ, binMinZ[b]);
+			sumMaxX = Math.max(sumMaxX, binMaxX[b]); sumMaxY = Math.max(sumMaxY, binMaxY[b]); sumMaxZ = Math.max(sumMaxZ, binMaxZ[b]);
+			sumCount += counts[b];
+		}
+		/** Returns half the surface area of the running sum, 0 while it's empty */
+		float sumArea() {
+			if(sumCount == 0) return 0;
+			float dx = sumMaxX - sumMinX, dy = sumMaxY - sumMinY, dz = sumMaxZ - sumMinZ;
+			return dx * dy + dy * dz + dz * dx;
+		}
+	}
+
+}
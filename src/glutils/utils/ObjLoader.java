@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 import org.joml.Vector2f;
 
+import glutils.core.JfrEvents;
 import glutils.core.Window;
 
 /** Class with a static method that loads vertices and tex coords from an obj file */
@@ -19,6 +20,7 @@ public class ObjLoader {
 	}
 	/** Static method that loads model data from string obj file data */
 	public static Mesh loadObjFromMemory(String fileData) {
+		JfrEvents.ObjParse event = new JfrEvents.ObjParse();
 		
 		// Processing input data
 		String[] lines = fileData.split("\n");
@@ -75,6 +77,7 @@ public class ObjLoader {
 			nI += 3;			
 		}
 		
+		event.commit(indicesAL.size(), indicesAL.size() / 3);
 		Window.print("Model loader: model loaded", true, 2);
 		return new Mesh(verts, texCoords, normals);
 	}
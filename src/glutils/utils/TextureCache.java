@@ -0,0 +1,228 @@
+package glutils.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+import org.lwjgl.stb.STBImage;
+
+import glutils.core.Texture;
+import glutils.core.Window;
+
+/**
+ * Class with static methods that preprocess images into a raw texture cache file holding the full mip chain, so that later loads skip image decoding and mipmap generation.
+ * The mip chain is generated on the CPU in parallel using a gamma correct box filter, cache files are memory mapped when loading and every level is uploaded directly.
+ *
+ * Cache file layout (little endian): int magic "GLTC", int version, int width, int height, int level count, then for every level a long data offset and an int width, height,
+ * followed by the RGBA data of all levels
+ */
+public class TextureCache {
+	
+	/** Magic number at the start of every cache file, "GLTC" */
+	public static final int MAGIC = 0x43544C47;
+	/** Version of the cache file layout */
+	public static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 20; // Size of the file header in bytes
+	private static final int LEVEL_ENTRY_SIZE = 16; // Size of one level entry in bytes
+	
+	// Lookup tables for the sRGB transfer function
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+	private static final byte[] LINEAR_TO_SRGB = new byte[4096];
+	static {
+		for(int i = 0; i < 256; i++) {
+			float c = i / 255f;
+			SRGB_TO_LINEAR[i] = (float)(c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+		}
+		for(int i = 0; i < 4096; i++) {
+			double l = i / 4095.0;
+			double c = (l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055);
+			LINEAR_TO_SRGB[i] = (byte)Math.round(c * 255);
+		}
+	}
+	
+	/**
+	 * Loads a texture from the cache file, preprocessing the image file into the cache file first if the cache file is missing or older than the image file
+	 * @param imagePath path to the external image file
+	 * @param cachePath path to the cache file, next to the jar
+	 */
+	public static Texture loadExternal(String imagePath, String cachePath, int wrapS, int wrapT, int minFilter, int magFilter) {
+		File image = new File(imagePath), cache = new File(cachePath);
+		boolean fresh = !cache.exists() || cache.lastModified() < image.lastModified();
+		if(fresh && !preprocess(imagePath, cachePath)) return null;
+		Texture t = load(cachePath, wrapS, wrapT, minFilter, magFilter);
+		// A damaged or truncated cache file is rewritten from the image file once
+		if(t == null && !fresh && preprocess(imagePath, cachePath)) t = load(cachePath, wrapS, wrapT, minFilter, magFilter);
+		return t;
+	}
+	/** Decodes the external image file into the cache file, returns whether the cache file was written successfully */
+	private static boolean preprocess(String imagePath, String cachePath) {
+		ByteBuffer data = FileIO.loadByteBufferExternal(imagePath);
+		return data != null && preprocess(data, cachePath);
+	}
+	/** Loads a texture from the cache file, preprocessing the image file first if necessary, with repeat wrap, linear mipmap linear min filter and linear mag filter */
+	public static Texture loadExternal(String imagePath, String cachePath) {
+		return loadExternal(imagePath, cachePath, Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR);
+	}
+	
+	/**
+	 * Loads a texture from a cache file written by preprocess(), returns null if the file couldn't be read or is damaged
+	 * @param cachePath path to the cache file, next to the jar
+	 */
+	public static Texture load(String cachePath, int wrapS, int wrapT, int minFilter, int magFilter) {
+		MappedByteBuffer file = map(cachePath);
+		if(file == null) return null;
+		ByteBuffer[] levels = getLevels(file);
+		if(levels == null) return null;
+		int width = file.getInt(8), height = file.getInt(12);
+		Texture t = Texture.fromMipLevels(levels, width, height, wrapS, wrapT, minFilter, magFilter);
+		Window.print("TextureCache: texture loaded from cache file " + cachePath, true, 2);
+		return t;
+	}
+	
+	/** Memory maps a cache file and checks its header, returns null if the file couldn't be read or isn't a cache file */
+	public static MappedByteBuffer map(String cachePath) {
+		try(RandomAccessFile f = new RandomAccessFile(cachePath, "r"); FileChannel channel = f.getChannel()) {
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			file.order(ByteOrder.LITTLE_ENDIAN);
+			if(file.limit() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+				Window.print("TextureCache: " + cachePath + " is not a valid texture cache file", true, true, true, 0);
+				return null;
+			}
+			return file;
+		} catch(IOException e) {
+			e.printStackTrace();
+			Window.print("\nTextureCache: error reading file " + cachePath, true, true, true, 0);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the RGBA data of every level of a mapped cache file, the returned buffers share memory with the mapped file.
+	 * Returns null if the level table doesn't match the texture size or points outside of the file, e.g. for a truncated file
+	 */
+	public static ByteBuffer[] getLevels(ByteBuffer file) {
+		int width = file.getInt(8), height = file.getInt(12), count = file.getInt(16);
+		if(width <= 0 || height <= 0 || count <= 0 || count > 32 || HEADER_SIZE + (long)count * LEVEL_ENTRY_SIZE > file.limit()) {
+			Window.print("TextureCache: damaged cache file header", true, true, true, 0);
+			return null;
+		}
+		ByteBuffer[] levels = new ByteBuffer[count];
+		for(int i = 0; i < levels.length; i++) {
+			int entry = HEADER_SIZE + i * LEVEL_ENTRY_SIZE;
+			long offset = file.getLong(entry);
+			int levelWidth = file.getInt(entry + 8), levelHeight = file.getInt(entry + 12);
+			long size = (long)levelWidth * levelHeight * 4;
+			if(levelWidth != Math.max(1, width >> i) || levelHeight != Math.max(1, height >> i) || offset < 0 || offset + size > file.limit()) {
+				Window.print("TextureCache: cache file level " + i + " is damaged or truncated", true, true, true, 0);
+				return null;
+			}
+			ByteBuffer level = file.duplicate();
+			// Within the file, which as a mapped buffer is never larger than an int
+			level.position((int)offset);
+			level.limit((int)(offset + size));
+			levels[i] = level.slice();
+		}
+		return levels;
+	}
+	
+	/**
+	 * Decodes image file data, generates its full mip chain and writes it into a cache file, returns whether the cache file was written successfully
+	 * @param textureData the image file data
+	 * @param cachePath path to save the cache file to, relative to the jar
+	 */
+	public static boolean preprocess(ByteBuffer textureData, String cachePath) {
+		int[] w = new int[1], h = new int[1], c = new int[1];
+		ByteBuffer image = STBImage.stbi_load_from_memory(textureData, w, h, c, STBImage.STBI_rgb_alpha);
+		if(image == null) {
+			Window.print("TextureCache: texture loading error\n  " + STBImage.stbi_failure_reason(), true, true, true, 0);
+			return false;
+		}
+		byte[] pixels = new byte[w[0] * h[0] * 4];
+		image.get(pixels);
+		STBImage.stbi_image_free(image);
+		
+		byte[][] levels = genMipChain(pixels, w[0], h[0]);
+		return write(levels, w[0], h[0], cachePath);
+	}
+	
+	/** Writes an already generated mip chain into a cache file, returns whether the file was written successfully */
+	public static boolean write(byte[][] levels, int width, int height, String cachePath) {
+		// Header and level table
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + levels.length * LEVEL_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(levels.length);
+		long offset = header.capacity();
+		int w = width, h = height;
+		for(byte[] level : levels) {
+			header.putLong(offset).putInt(w).putInt(h);
+			offset += level.length;
+			w = Math.max(1, w / 2);
+			h = Math.max(1, h / 2);
+		}
+		header.flip();
+		
+		// Writing the header followed by all levels
+		File file = new File(cachePath.contains("/") ? cachePath : "./" + cachePath);
+		file.getParentFile().mkdirs();
+		try(RandomAccessFile f = new RandomAccessFile(file, "rw"); FileChannel channel = f.getChannel()) {
+			channel.truncate(0);
+			while(header.hasRemaining()) channel.write(header);
+			for(byte[] level : levels) {
+				ByteBuffer data = ByteBuffer.wrap(level);
+				while(data.hasRemaining()) channel.write(data);
+			}
+			Window.print("TextureCache: " + levels.length + " mip levels written to " + cachePath, true, 2);
+			return true;
+		} catch(IOException e) {
+			e.printStackTrace();
+			Window.print("\nTextureCache: error writing file " + cachePath, true, true, true, 0);
+		}
+		return false;
+	}
+	
+	/**
+	 * Generates the full mip chain of RGBA pixel data down to 1x1, each level is a gamma correct 2x2 box filter of the previous one, rows of a level are filtered in parallel
+	 * @param pixels RGBA pixel data of the full size level, which is returned as the first level
+	 */
+	public static byte[][] genMipChain(byte[] pixels, int width, int height) {
+		int count = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+		byte[][] levels = new byte[count][];
+		levels[0] = pixels;
+		int w = width, h = height;
+		for(int i = 1; i < count; i++) {
+			levels[i] = downsample(levels[i - 1], w, h);
+			w = Math.max(1, w / 2);
+			h = Math.max(1, h / 2);
+		}
+		return levels;
+	}
+	
+	/** Returns the next mip level of RGBA pixel data, color channels are averaged in linear space, alpha is averaged directly */
+	private static byte[] downsample(byte[] src, int srcWidth, int srcHeight) {
+		int w = Math.max(1, srcWidth / 2), h = Math.max(1, srcHeight / 2);
+		byte[] dst = new byte[w * h * 4];
+		IntStream.range(0, h).parallel().forEach(y -> {
+			// Odd sizes and 1 pixel wide levels clamp to the last row/column of the source
+			int y0 = Math.min(y * 2, srcHeight - 1), y1 = Math.min(y * 2 + 1, srcHeight - 1);
+			for(int x = 0; x < w; x++) {
+				int x0 = Math.min(x * 2, srcWidth - 1), x1 = Math.min(x * 2 + 1, srcWidth - 1);
+				int p00 = (y0 * srcWidth + x0) * 4, p01 = (y0 * srcWidth + x1) * 4;
+				int p10 = (y1 * srcWidth + x0) * 4, p11 = (y1 * srcWidth + x1) * 4;
+				int d = (y * w + x) * 4;
+				for(int c = 0; c < 3; c++) {
+					float l = SRGB_TO_LINEAR[src[p00 + c] & 0xFF] + SRGB_TO_LINEAR[src[p01 + c] & 0xFF] + SRGB_TO_LINEAR[src[p10 + c] & 0xFF] + SRGB_TO_LINEAR[src[p11 + c] & 0xFF];
+					dst[d + c] = LINEAR_TO_SRGB[Math.min(4095, (int)(l * 0.25f * 4095 + 0.5f))];
+				}
+				int a = (src[p00 + 3] & 0xFF) + (src[p01 + 3] & 0xFF) + (src[p10 + 3] & 0xFF) + (src[p11 + 3] & 0xFF);
+				dst[d + 3] = (byte)((a + 2) / 4);
+			}
+		});
+		return dst;
+	}
+
+}
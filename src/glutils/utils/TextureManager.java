@@ -0,0 +1,224 @@
+package glutils.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import glutils.core.Texture;
+import glutils.core.Window;
+
+/**
+ * Caches textures so that the same image is only loaded once, no matter how many materials use it.
+ * Textures are deduplicated by file path and by a hash of their content, and reference counted. Textures which are no longer referenced stay cached
+ * until the estimated video memory of all textures exceeds the budget, then the least recently used ones are deleted in one batch on the next flush()
+ */
+public class TextureManager {
+	
+	private HashMap<String, Entry> entries; // All cached textures by content key
+	private HashMap<String, String> pathKeys; // Content key of every loaded file path
+	private IdentityHashMap<Texture, Entry> textureEntries; // Cached textures by texture object, used by release()
+	private LinkedHashMap<String, Entry> unreferenced; // Cached textures without references, ordered from least to most recently released
+	private ArrayList<Texture> pendingDeletes; // Evicted textures waiting to be deleted by flush()
+	
+	private long budget; // Maximum estimated video memory of all cached textures in bytes
+	private long memoryUsage; // Estimated video memory of all cached textures in bytes
+	
+	/** Creates a texture manager with the given video memory budget in bytes */
+	public TextureManager(long budget) {
+		entries = new HashMap<>();
+		pathKeys = new HashMap<>();
+		textureEntries = new IdentityHashMap<>();
+		unreferenced = new LinkedHashMap<>();
+		pendingDeletes = new ArrayList<>();
+		this.budget = budget;
+		memoryUsage = 0;
+	}
+	
+	/** Returns the texture loaded from the external file path, loading it only if it isn't cached yet, every call has to be matched by a release() call */
+	public Texture acquireExternal(String path, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		String pathKey = "external:" + path + paramKey(wrapS, wrapT, minFilter, magFilter, genMipmap);
+		String key = pathKeys.get(pathKey);
+		if(key != null && entries.containsKey(key)) return reference(entries.get(key));
+		ByteBuffer data = FileIO.loadByteBufferExternal(path);
+		if(data == null) return null;
+		Entry e = acquireEntry(data, wrapS, wrapT, minFilter, magFilter, genMipmap);
+		if(e == null) return null;
+		pathKeys.put(pathKey, e.key);
+		return e.texture;
+	}
+	/** Returns the texture loaded from the external file path with repeat wrap, linear mipmap linear min filter, linear mag filter and mipmaps */
+	public Texture acquireExternal(String path) {
+		return acquireExternal(path, Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR, true);
+	}
+	
+	/** Returns the texture loaded from the internal file path relative to class c, loading it only if it isn't cached yet, every call has to be matched by a release() call */
+	public Texture acquireInternal(Class<?> c, String path, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		String pathKey = "internal:" + c.getName() + ":" + path + paramKey(wrapS, wrapT, minFilter, magFilter, genMipmap);
+		String key = pathKeys.get(pathKey);
+		if(key != null && entries.containsKey(key)) return reference(entries.get(key));
+		ByteBuffer data = FileIO.loadByteBufferInternal(c, path);
+		if(data == null) return null;
+		Entry e = acquireEntry(data, wrapS, wrapT, minFilter, magFilter, genMipmap);
+		if(e == null) return null;
+		pathKeys.put(pathKey, e.key);
+		return e.texture;
+	}
+	/** Returns the texture loaded from the internal file path relative to class c with repeat wrap, linear mipmap linear min filter, linear mag filter and mipmaps */
+	public Texture acquireInternal(Class<?> c, String path) {
+		return acquireInternal(c, path, Texture.TEXTURE_REPEAT, Texture.TEXTURE_REPEAT, Texture.FILTER_MIPMAP_LINEAR, Texture.FILTER_LINEAR, true);
+	}
+	
+	/** Returns the texture made from the image file data, creating it only if no texture with the same content and parameters is cached, every call has to be matched by a release() call */
+	public Texture acquire(ByteBuffer textureData, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		Entry e = acquireEntry(textureData, wrapS, wrapT, minFilter, magFilter, genMipmap);
+		return (e == null ? null : e.texture);
+	}
+	
+	/** Finds or creates the cache entry of the image file data and adds a reference to it, returns null if the image couldn't be loaded */
+	private Entry acquireEntry(ByteBuffer textureData, int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		String key = hash(textureData) + paramKey(wrapS, wrapT, minFilter, magFilter, genMipmap);
+		Entry e = entries.get(key);
+		if(e == null) {
+			Texture t = new Texture(textureData, wrapS, wrapT, minFilter, magFilter, genMipmap);
+			if(!t.isLoaded()) {
+				t.dispose();
+				return null;
+			}
+			e = new Entry(key, t);
+			entries.put(key, e);
+			textureEntries.put(e.texture, e);
+			memoryUsage += e.memorySize;
+			Window.print("TextureManager: texture cached, " + memoryUsage + " of " + budget + " bytes used", true, 2);
+		}
+		reference(e);
+		enforceBudget();
+		return e;
+	}
+	
+	/** Adds a reference to the entry and returns its texture */
+	private Texture reference(Entry e) {
+		if(e.references++ == 0) unreferenced.remove(e.key);
+		return e.texture;
+	}
+	
+	/** Removes a reference from a texture returned by one of the acquire methods, the texture may be deleted once it has no references left */
+	public void release(Texture texture) {
+		Entry e = textureEntries.get(texture);
+		if(e == null || e.references == 0) {
+			Window.print("TextureManager: released texture is not referenced by the manager", true, true, true, 0);
+			return;
+		}
+		if(--e.references == 0) {
+			unreferenced.put(e.key, e);
+			enforceBudget();
+		}
+	}
+	
+	/** Evicts the least recently released textures until the memory usage fits into the budget or no unreferenced textures are left */
+	private void enforceBudget() {
+		Iterator<Entry> it = unreferenced.values().iterator();
+		while(memoryUsage > budget && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			evict(e);
+		}
+	}
+	
+	/** Removes the entry from the cache and queues its texture for deletion */
+	private void evict(Entry e) {
+		entries.remove(e.key);
+		textureEntries.remove(e.texture);
+		pathKeys.values().removeIf(k -> k.equals(e.key));
+		memoryUsage -= e.memorySize;
+		pendingDeletes.add(e.texture);
+	}
+	
+	/** Deletes all evicted textures with a single OpenGL call, meant to be called once per frame from the GL thread */
+	public void flush() {
+		if(pendingDeletes.isEmpty()) return;
+		Texture.dispose(pendingDeletes);
+		Window.print("TextureManager: " + pendingDeletes.size() + " textures deleted", true, 2);
+		pendingDeletes.clear();
+	}
+	
+	/** Evicts all textures without references, regardless of the budget, they get deleted on the next flush() */
+	public void trim() {
+		for(Entry e : unreferenced.values()) evict(e);
+		unreferenced.clear();
+	}
+	
+	/** Sets the video memory budget in bytes, evicting textures if the new budget is exceeded */
+	public void setBudget(long budget) {
+		this.budget = budget;
+		enforceBudget();
+	}
+	/** Returns the video memory budget in bytes */
+	public long getBudget() {
+		return budget;
+	}
+	/** Returns the estimated video memory of all cached textures in bytes */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+	/** Returns the amount of cached textures */
+	public int getTextureCount() {
+		return entries.size();
+	}
+	/** Returns the amount of references to the texture held through the manager */
+	public int getReferences(Texture texture) {
+		Entry e = textureEntries.get(texture);
+		return (e == null ? 0 : e.references);
+	}
+	
+	/** Deletes all cached textures, including referenced ones */
+	public void dispose() {
+		for(Entry e : entries.values()) pendingDeletes.add(e.texture);
+		entries.clear();
+		pathKeys.clear();
+		textureEntries.clear();
+		unreferenced.clear();
+		memoryUsage = 0;
+		flush();
+	}
+	
+	/** Returns the SHA-1 hash of the remaining content of the buffer in hex form, the buffer position is left unchanged */
+	private static String hash(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(data.duplicate());
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest()) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return Integer.toHexString(data.hashCode());
+		}
+	}
+	
+	/** Returns the part of the cache key describing the texture parameters */
+	private static String paramKey(int wrapS, int wrapT, int minFilter, int magFilter, boolean genMipmap) {
+		return "|" + wrapS + "," + wrapT + "," + minFilter + "," + magFilter + "," + genMipmap;
+	}
+	
+	/** Cached texture with its reference count */
+	private static class Entry {
+		
+		final String key;
+		final Texture texture;
+		final long memorySize;
+		int references;
+		
+		Entry(String key, Texture texture) {
+			this.key = key;
+			this.texture = texture;
+			memorySize = texture.getMemorySize();
+			references = 0;
+		}
+	}
+
+}